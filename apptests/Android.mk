@@ -2,3 +2,6 @@
 LOCAL_PATH:= $(call my-dir)
 # uncomment to compile BT LE test apps
 #include $(call all-makefiles-under,$(LOCAL_PATH))
+
+# PBAP server benchmark, tagged tests so only test builds include it
+include $(LOCAL_PATH)/PbapBenchmark/Android.mk
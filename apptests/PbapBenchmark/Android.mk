@@ -0,0 +1,23 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+# The PBAP server is built in, so the benchmark runs in a process of its own
+# with its own instances of the PBAP caches
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+        $(call all-java-files-under, ../../src/com/android/bluetooth/pbap)
+
+LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/../../res
+LOCAL_AAPT_FLAGS := --custom-package com.android.bluetooth
+
+LOCAL_PACKAGE_NAME := BluetoothPbapBenchmark
+
+LOCAL_JAVA_LIBRARIES := javax.btobex
+LOCAL_JAVA_LIBRARIES += telephony-common
+LOCAL_JAVA_LIBRARIES += android.test.runner
+LOCAL_STATIC_JAVA_LIBRARIES := com.android.vcard
+
+LOCAL_PROGUARD_ENABLED := disabled
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+import javax.btobex.ApplicationParameter;
+import javax.btobex.ClientOperation;
+import javax.btobex.ClientSession;
+import javax.btobex.HeaderSet;
+import javax.btobex.ObexTransport;
+import javax.btobex.ResponseCodes;
+import javax.btobex.ServerSession;
+
+/**
+ * Throughput benchmark of the PBAP server. Every case generates contacts,
+ * call log and SIM entries in BluetoothPbapFixtureProvider, then drives
+ * BluetoothPbapObexServer through an in-memory OBEX session the same way a
+ * PCE does: phonebook size, listing, listing searches by name and number,
+ * and pulls of the phonebook in vCard 2.1 and 3.0, of the combined call
+ * history and of the SIM phonebook.
+ *
+ * The PBAP classes are built into this package and run in its process, so
+ * neither the device's contacts nor a running Bluetooth service take part.
+ * Only the content observers of BluetoothPbapContentTracker are real, so
+ * keep the device idle while it runs.
+ *
+ * Each request is timed over a few rounds, the first one against cold
+ * caches, then run once more counting allocations. Results are logged and
+ * reported as instrumentation status, together with the phase profile of
+ * BluetoothPbapProfiler.
+ */
+public class BluetoothPbapBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "BluetoothPbapBenchmark";
+
+    private static final int ROUNDS = 3;
+
+    // The call log provider keeps the latest 500 calls
+    private static final int MAX_CALLS = 500;
+
+    // Size of a common ADN file
+    private static final int MAX_SIM_ENTRIES = 250;
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private static final byte[] PBAP_TARGET = new byte[] {
+            0x79, 0x61, 0x35, (byte)0xf0, (byte)0xf0, (byte)0xc5, 0x11, (byte)0xd8, 0x09, 0x66,
+            0x08, 0x00, 0x20, 0x0c, (byte)0x9a, 0x66
+    };
+
+    private static final String TYPE_LISTING = "x-bt/vcard-listing";
+
+    private static final String TYPE_PB = "x-bt/phonebook";
+
+    private static final byte SEARCH_BY_NAME = 0;
+
+    private static final byte SEARCH_BY_NUMBER = 1;
+
+    private static BluetoothPbapFixtureContext sContext;
+
+    private BluetoothPbapFixtureProvider mProvider;
+
+    private ClientSession mClient;
+
+    private ServerSession mServerSession;
+
+    private byte[] mConnectionId;
+
+    private String mFolder;
+
+    private Bundle mResults;
+
+    /** One request of a case */
+    private static class Request {
+        final String name;
+
+        final String type;
+
+        final String folder;
+
+        final String path;
+
+        final byte[] appParam;
+
+        // time of the last timed round
+        long ms;
+
+        Request(String name, String type, String folder, String path, byte[] appParam) {
+            this.name = name;
+            this.type = type;
+            this.folder = folder;
+            this.path = path;
+            this.appParam = appParam;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (sContext == null) {
+            sContext = new BluetoothPbapFixtureContext(getInstrumentation().getContext());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        disconnect();
+        BluetoothPbapVcardCache.getInstance(sContext).stop();
+        BluetoothPbapContentTracker.getInstance(sContext).stop();
+        if (mProvider != null) {
+            mProvider.close();
+            mProvider = null;
+        }
+        super.tearDown();
+    }
+
+    public void testPhonebook1k() throws Exception {
+        run(1000, BluetoothPbapFixtureProvider.RICHNESS_TYPICAL);
+    }
+
+    public void testPhonebook10k() throws Exception {
+        run(10000, BluetoothPbapFixtureProvider.RICHNESS_TYPICAL);
+    }
+
+    public void testPhonebook50k() throws Exception {
+        run(50000, BluetoothPbapFixtureProvider.RICHNESS_TYPICAL);
+    }
+
+    public void testPhonebook10kMinimal() throws Exception {
+        run(10000, BluetoothPbapFixtureProvider.RICHNESS_MINIMAL);
+    }
+
+    public void testPhonebook10kRich() throws Exception {
+        run(10000, BluetoothPbapFixtureProvider.RICHNESS_RICH);
+    }
+
+    private void run(int contacts, int richness) throws Exception {
+        mResults = new Bundle();
+        String prefix = contacts + " contacts, richness " + richness + ", ";
+        long begin = System.nanoTime();
+        mProvider = new BluetoothPbapFixtureProvider(sContext, sContext.getCacheDir(),
+                contacts, Math.min(contacts, MAX_CALLS), Math.min(contacts, MAX_SIM_ENTRIES),
+                richness);
+        report(prefix + "generated", (System.nanoTime() - begin) / 1000000 + "ms, "
+                + mProvider.getCallCount() + " calls, " + mProvider.getSimEntryCount()
+                + " SIM entries");
+        sContext.setProvider(mProvider);
+        startCaches();
+
+        connect();
+        ArrayList<Request> requests = createRequests();
+        BluetoothPbapProfiler.getInstance().reset();
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (Request request : requests) {
+                measure(prefix + "round " + round + ", ", request);
+            }
+        }
+        for (Request request : requests) {
+            measureAllocations(prefix, request);
+        }
+        StringWriter profile = new StringWriter();
+        PrintWriter writer = new PrintWriter(profile);
+        BluetoothPbapProfiler.getInstance().dump(writer);
+        writer.flush();
+        Log.i(TAG, profile.toString());
+        mResults.putString(prefix + "profile", profile.toString());
+        getInstrumentation().sendStatus(0, mResults);
+    }
+
+    /**
+     * Start the tracker and the vCard cache as the service does, from
+     * empty. Starting the tracker makes every cached generation stale.
+     */
+    private void startCaches() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                // the tracker observes on the thread it is started from
+                BluetoothPbapContentTracker.getInstance(sContext).start();
+            }
+        });
+        BluetoothPbapVcardCache cache = BluetoothPbapVcardCache.getInstance(sContext);
+        cache.start();
+        cache.clear();
+    }
+
+    private ArrayList<Request> createRequests() {
+        ArrayList<Request> requests = new ArrayList<Request>();
+        requests.add(new Request("pb size", TYPE_PB, null, "telecom/pb.vcf",
+                appParam(0, true)));
+        requests.add(new Request("pb listing", TYPE_LISTING, null, "telecom/pb",
+                appParam(0xffff, true)));
+        requests.add(new Request("pb search by name", TYPE_LISTING, null, "telecom/pb",
+                searchParam(SEARCH_BY_NAME, BluetoothPbapFixtureProvider.getSearchName())));
+        requests.add(new Request("pb search by number", TYPE_LISTING, null, "telecom/pb",
+                searchParam(SEARCH_BY_NUMBER, mProvider.getSearchNumber())));
+        requests.add(new Request("pb pull 2.1", TYPE_PB, null, "telecom/pb.vcf",
+                appParam(0xffff, true)));
+        requests.add(new Request("pb pull 3.0", TYPE_PB, null, "telecom/pb.vcf",
+                appParam(0xffff, false)));
+        requests.add(new Request("cch listing", TYPE_LISTING, null, "telecom/cch",
+                appParam(0xffff, true)));
+        requests.add(new Request("cch pull 2.1", TYPE_PB, null, "telecom/cch.vcf",
+                appParam(0xffff, true)));
+        // SIM listings are only served from within the SIM1/telecom folder
+        requests.add(new Request("SIM listing", TYPE_LISTING, "SIM1/telecom", "pb",
+                appParam(0xffff, true)));
+        requests.add(new Request("SIM pull 2.1", TYPE_PB, null, "SIM1/telecom/pb.vcf",
+                appParam(0xffff, true)));
+        return requests;
+    }
+
+    private void measure(String prefix, Request request) throws IOException {
+        long begin = System.nanoTime();
+        long bytes = get(request);
+        long ms = Math.max(1, (System.nanoTime() - begin) / 1000000);
+        request.ms = ms;
+        report(prefix + request.name, ms + "ms, " + bytes + " bytes, "
+                + (bytes * 1000 / 1024 / ms) + "KB/s");
+    }
+
+    /**
+     * Run the request once more counting the allocations of the whole
+     * process: server, compose workers and the small share of the client.
+     * Counting slows allocations down, so the rate is taken against the
+     * time of the last timed round.
+     */
+    private void measureAllocations(String prefix, Request request) throws IOException {
+        Debug.startAllocCounting();
+        Debug.resetGlobalAllocCount();
+        Debug.resetGlobalAllocSize();
+        long bytes;
+        try {
+            bytes = get(request);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        long count = Debug.getGlobalAllocCount();
+        long size = Debug.getGlobalAllocSize();
+        report(prefix + "allocations, " + request.name, count + " objects, "
+                + (size / 1024) + "KB, " + (size * 1000 / 1024 / request.ms) + "KB/s, "
+                + (bytes > 0 ? size / bytes : 0) + " bytes per byte sent");
+    }
+
+    private void report(String name, String value) {
+        Log.i(TAG, name + ": " + value);
+        mResults.putString(name, value);
+    }
+
+    /** MaxListCount and Format application parameters, 0 asks for the size only */
+    private static byte[] appParam(int maxListCount, boolean vcard21) {
+        return createAppParam(maxListCount, vcard21).getAPPparam();
+    }
+
+    /** Listing of all entries matching value, by name or by number */
+    private static byte[] searchParam(byte attribute, String value) {
+        ApplicationParameter ap = createAppParam(0xffff, true);
+        ap.addAPPHeader(ApplicationParameter.TRIPLET_TAGID.SEARCH_ATTRIBUTE_TAGID,
+                ApplicationParameter.TRIPLET_LENGTH.SEARCH_ATTRIBUTE_LENGTH, new byte[] {
+                        attribute
+                });
+        byte[] bytes = value.getBytes();
+        ap.addAPPHeader(ApplicationParameter.TRIPLET_TAGID.SEARCH_VALUE_TAGID,
+                (byte)bytes.length, bytes);
+        return ap.getAPPparam();
+    }
+
+    private static ApplicationParameter createAppParam(int maxListCount, boolean vcard21) {
+        ApplicationParameter ap = new ApplicationParameter();
+        ap.addAPPHeader(ApplicationParameter.TRIPLET_TAGID.MAXLISTCOUNT_TAGID,
+                ApplicationParameter.TRIPLET_LENGTH.MAXLISTCOUNT_LENGTH, new byte[] {
+                        (byte)(maxListCount >> 8), (byte)maxListCount
+                });
+        ap.addAPPHeader(ApplicationParameter.TRIPLET_TAGID.FORMAT_TAGID,
+                ApplicationParameter.TRIPLET_LENGTH.FORMAT_LENGTH, new byte[] {
+                        (byte)(vcard21 ? 0 : 1)
+                });
+        return ap;
+    }
+
+    /** One GET on the session, returns the number of body bytes received */
+    private long get(Request request) throws IOException {
+        setFolder(request.folder);
+        HeaderSet headers = createHeaderSet();
+        headers.setHeader(HeaderSet.TYPE, request.type);
+        headers.setHeader(HeaderSet.NAME, request.path);
+        headers.setHeader(HeaderSet.APPLICATION_PARAMETER, request.appParam);
+        ClientOperation op = (ClientOperation)mClient.get(headers);
+        InputStream in = null;
+        long bytes = 0;
+        try {
+            in = op.openInputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                bytes += read;
+            }
+            assertEquals(request.name, ResponseCodes.OBEX_HTTP_OK, op.getResponseCode());
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            op.close();
+        }
+        return bytes;
+    }
+
+    /** Move to folder, null being the root, through the root */
+    private void setFolder(String folder) throws IOException {
+        if (folder == null ? mFolder == null : folder.equals(mFolder)) {
+            return;
+        }
+        HeaderSet reply = mClient.setPath(createHeaderSet(), false, false);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, reply.responseCode);
+        mFolder = null;
+        if (folder != null) {
+            for (String name : folder.split("/")) {
+                HeaderSet headers = createHeaderSet();
+                headers.setHeader(HeaderSet.NAME, name);
+                reply = mClient.setPath(headers, false, false);
+                assertEquals(ResponseCodes.OBEX_HTTP_OK, reply.responseCode);
+            }
+            mFolder = folder;
+        }
+    }
+
+    private HeaderSet createHeaderSet() {
+        HeaderSet headers = new HeaderSet();
+        if (mConnectionId != null) {
+            headers.mConnectionID = mConnectionId.clone();
+        }
+        return headers;
+    }
+
+    private void connect() throws IOException {
+        PipedOutputStream clientOut = new PipedOutputStream();
+        PipedOutputStream serverOut = new PipedOutputStream();
+        PipedInputStream serverIn = new PipedInputStream(clientOut, PIPE_SIZE);
+        PipedInputStream clientIn = new PipedInputStream(serverOut, PIPE_SIZE);
+
+        BluetoothPbapObexServer server = new BluetoothPbapObexServer(
+                new Handler(Looper.getMainLooper()), sContext, null);
+        mServerSession = new ServerSession(new PipeTransport(serverIn, serverOut), server, null);
+        mClient = new ClientSession(new PipeTransport(clientIn, clientOut));
+
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.TARGET, PBAP_TARGET);
+        HeaderSet reply = mClient.connect(request);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, reply.responseCode);
+        mConnectionId = reply.mConnectionID;
+        mFolder = null;
+    }
+
+    private void disconnect() {
+        try {
+            if (mClient != null) {
+                mClient.disconnect(null);
+                mClient.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "OBEX client close error " + e.toString());
+        }
+        if (mServerSession != null) {
+            mServerSession.close();
+        }
+        mClient = null;
+        mServerSession = null;
+        mConnectionId = null;
+    }
+
+    /** OBEX transport over a pair of in-process pipes */
+    private static class PipeTransport implements ObexTransport {
+        private final InputStream mIn;
+
+        private final OutputStream mOut;
+
+        PipeTransport(InputStream in, OutputStream out) {
+            mIn = in;
+            mOut = out;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+            mOut.close();
+        }
+
+        public DataInputStream openDataInputStream() throws IOException {
+            return new DataInputStream(openInputStream());
+        }
+
+        public DataOutputStream openDataOutputStream() throws IOException {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        public InputStream openInputStream() throws IOException {
+            return mIn;
+        }
+
+        public OutputStream openOutputStream() throws IOException {
+            return mOut;
+        }
+
+        public void connect() throws IOException {
+        }
+
+        public void create() throws IOException {
+        }
+
+        public void disconnect() throws IOException {
+        }
+
+        public void listen() throws IOException {
+        }
+
+        public boolean isConnected() throws IOException {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.Context;
+import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * In-process stand-in for the contacts, call log and SIM (icc) providers,
+ * serving generated data from an in-memory SQLite database. It answers the
+ * queries the PBAP server makes, with the same column names, so
+ * BluetoothPbapVcardManager and BluetoothPbapObexServer run unchanged on
+ * top of it, and every run sees the same data whatever the device holds.
+ *
+ * All queries share one SQLite connection, so concurrent compose workers
+ * are served one at a time.
+ */
+public class BluetoothPbapFixtureProvider extends MockContentProvider {
+    /** Name and mobile number only */
+    public static final int RICHNESS_MINIMAL = 0;
+
+    /** Adds a work number, an email and an organization */
+    public static final int RICHNESS_TYPICAL = 1;
+
+    /**
+     * Adds a home number, a second email, a postal address, a note, a
+     * nickname, a website and a birthday, and a photo for every tenth contact
+     */
+    public static final int RICHNESS_RICH = 2;
+
+    private static final String ICC_AUTHORITY = "icc";
+
+    private static final String OWNER_LOOKUP_KEY = "benchmark-owner";
+
+    private static final String OWNER_VCARD = "BEGIN:VCARD\r\nVERSION:2.1\r\n"
+            + "N:Owner;Benchmark;;;\r\nFN:Benchmark Owner\r\nTEL;CELL:+15550000000\r\n"
+            + "END:VCARD\r\n";
+
+    // Calls are one minute apart, the newest having the highest _ID
+    private static final long FIRST_CALL_DATE = 1325376000000L;
+
+    private static final String[] FAMILY_NAMES = {
+            "Anders", "Brown", "Chen", "Dubois", "Evans", "Fischer", "Garcia", "Hansen",
+            "Ito", "Jensen", "Kim", "Lopez", "Muller", "Nguyen", "Olsen", "Patel"
+    };
+
+    private static final int DATA_COLUMNS = 15;
+
+    // IccProvider ignores the projection and always returns these columns
+    private static final String[] ADN_COLUMNS = new String[] {
+            "name", "number", "emails", "_id"
+    };
+
+    private static final int CONTACTS = 1;
+
+    private static final int RAW_CONTACTS = 2;
+
+    private static final int RAW_CONTACT_ENTITIES = 3;
+
+    private static final int PHONES = 4;
+
+    private static final int PROFILE = 5;
+
+    private static final int PROFILE_VCARD = 6;
+
+    private static final int CALLS = 7;
+
+    private static final int ADN = 8;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sUriMatcher.addURI(ContactsContract.AUTHORITY, "contacts", CONTACTS);
+        sUriMatcher.addURI(ContactsContract.AUTHORITY, "raw_contacts", RAW_CONTACTS);
+        sUriMatcher.addURI(ContactsContract.AUTHORITY, "raw_contact_entities",
+                RAW_CONTACT_ENTITIES);
+        sUriMatcher.addURI(ContactsContract.AUTHORITY, "data/phones", PHONES);
+        sUriMatcher.addURI(ContactsContract.AUTHORITY, "profile", PROFILE);
+        sUriMatcher.addURI(ContactsContract.AUTHORITY, "contacts/as_vcard/*", PROFILE_VCARD);
+        sUriMatcher.addURI(CallLog.AUTHORITY, "calls", CALLS);
+        sUriMatcher.addURI(ICC_AUTHORITY, "adn", ADN);
+    }
+
+    private final SQLiteDatabase mDb;
+
+    private final File mOwnerVcard;
+
+    private final int mContacts;
+
+    private final int mCalls;
+
+    private final int mSimEntries;
+
+    private final int mRichness;
+
+    private SQLiteStatement mInsertData;
+
+    /**
+     * Generate the data set. The same arguments always give the same rows.
+     *
+     * @param dir directory for the owner vCard file
+     * @param contacts number of contacts, each with one raw contact
+     * @param calls number of call log entries, cycling through incoming,
+     *            outgoing and missed
+     * @param simEntries number of SIM phonebook entries
+     * @param richness one of the RICHNESS_ constants
+     */
+    public BluetoothPbapFixtureProvider(Context context, File dir, int contacts, int calls,
+            int simEntries, int richness) throws IOException {
+        super(context);
+        mContacts = contacts;
+        mCalls = calls;
+        mSimEntries = simEntries;
+        mRichness = richness;
+        mOwnerVcard = new File(dir, "owner.vcf");
+        writeOwnerVcard();
+        mDb = SQLiteDatabase.create(null);
+        createTables();
+        mDb.beginTransaction();
+        try {
+            mInsertData = mDb.compileStatement(insertDataSql());
+            generateContacts();
+            generateCalls();
+            generateSimEntries();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            mInsertData.close();
+            mInsertData = null;
+        }
+    }
+
+    /** Serve the contacts, call log and icc authorities of resolver from this provider */
+    public void install(MockContentResolver resolver) {
+        resolver.addProvider(ContactsContract.AUTHORITY, this);
+        resolver.addProvider(CallLog.AUTHORITY, this);
+        resolver.addProvider(ICC_AUTHORITY, this);
+    }
+
+    public void close() {
+        mDb.close();
+        mOwnerVcard.delete();
+    }
+
+    public int getContactCount() {
+        return mContacts;
+    }
+
+    public int getCallCount() {
+        return mCalls;
+    }
+
+    public int getSimEntryCount() {
+        return mSimEntries;
+    }
+
+    /** Family name of every sixteenth contact, to search listings by name */
+    public static String getSearchName() {
+        return FAMILY_NAMES[13];
+    }
+
+    /** Trailing digits of the numbers of one contact, to search listings by number */
+    public String getSearchNumber() {
+        return String.format("%07d", mContacts / 2);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        switch (sUriMatcher.match(uri)) {
+            case CONTACTS:
+                qb.setTables("contacts");
+                break;
+            case RAW_CONTACTS:
+                qb.setTables("raw_contacts");
+                break;
+            case RAW_CONTACT_ENTITIES:
+                qb.setTables("raw_contact_entities");
+                if (sortOrder == null) {
+                    // The entity iterator needs the rows of a raw contact together
+                    sortOrder = "_id";
+                }
+                break;
+            case PHONES:
+                qb.setTables("phones");
+                break;
+            case PROFILE:
+                qb.setTables("profile");
+                break;
+            case CALLS:
+                qb.setTables("calls");
+                break;
+            case ADN:
+                qb.setTables("adn");
+                projection = ADN_COLUMNS;
+                break;
+            default:
+                return new MatrixCursor(projection != null ? projection : new String[0]);
+        }
+        return qb.query(mDb, projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    @Override
+    public AssetFileDescriptor openAssetFile(Uri uri, String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PROFILE_VCARD
+                || !OWNER_LOOKUP_KEY.equals(uri.getLastPathSegment())) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return new AssetFileDescriptor(ParcelFileDescriptor.open(mOwnerVcard,
+                ParcelFileDescriptor.MODE_READ_ONLY), 0, mOwnerVcard.length());
+    }
+
+    private void writeOwnerVcard() throws IOException {
+        FileOutputStream out = new FileOutputStream(mOwnerVcard);
+        try {
+            out.write(OWNER_VCARD.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void createTables() {
+        StringBuilder data = new StringBuilder();
+        for (int i = 1; i <= DATA_COLUMNS; i++) {
+            data.append(", data").append(i);
+        }
+        for (int i = 1; i <= 4; i++) {
+            data.append(", data_sync").append(i);
+        }
+        mDb.execSQL("CREATE TABLE contacts (_id INTEGER PRIMARY KEY, display_name TEXT,"
+                + " in_visible_group INTEGER DEFAULT 1, lookup TEXT)");
+        mDb.execSQL("CREATE TABLE raw_contacts (_id INTEGER PRIMARY KEY, contact_id INTEGER,"
+                + " version INTEGER DEFAULT 1, deleted INTEGER DEFAULT 0)");
+        // data columns have no type, so they keep the type of the value bound
+        mDb.execSQL("CREATE TABLE data (_id INTEGER PRIMARY KEY, raw_contact_id INTEGER,"
+                + " mimetype TEXT, is_primary INTEGER DEFAULT 0,"
+                + " is_super_primary INTEGER DEFAULT 0, data_version INTEGER DEFAULT 0"
+                + data + ")");
+        mDb.execSQL("CREATE INDEX data_raw_contact_id ON data (raw_contact_id)");
+        mDb.execSQL("CREATE VIEW raw_contact_entities AS SELECT raw_contacts._id AS _id,"
+                + " contact_id, version, deleted, data._id AS data_id, mimetype, is_primary,"
+                + " is_super_primary, data_version" + data
+                + " FROM raw_contacts LEFT OUTER JOIN data"
+                + " ON data.raw_contact_id = raw_contacts._id");
+        mDb.execSQL("CREATE VIEW phones AS SELECT data._id AS _id, contact_id,"
+                + " data1, data2, data3, data4, display_name, in_visible_group"
+                + " FROM data JOIN raw_contacts ON data.raw_contact_id = raw_contacts._id"
+                + " JOIN contacts ON raw_contacts.contact_id = contacts._id"
+                + " WHERE mimetype = '" + Phone.CONTENT_ITEM_TYPE + "'");
+        mDb.execSQL("CREATE TABLE profile (_id INTEGER PRIMARY KEY, display_name TEXT,"
+                + " lookup TEXT)");
+        mDb.execSQL("CREATE TABLE calls (_id INTEGER PRIMARY KEY, number TEXT, date INTEGER,"
+                + " duration INTEGER, type INTEGER, new INTEGER, name TEXT,"
+                + " numbertype INTEGER, numberlabel TEXT)");
+        mDb.execSQL("CREATE TABLE adn (_id INTEGER PRIMARY KEY, name TEXT, number TEXT,"
+                + " emails TEXT)");
+    }
+
+    private static String insertDataSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO data (raw_contact_id, mimetype");
+        StringBuilder values = new StringBuilder("?, ?");
+        for (int i = 1; i <= DATA_COLUMNS; i++) {
+            sql.append(", data").append(i);
+            values.append(", ?");
+        }
+        return sql.append(") VALUES (").append(values).append(")").toString();
+    }
+
+    /** Insert one data row, values are data1, data2, ... in order */
+    private void insertData(long rawContactId, String mimetype, Object... values) {
+        mInsertData.clearBindings();
+        mInsertData.bindLong(1, rawContactId);
+        mInsertData.bindString(2, mimetype);
+        for (int i = 0; i < values.length; i++) {
+            DatabaseUtils.bindObjectToProgram(mInsertData, i + 3, values[i]);
+        }
+        mInsertData.executeInsert();
+    }
+
+    private static String mobileNumber(int contact) {
+        return String.format("+1555%07d", contact);
+    }
+
+    private void generateContacts() {
+        mDb.execSQL("INSERT INTO profile VALUES (1, 'Benchmark Owner', '"
+                + OWNER_LOOKUP_KEY + "')");
+        SQLiteStatement insertContact = mDb.compileStatement(
+                "INSERT INTO contacts (_id, display_name, lookup) VALUES (?, ?, ?)");
+        SQLiteStatement insertRawContact = mDb.compileStatement(
+                "INSERT INTO raw_contacts (_id, contact_id) VALUES (?, ?)");
+        byte[] photo = mRichness >= RICHNESS_RICH ? createPhoto() : null;
+        try {
+            for (int i = 0; i < mContacts; i++) {
+                long id = i + 1;
+                String given = "Contact" + i;
+                String family = FAMILY_NAMES[i % FAMILY_NAMES.length];
+                String displayName = given + " " + family;
+                insertContact.bindLong(1, id);
+                insertContact.bindString(2, displayName);
+                insertContact.bindString(3, "lookup" + id);
+                insertContact.executeInsert();
+                insertRawContact.bindLong(1, id);
+                insertRawContact.bindLong(2, id);
+                insertRawContact.executeInsert();
+
+                insertData(id, StructuredName.CONTENT_ITEM_TYPE, displayName, given, family);
+                insertData(id, Phone.CONTENT_ITEM_TYPE, mobileNumber(i), Phone.TYPE_MOBILE,
+                        null, mobileNumber(i));
+                if (mRichness >= RICHNESS_TYPICAL) {
+                    String work = String.format("+1556%07d", i);
+                    insertData(id, Phone.CONTENT_ITEM_TYPE, work, Phone.TYPE_WORK, null, work);
+                    insertData(id, Email.CONTENT_ITEM_TYPE, "contact" + i + "@example.com",
+                            Email.TYPE_WORK);
+                    insertData(id, Organization.CONTENT_ITEM_TYPE, "Example Corp",
+                            Organization.TYPE_WORK, null, "Engineer");
+                }
+                if (mRichness >= RICHNESS_RICH) {
+                    String home = String.format("+1557%07d", i);
+                    insertData(id, Phone.CONTENT_ITEM_TYPE, home, Phone.TYPE_HOME, null, home);
+                    insertData(id, Email.CONTENT_ITEM_TYPE, "contact" + i + "@home.example.org",
+                            Email.TYPE_HOME);
+                    String street = (i % 900 + 1) + " Main Street";
+                    insertData(id, StructuredPostal.CONTENT_ITEM_TYPE,
+                            street + "\nSpringfield 12345\nUSA", StructuredPostal.TYPE_HOME,
+                            null, street, null, null, "Springfield", null, "12345", "USA");
+                    insertData(id, Note.CONTENT_ITEM_TYPE, "Met at the conference in "
+                            + (2000 + i % 12) + ", follow up about the project proposal and"
+                            + " send the slides of the talk.");
+                    insertData(id, Nickname.CONTENT_ITEM_TYPE, "C" + i, Nickname.TYPE_DEFAULT);
+                    insertData(id, Website.CONTENT_ITEM_TYPE,
+                            "http://example.com/~contact" + i, Website.TYPE_HOMEPAGE);
+                    insertData(id, Event.CONTENT_ITEM_TYPE,
+                            String.format("1980-%02d-%02d", i % 12 + 1, i % 28 + 1),
+                            Event.TYPE_BIRTHDAY);
+                    if (i % 10 == 0) {
+                        Object[] values = new Object[DATA_COLUMNS];
+                        values[DATA_COLUMNS - 1] = photo; // Photo.PHOTO is data15
+                        insertData(id, Photo.CONTENT_ITEM_TYPE, values);
+                    }
+                }
+            }
+        } finally {
+            insertContact.close();
+            insertRawContact.close();
+        }
+    }
+
+    /**
+     * Every fifth call is from a number without contact, every fifth from a
+     * contact but without cached name, so that the caller name resolver has
+     * work to do; the others carry the cached name as the call log does.
+     */
+    private void generateCalls() {
+        SQLiteStatement insertCall = mDb.compileStatement("INSERT INTO calls (_id, number,"
+                + " date, duration, type, new, name, numbertype, numberlabel)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, NULL)");
+        final int[] types = {
+                Calls.INCOMING_TYPE, Calls.OUTGOING_TYPE, Calls.MISSED_TYPE
+        };
+        try {
+            for (int i = 0; i < mCalls; i++) {
+                int type = types[i % types.length];
+                insertCall.clearBindings();
+                insertCall.bindLong(1, i + 1);
+                insertCall.bindLong(3, FIRST_CALL_DATE + i * 60000L);
+                insertCall.bindLong(4, type == Calls.MISSED_TYPE ? 0 : i % 600);
+                insertCall.bindLong(5, type);
+                insertCall.bindLong(6, type == Calls.MISSED_TYPE ? 1 : 0);
+                if (i % 5 == 0 || mContacts == 0) {
+                    insertCall.bindString(2, String.format("+1999%07d", i));
+                } else {
+                    int contact = (int)((i * 7919L) % mContacts);
+                    insertCall.bindString(2, mobileNumber(contact));
+                    if (i % 5 != 1) {
+                        insertCall.bindString(7, "Contact" + contact + " "
+                                + FAMILY_NAMES[contact % FAMILY_NAMES.length]);
+                        insertCall.bindLong(8, Phone.TYPE_MOBILE);
+                    }
+                }
+                insertCall.executeInsert();
+            }
+        } finally {
+            insertCall.close();
+        }
+    }
+
+    private void generateSimEntries() {
+        SQLiteStatement insertAdn = mDb.compileStatement(
+                "INSERT INTO adn (_id, name, number) VALUES (?, ?, ?)");
+        try {
+            for (int i = 0; i < mSimEntries; i++) {
+                insertAdn.bindLong(1, i + 1);
+                insertAdn.bindString(2, "Sim" + i + " " + FAMILY_NAMES[i % FAMILY_NAMES.length]);
+                insertAdn.bindString(3, String.format("+1558%07d", i));
+                insertAdn.executeInsert();
+            }
+        } finally {
+            insertAdn.close();
+        }
+    }
+
+    /** A stored contact thumbnail: a 96x96 JPEG, as the contacts provider keeps */
+    private static byte[] createPhoto() {
+        Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < 96; y++) {
+            for (int x = 0; x < 96; x++) {
+                bitmap.setPixel(x, y, Color.rgb(x * 2, y * 2, (x + y) % 256));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+}
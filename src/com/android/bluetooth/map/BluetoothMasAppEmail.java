@@ -41,6 +41,7 @@ import android.text.format.Time;
 import android.util.Log;
 
 import com.android.bluetooth.map.MapUtils.BmessageConsts;
+import com.android.bluetooth.map.MapUtils.BmessageParser;
 import com.android.bluetooth.map.MapUtils.CommonUtils;
 import com.android.bluetooth.map.MapUtils.EmailUtils;
 import com.android.bluetooth.map.MapUtils.MapUtils;
@@ -52,11 +53,8 @@ import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMsgListRsp;
 import com.android.bluetooth.map.MapUtils.MapUtils.BadRequestException;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -258,13 +256,13 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                         if (SPECIAL_MAILBOX_MAP_NAME[index].equalsIgnoreCase(folderName)) {
                             List<String> folders = EmailUtils.getFoldersForType(mContext,
                                     accountId, SPECIAL_MAILBOX_TYPES[index]);
-                            List<MsgListingConsts> list = null;
+                            List<List<MsgListingConsts>> lists =
+                                    new ArrayList<List<MsgListingConsts>>();
                             for (String folder : folders) {
-                                list = getListEmailFromFolder(folder, rsp, appParams);
-                                if (list.size() > 0) {
-                                    msgList.addAll(list);
-                                }
+                                lists.add(getListEmailFromFolder(folder, rsp, appParams));
                             }
+                            msgList.addAll(mergeMsgLists(lists,
+                                    getListingWindowEnd(appParams)));
                             break;
                         }
                     }
@@ -313,29 +311,8 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
         String str = EmailUtils.bldEmailBmsg(emailMsgID, rsp, mContext, mRemoteDeviceName);
         if (V) Log.v(TAG, "\n" + str + "\n");
         if (str != null && (str.length() > 0)) {
-            final String FILENAME = "message" + getMasId();
-            FileOutputStream bos = null;
-            File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-            file.delete();
-
-            try {
-                bos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                bos.write(str.getBytes());
-                bos.flush();
-                bos.close();
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            }
-
-            File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
-            if (fileR.exists() == true) {
-                rsp.file = fileR;
-                rsp.fractionDeliver = 1;
-            } else {
-                rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
+            rsp.body = str.getBytes();
+            rsp.fractionDeliver = 1;
         }
         return rsp;
     }
@@ -345,7 +322,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
      *
      * @return Response to push command
      */
-    public BluetoothMasPushMsgRsp pushMsg(String name, File file,
+    public BluetoothMasPushMsgRsp pushMsg(String name, InputStream in,
             BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException {
         BluetoothMasPushMsgRsp rsp = new BluetoothMasPushMsgRsp();
         rsp.response = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
@@ -361,48 +338,22 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             rsp.response = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             return rsp;
         }
-        byte[] readBytes = null;
-        FileInputStream fis = null;
+        BmessageParser bmsg;
         try {
-            fis = new FileInputStream(file);
-            if(file.length() > EMAIL_MAX_PUSHMSG_SIZE){
-                rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
-                rsp.msgHandle = null;
-                Log.d(TAG,"Message body is larger than the max length allowed");
-                return rsp;
-            } else {
-                readBytes = new byte[(int) file.length()];
-                fis.read(readBytes);
-            }
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, e.getMessage());
+            bmsg = BmessageParser.parse(in, EMAIL_MAX_PUSHMSG_SIZE);
+        } catch (BmessageParser.EntityTooLargeException e) {
+            rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
+            rsp.msgHandle = null;
+            Log.d(TAG,"Message body is larger than the max length allowed");
             return rsp;
         } catch (IOException e) {
             Log.e(TAG, e.getMessage());
             return rsp;
-        } catch (SecurityException e) {
-            Log.e(TAG, e.getMessage());
-            return rsp;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException ei) {
-                    Log.e(TAG, "Error while closing stream"+ ei.toString());
-                }
-            }
         }
 
-        String readStr = "";
-        String type = "";
-        try {
-            readStr = new String(readBytes);
-            type = MapUtils.fetchType(readStr);
-        } catch (Exception e) {
-            throw new BadRequestException(e.getMessage());
-        }
+        String type = bmsg.getType();
         if (type != null && type.equalsIgnoreCase("EMAIL")) {
-            rsp = pushMessageEmail(rsp, readStr, name);
+            rsp = pushMessageEmail(rsp, bmsg, name);
             return rsp;
         }
         rsp.response = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -427,6 +378,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
         if (handle < OFFSET_START && handle > OFFSET_END) {
             return ResponseCodes.OBEX_HTTP_NOT_FOUND;
         }
+        mMessageCache.remove(mSupportedMessageTypes, msgHandle);
         return setMsgStatusEmail(handle, bluetoothMasAppParams);
     }
 
@@ -586,7 +538,19 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
         if (V){
                 Log.v(TAG, "## whereClauseEmail ##:" + whereClauseEmail);
         }
-        Cursor cursor = crEmail.query(uriEmail, null, whereClauseEmail, null, "timeStamp desc");
+        // All filters are part of the where clause, so the listing size comes
+        // from a count and only the requested window is loaded
+        rsp.msgListingSize += getMessageCount(uriEmail, whereClauseEmail);
+        if ((rsp.newMessage == 0)
+                && hasUnreadMessage(withLimit(uriEmail, 1), whereClauseEmail, "flagRead")) {
+            rsp.newMessage = 1;
+        }
+        int windowEnd = getListingWindowEnd(appParams);
+        if (windowEnd == 0) {
+            return msgList;
+        }
+        Cursor cursor = crEmail.query(withLimit(uriEmail, windowEnd), null, whereClauseEmail,
+                null, "timeStamp desc");
 
         if (cursor != null && V){
                 Log.v(TAG, "move to First" + cursor.moveToFirst());
@@ -605,13 +569,6 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             int replyToInd = cursor.getColumnIndex("replyToList");
 
             do {
-                /*
-                 * Apply remaining filters
-                 */
-
-                if (V) Log.v(TAG, " msgListSize " + rsp.msgListingSize);
-                rsp.msgListingSize++;
-
                 String subject = cursor.getString(subjectInd);
                 String timestamp = cursor.getString(dateInd);
                 String senderName = cursor.getString(fromIndex);
@@ -622,26 +579,11 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                 String readStatus = cursor.getString(readInd);
                 String replyToStr = cursor.getString(replyToInd);
 
-                /*
-                 * Don't want the listing; just send the listing size after
-                 * applying all the filters.
-                 */
-
-                /*
-                 * TODO: Skip the first ListStartOffset record(s). Don't write
-                 * more than MaxListCount record(s).
-                 */
-
                 MsgListingConsts emailMsg = new MsgListingConsts();
                 emailMsg = EmailUtils.bldEmailMsgLstItem(mContext, folderName, appParams,
                         subject, timestamp, senderName, senderAddressing,
                         recipientName, recipientAddressing,
                         msgId, readStatus, replyToStr, OFFSET_START);
-
-                // New Message?
-                if ((rsp.newMessage == 0) && (cursor.getInt(readInd) == 0)) {
-                    rsp.newMessage = 1;
-                }
                 msgList.add(emailMsg);
             } while (cursor.moveToNext());
         }
@@ -665,10 +607,10 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
     }
 
     private BluetoothMasPushMsgRsp pushMessageEmail(BluetoothMasPushMsgRsp rsp,
-                String readStr, String name) throws BadRequestException {
-        if (V) Log.v(TAG, " Before fromBmessageemail method:: "+readStr);
+                BmessageParser bmsg, String name) throws BadRequestException {
+        if (V) Log.v(TAG, " Before fromBmessageemail method:: " + bmsg.getMsgBlock());
 
-        BmessageConsts bMsg = MapUtils.fromBmessageEmail(mContext,readStr,mMasId);
+        BmessageConsts bMsg = MapUtils.fromBmessageEmail(mContext, bmsg, mMasId);
         String address = bMsg.getRecipientVcard_email();
         String text = bMsg.getBody_msg();
         String subject = bMsg.getSubject();
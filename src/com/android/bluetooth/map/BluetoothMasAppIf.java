@@ -32,27 +32,23 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
-import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.bluetooth.map.MapUtils.FilterMatcher;
 import com.android.bluetooth.map.MapUtils.MapUtils;
 import com.android.bluetooth.map.MapUtils.MsgListingConsts;
+import com.android.bluetooth.map.MapUtils.SortMsgListByDate;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageListingRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMsgListRsp;
 import com.android.bluetooth.map.MapUtils.SmsMmsUtils.VcardContent;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import javax.btobex.ResponseCodes;
 
@@ -93,6 +89,9 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
     protected final long OFFSET_START;
     protected final long OFFSET_END;
 
+    protected final BluetoothMasContactCache mContactCache;
+    protected final BluetoothMasMessageCache mMessageCache;
+
     public BluetoothMasAppIf(Context context, Handler handler, int supportedMessageTypes,
             BluetoothMns mnsClient, int masId, String remoteDeviceName) {
         mContext = context;
@@ -101,6 +100,8 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
         mHandler = handler;
         mMnsClient = mnsClient;
         mRemoteDeviceName = remoteDeviceName;
+        mContactCache = BluetoothMasContactCache.getInstance(context);
+        mMessageCache = BluetoothMasMessageCache.getInstance(context);
 
         OFFSET_START = HANDLE_OFFSET[masId];
         OFFSET_END = HANDLE_OFFSET[masId + 1] - 1;
@@ -295,127 +296,42 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
         return null;
     }
 
-    static final int PHONELOOKUP_ID_COLUMN_INDEX = 0;
-    static final int PHONELOOKUP_LOOKUP_KEY_COLUMN_INDEX = 1;
-    static final int PHONELOOKUP_DISPLAY_NAME_COLUMN_INDEX = 2;
-
-    static final int EMAIL_DATA_COLUMN_INDEX = 0;
-
-    private List<VcardContent> mVcardList = new ArrayList<VcardContent>();;
-
     protected VcardContent getVcardContent(String phoneAddress) {
-        VcardContent vCard = new VcardContent();
-        vCard.tel = phoneAddress;
-
-        Uri uriContacts = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phoneAddress));
-        Cursor cursorContacts = mContext.getContentResolver().query(
-                uriContacts,
-                new String[] { PhoneLookup._ID, PhoneLookup.LOOKUP_KEY,
-                        PhoneLookup.DISPLAY_NAME }, null, null, null);
-        if (cursorContacts == null) {
-            return vCard;
-        }
-        cursorContacts.moveToFirst();
-        if (cursorContacts.getCount() > 0) {
-            long contactId = cursorContacts
-                    .getLong(PHONELOOKUP_ID_COLUMN_INDEX);
-            String lookupKey = cursorContacts
-                    .getString(PHONELOOKUP_LOOKUP_KEY_COLUMN_INDEX);
-            vCard.name = cursorContacts
-                    .getString(PHONELOOKUP_DISPLAY_NAME_COLUMN_INDEX);
-
-            Uri lookUpUri = Contacts.getLookupUri(contactId, lookupKey);
-            String Id = lookUpUri.getLastPathSegment();
-
-            Cursor crEm = mContext.getContentResolver().query(Email.CONTENT_URI,
-                    new String[] { Email.DATA }, Email.CONTACT_ID + "=?",
-                    new String[] { Id }, null);
-            if (crEm != null) {
-                if (crEm.moveToFirst()) {
-                    vCard.email = "";
-                    if (crEm.moveToFirst()) {
-                        do {
-                            vCard.email += crEm.getString(EMAIL_DATA_COLUMN_INDEX) + ";";
-                        } while (crEm.moveToNext());
-                    }
-                }
-                crEm.close();
-            }
-        }
-        cursorContacts.close();
-        return vCard;
+        return mContactCache.get(phoneAddress, true);
     }
 
     /**
      * Check if the entry is not to be filtered out (allowed)
      */
-    protected boolean allowEntry(String phoneAddress, String filterString) {
-        boolean found = false;
-        VcardContent foundEntry = null;
-        for (VcardContent elem : mVcardList) {
-            if (elem.tel.contains(phoneAddress)) {
-                found = true;
-                foundEntry = elem;
-            }
+    protected boolean allowEntry(String phoneAddress, FilterMatcher filter) {
+        // The address alone is enough for number filters, skip the lookup
+        if (filter.matches(phoneAddress)) {
+            return true;
         }
-        if (found == false) {
-            VcardContent vCard = getVcardContent(phoneAddress);
-            if (vCard != null) {
-                mVcardList.add(vCard);
-                found = true;
-                foundEntry = vCard;
-                if (V) {
-                    Log.v(TAG, " NEW VCARD ADDED " + vCard.tel + vCard.name
-                            + vCard.email);
-                }
-            } else {
-                if (V) Log.v(TAG, "VCARD NOT FOUND ERROR");
-            }
+        if (phoneAddress == null) {
+            return false;
         }
+        VcardContent foundEntry = mContactCache.get(phoneAddress, true);
+        return filter.matches(foundEntry.name) || filter.matches(foundEntry.email);
+    }
 
-        if (found == true) {
-            String regExp = filterString.replace("*", ".*[0-9A-Za-z].*");
-            if ((foundEntry.tel.matches(".*"+regExp+".*"))
-                    || (foundEntry.name.matches(".*"+regExp+".*"))
-                    || (foundEntry.email.matches(".*"+regExp+".*"))) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * Check if the owner name or number matches the filter, true if there
+     * is no filter
+     */
+    protected boolean ownerMatches(FilterMatcher filter) {
+        return (filter == null) || filter.matches(getOwnerName())
+                || filter.matches(getOwnerNumber());
     }
 
     /**
      * Get the contact name for the given phone number
      */
     protected String getContactName(String phoneNumber) {
-        boolean found = false;
-        VcardContent foundEntry = null;
         if(phoneNumber == null){
             return null;
         }
-        for (VcardContent elem : mVcardList) {
-            if (elem.tel == null){
-                continue;
-            }
-            if (elem.tel.contains(phoneNumber)) {
-                found = true;
-                foundEntry = elem;
-                break;
-            }
-        }
-        if (found == false) {
-            foundEntry = getVcardContent(phoneNumber);
-            if (foundEntry != null) {
-                mVcardList.add(foundEntry);
-                found = true;
-            }
-        }
-        if (found == true) {
-            return foundEntry.name;
-        }
-
-        return null;
+        return mContactCache.get(phoneNumber, false).name;
     }
 
     protected class OwnerInfo {
@@ -464,6 +380,113 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
         return ownerInfo.Number;
     }
 
+    /**
+     * Number of listing entries a single message source has to produce so
+     * that the window ListStartOffset..ListStartOffset+MaxListCount of the
+     * merged listing can be served. 0 when only the listing size is wanted.
+     */
+    protected static int getListingWindowEnd(BluetoothMasAppParams appParams) {
+        if (appParams.MaxListCount <= 0) {
+            return 0;
+        }
+        return Math.max(appParams.ListStartOffset, 0) + appParams.MaxListCount;
+    }
+
+    /**
+     * Query parameter limiting the number of rows a provider returns.
+     *
+     * Of the providers listings are read from only EmailProvider accepts it.
+     * The telephony SmsProvider and MmsProvider ignore unknown parameters and
+     * have no other limit mechanism, so their listings are not limited in
+     * the query; the cursor is just not read past the window. A LIMIT pasted
+     * into the sort order is not used, it only works as long as a provider
+     * passes the sort order on to SQLite verbatim.
+     */
+    protected static final String LIMIT_PARAMETER = "limit";
+
+    /**
+     * Uri of an EmailProvider table limited to the given number of rows
+     */
+    protected static Uri withLimit(Uri uri, int limit) {
+        return uri.buildUpon().appendQueryParameter(LIMIT_PARAMETER, Integer.toString(limit))
+                .build();
+    }
+
+    /**
+     * Count the messages matching the where clause without loading them
+     */
+    protected int getMessageCount(Uri uri, String whereClause) {
+        int count = 0;
+        Cursor cursor = mContext.getContentResolver().query(uri, new String[] {"_id"},
+                whereClause, null, null);
+        if (cursor != null) {
+            count = cursor.getCount();
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * Check whether any message matching the where clause is unread
+     */
+    protected boolean hasUnreadMessage(Uri uri, String whereClause, String readColumn) {
+        boolean unread = false;
+        String where = readColumn + "=0";
+        if (whereClause != null && whereClause.length() != 0) {
+            where = "(" + whereClause + ") AND " + where;
+        }
+        Cursor cursor = mContext.getContentResolver().query(uri, new String[] {"_id"},
+                where, null, null);
+        if (cursor != null) {
+            unread = cursor.moveToFirst();
+            cursor.close();
+        }
+        return unread;
+    }
+
+    /**
+     * Merge listings that are each sorted newest first into one listing of at
+     * most limit entries, newest first
+     */
+    protected static List<MsgListingConsts> mergeMsgLists(List<List<MsgListingConsts>> lists,
+            int limit) {
+        List<MsgListingConsts> merged = new ArrayList<MsgListingConsts>();
+        if (lists.size() == 1) {
+            List<MsgListingConsts> list = lists.get(0);
+            merged.addAll(list.size() > limit ? list.subList(0, limit) : list);
+            return merged;
+        }
+        final Comparator<MsgListingConsts> byDate = new SortMsgListByDate();
+        PriorityQueue<ListHead> heap = new PriorityQueue<ListHead>(Math.max(lists.size(), 1),
+                new Comparator<ListHead>() {
+                    public int compare(ListHead a, ListHead b) {
+                        return byDate.compare(a.list.get(a.index), b.list.get(b.index));
+                    }
+                });
+        for (List<MsgListingConsts> list : lists) {
+            if (list != null && !list.isEmpty()) {
+                heap.add(new ListHead(list));
+            }
+        }
+        while (merged.size() < limit && !heap.isEmpty()) {
+            ListHead head = heap.poll();
+            merged.add(head.list.get(head.index));
+            if (++head.index < head.list.size()) {
+                heap.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private static class ListHead {
+        final List<MsgListingConsts> list;
+        int index;
+
+        ListHead(List<MsgListingConsts> list) {
+            this.list = list;
+        }
+    }
+
     /**
      * Get the list of message in the given folder.
      * It must be implemented for MessageType specific
@@ -483,8 +506,6 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
      */
     public BluetoothMasMessageListingRsp msgListing(String name, BluetoothMasAppParams appParams) {
         BluetoothMasMessageListingRsp rsp = new BluetoothMasMessageListingRsp();
-        boolean fileGenerated = false;
-        final String FILENAME = "msglist" + getMasId();
 
         List<MsgListingConsts> msgList = new ArrayList<MsgListingConsts>();
 
@@ -499,66 +520,26 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
             return rsp;
         }
         msgList = specificRsp.msgList;
-        // Process the list based on MaxListCount and list offset
-        String str = null;
-        int numOfItems = msgList.size();
+        // Process the list based on MaxListCount and list offset. The specific
+        // listing only returns the newest ListStartOffset + MaxListCount entries
+        int numOfItems = (msgList == null) ? 0 : msgList.size();
         int msgDelta = numOfItems - appParams.ListStartOffset;
         int startIdx = appParams.ListStartOffset;
         int stopIdx = 0;
         if (msgDelta <= 0) {
-            List<MsgListingConsts> msgSubList = new ArrayList<MsgListingConsts>();;
-            str = MapUtils.messageListingXML(msgSubList);
+            rsp.msgList = new ArrayList<MsgListingConsts>();
         } else {
             if (msgDelta <= appParams.MaxListCount) {
                 stopIdx = startIdx + msgDelta;
             } else {
                 stopIdx = startIdx + appParams.MaxListCount;
             }
-            List<MsgListingConsts> msgSubList = msgList.subList(startIdx,
-                    stopIdx);
-            str = MapUtils.messageListingXML(msgSubList);
-        }
-        if (str == null) {
-            rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            return rsp;
-        }
-
-        // String str = "this is a test for the data file";
-        try {
-            FileOutputStream bos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-            bos.write(str.getBytes());
-            bos.flush();
-            bos.close();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        msgList.clear();
-
-        if (V) {
-            Log.v(TAG, "");
-            Log.v(TAG, " MESSAGE LISTING FULL ( total length)" + str.length());
-            Log.v(TAG, str);
+            // The OBEX server serializes the window straight into the response
+            rsp.msgList = new ArrayList<MsgListingConsts>(msgList.subList(startIdx, stopIdx));
         }
+        if (V) Log.v(TAG, " MESSAGE LISTING " + rsp.msgList.size() + " of "
+                + rsp.msgListingSize);
 
-        try {
-            FileInputStream fis = new FileInputStream(mContext.getFilesDir()
-                    + "/" + FILENAME);
-            fis.close();
-            fileGenerated = true;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        if (fileGenerated == true) {
-            File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-            rsp.file = file;
-        }
         rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
         return rsp;
     }
@@ -575,7 +556,6 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
             BluetoothMasAppParams bluetoothMasAppParams) {
         BluetoothMasMessageRsp rsp = new BluetoothMasMessageRsp();
         if (msgHandle == null || msgHandle.length() == 0) {
-            rsp.file = null;
             rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             return rsp;
         }
@@ -585,7 +565,24 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
             return rsp;
         }
 
-        return getMessageSpecific(handle, rsp, bluetoothMasAppParams);
+        // The email bMessage varies with the remote device, see EmailUtils
+        final String key = BluetoothMasMessageCache.getKey(mSupportedMessageTypes, msgHandle,
+                bluetoothMasAppParams.Charset, bluetoothMasAppParams.Attachment,
+                mRemoteDeviceName);
+        // Read before composing, so an invalidation meanwhile is noticed
+        final long generation = mMessageCache.getGeneration();
+        final byte[] cached = mMessageCache.get(key);
+        if (cached != null) {
+            if (V) Log.v(TAG, "bMessage " + msgHandle + " from cache");
+            rsp.body = cached;
+            rsp.fractionDeliver = 1;
+            return rsp;
+        }
+        rsp = getMessageSpecific(handle, rsp, bluetoothMasAppParams);
+        if (rsp.rsp == ResponseCodes.OBEX_HTTP_OK && rsp.body != null) {
+            mMessageCache.put(key, rsp.body, generation);
+        }
+        return rsp;
     }
 
     /**
@@ -34,6 +34,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Handler;
 import android.telephony.SmsManager;
@@ -44,11 +45,13 @@ import android.util.Log;
 import android.util.TimeFormatException;
 
 import com.android.bluetooth.map.MapUtils.BmessageConsts;
+import com.android.bluetooth.map.MapUtils.BmessageParser;
+import com.android.bluetooth.map.MapUtils.BmessageWriter;
 import com.android.bluetooth.map.MapUtils.CommonUtils;
+import com.android.bluetooth.map.MapUtils.FilterMatcher;
 import com.android.bluetooth.map.MapUtils.MapUtils;
 import com.android.bluetooth.map.MapUtils.MsgListingConsts;
 import com.android.bluetooth.map.MapUtils.SmsMmsUtils;
-import com.android.bluetooth.map.MapUtils.SortMsgListByDate;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageListingRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
@@ -56,14 +59,12 @@ import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMsgListRsp;
 import com.android.bluetooth.map.MapUtils.MapUtils.BadRequestException;
 import com.android.bluetooth.map.MapUtils.SmsMmsUtils.VcardContent;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 
@@ -92,6 +93,17 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     private static final String INTERESTED_MESSAGE_TYPE_CLAUSE =
                 "(m_type = 128 OR m_type = 132 OR m_type = 130)";
 
+    private static final String[] MMS_LIST_PROJECTION = new String[] {
+            "_id", "msg_box", "sub", "date", "m_size", "read", "pri", "locked"
+    };
+    // Number of MMS ids per batched addr/part query
+    private static final int MMS_LIST_BATCH_SIZE = 100;
+
+    // Addresses of an MMS read in the batched listing query, messages with
+    // more recipients are read one at a time
+    private static final int MMS_BATCH_ADDRESSES = 8;
+    private static final int MMS_PRIORITY_HIGH = 0x82;
+
     public BluetoothMasAppSmsMms(Context context, Handler handler, BluetoothMns mnsClient,
             int masId, String remoteDeviceName) {
         super(context, handler, MESSAGE_TYPE_SMS_MMS, mnsClient, masId, remoteDeviceName);
@@ -155,6 +167,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
         boolean validFilter = false;
+        List<List<MsgListingConsts>> sources = new ArrayList<List<MsgListingConsts>>();
         String fullPath = (name == null || name.length() == 0) ? mCurrentPath :
                 CommonUtils.getFullPath(name, mContext, getCompleteFolderList(), mCurrentPath);
         if (fullPath == null) {
@@ -201,9 +214,9 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                         ((appParams.FilterMessageType & 0x02) == 0 &&
                                 phoneType == TelephonyManager.PHONE_TYPE_CDMA)) {
                     validFilter = true;
-                    BluetoothMsgListRsp bmlrSms = msgListSms(msgList, folderName,
-                            rsp, appParams);
-                    bmlr.msgList = bmlrSms.msgList;
+                    BluetoothMsgListRsp bmlrSms = msgListSms(new ArrayList<MsgListingConsts>(),
+                            folderName, rsp, appParams);
+                    sources.add(bmlrSms.msgList);
                     bmlr.rsp = bmlrSms.rsp;
                 }
                 // Now that all of the SMS messages have been listed. Look for
@@ -217,8 +230,9 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                     if (DRAFT.equalsIgnoreCase(folderName)) {
                         folderName = DRAFTS;
                     }
-                    BluetoothMsgListRsp bmlrMms = msgListMms(msgList, folderName, rsp, appParams);
-                    bmlr.msgList = bmlrMms.msgList;
+                    BluetoothMsgListRsp bmlrMms = msgListMms(new ArrayList<MsgListingConsts>(),
+                            folderName, rsp, appParams);
+                    sources.add(bmlrMms.msgList);
                     bmlr.rsp = bmlrMms.rsp;
                 }
                 if (validFilter != true) {
@@ -236,8 +250,10 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             }
         }
 
-        // Now that the message list exists, we can sort the list by date
-        Collections.sort(bmlr.msgList, new SortMsgListByDate());
+        // Each source is already sorted by date and cut to the requested
+        // window, merge them into the final listing
+        msgList.addAll(mergeMsgLists(sources, getListingWindowEnd(appParams)));
+        bmlr.msgList = msgList;
         rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
         bmlr.rsp = rsp;
         return bmlr;
@@ -257,7 +273,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                 rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
                 return rsp;
             }
-            return getMessageMms(msgHandle, rsp);
+            return getMessageMms(msgHandle, rsp, bluetoothMasAppParams.Attachment == 1);
         } else { // SMS
             return getMessageSms(msgHandle, mContext, rsp, bluetoothMasAppParams);
         }
@@ -268,7 +284,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
      *
      * @return Response to push command
      */
-    public BluetoothMasPushMsgRsp pushMsg(String name, File file,
+    public BluetoothMasPushMsgRsp pushMsg(String name, InputStream in,
             BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException {
         BluetoothMasPushMsgRsp rsp = new BluetoothMasPushMsgRsp();
         rsp.response = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
@@ -287,52 +303,26 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         am.getMemoryInfo(outInfo);
         final long allowedMem = outInfo.availMem - outInfo.threshold;
 
-        byte[] readBytes = null;
-        FileInputStream fis = null;
+        BmessageParser bmsg;
         try {
-            fis = new FileInputStream(file);
-            if(file.length() > allowedMem){
-                rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
-                rsp.msgHandle = null;
-                Log.d(TAG,"Message body is larger than the max length allowed");
-                return rsp;
-            } else {
-                readBytes = new byte[(int) file.length()];
-                fis.read(readBytes);
-            }
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, e.getMessage());
+            bmsg = BmessageParser.parse(in, allowedMem);
+        } catch (BmessageParser.EntityTooLargeException e) {
+            rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
+            rsp.msgHandle = null;
+            Log.d(TAG,"Message body is larger than the max length allowed");
             return rsp;
         } catch (IOException e) {
             Log.e(TAG, e.getMessage());
             return rsp;
-        } catch (SecurityException e) {
-            Log.e(TAG, e.getMessage());
-            return rsp;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while closing stream"+ e.toString());
-                }
-            }
         }
 
-        String readStr = "";
-        String type = "";
-        try {
-            readStr = new String(readBytes);
-            type = MapUtils.fetchType(readStr);
-        } catch (Exception e) {
-            throw new BadRequestException(e.getMessage());
-        }
+        String type = bmsg.getType();
         if (type == null) {
             rsp.response = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             return rsp;
         }
         if (SMS_GSM.equalsIgnoreCase(type) || SMS_CDMA.equalsIgnoreCase(type)) {
-            return pushMessageSms(rsp, readStr, name, bluetoothMasAppParams);
+            return pushMessageSms(rsp, bmsg, name, bluetoothMasAppParams);
         } else if (MMS.equals(type) && ((int)bluetoothMasAppParams.Charset != 0)) {
             // If the message to be pushed is an MMS message, extract any text,
             // discard
@@ -347,7 +337,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                  * then send the message out to the network the next time it is
                  * scheduled to run
                  */
-                rsp = pushMessageMms(rsp, readStr, name);
+                rsp = pushMessageMms(rsp, bmsg, name);
                 return rsp;
             }
         }
@@ -373,6 +363,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         if (handle < OFFSET_START && handle > OFFSET_END) {
             return ResponseCodes.OBEX_HTTP_NOT_FOUND;
         }
+        mMessageCache.remove(mSupportedMessageTypes, msgHandle);
         if (handle >= MMS_OFFSET_START) { // MMS
             return setMsgStatusMms(handle, bluetoothMasAppParams);
         } else { // SMS
@@ -813,34 +804,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         cr.close();
     }
 
-    /**
-     * Obtain the number of MMS messages
-     */
-    private int getNumMmsMsgs(String name) {
-        int msgCount = 0;
-
-        if ( name.equalsIgnoreCase(DELETED)){
-            Uri uri = Uri.parse("content://mms/");
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor cursor = cr.query(uri, null, "thread_id = " + DELETED_THREAD_ID
-                    + " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE, null, null);
-            if(cursor != null){
-                msgCount = cursor.getCount();
-                cursor.close();
-            }
-        } else {
-            Uri uri = Uri.parse("content://mms/" + name);
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor cursor = cr.query(uri, null, "thread_id <> " + DELETED_THREAD_ID
-                    + " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE, null, null);
-            if(cursor != null){
-                msgCount = cursor.getCount();
-                cursor.close();
-            }
-        }
-        return msgCount;
-    }
-
     /**
      * Obtain the MMS message ID from Handle
      */
@@ -862,24 +825,167 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     }
 
     /**
-     * Obtain the MMS message MID list
+     * Fields of one MMS needed to build its message listing entry
      */
-    private List<Integer> getMmsMsgMIDs(String whereClause) {
-        List<Integer> idList = new ArrayList<Integer>();
-        Uri uri = Uri.parse("content://mms");
+    private static class MmsListEntry {
+        long id;
+        int msgBox;
+        String subject;
+        String date;
+        int size;
+        boolean read;
+        int priority;
+        boolean locked;
+        String address;
+        String text;
+
+        boolean isOutgoing() {
+            return msgBox != 1;
+        }
+    }
+
+    /**
+     * Load the listing fields of the first limit MMS matching the where
+     * clause, in the given sort order, with one pdu query, then one addr and
+     * one part query per window of ids
+     */
+    private List<MmsListEntry> loadMmsListEntries(String whereClause, String sortOrder,
+            int limit) {
+        List<MmsListEntry> entries = new ArrayList<MmsListEntry>();
         ContentResolver cr = mContext.getContentResolver();
-        Cursor crID = cr.query(uri, null, whereClause, null, null);
-        if (crID != null) {
-            int idInd = crID.getColumnIndex("_id");
-            if (crID.getCount() != 0) {
-                crID.moveToFirst();
-                do {
-                    idList.add(Integer.valueOf(crID.getInt(idInd)));
-                } while (crID.moveToNext());
+        Cursor cursor = cr.query(Uri.parse("content://mms"), MMS_LIST_PROJECTION,
+                whereClause, null, sortOrder);
+        if (cursor == null) {
+            return entries;
+        }
+        try {
+            while (entries.size() < limit && cursor.moveToNext()) {
+                MmsListEntry entry = new MmsListEntry();
+                entry.id = cursor.getLong(0);
+                entry.msgBox = cursor.getInt(1);
+                entry.subject = cursor.getString(2);
+                entry.date = cursor.getString(3);
+                entry.size = cursor.getInt(4);
+                entry.read = cursor.getInt(5) != 0;
+                entry.priority = cursor.getInt(6);
+                entry.locked = cursor.getInt(7) != 0;
+                entries.add(entry);
             }
-            crID.close();
+        } finally {
+            cursor.close();
+        }
+
+        for (int start = 0; start < entries.size(); start += MMS_LIST_BATCH_SIZE) {
+            int end = Math.min(start + MMS_LIST_BATCH_SIZE, entries.size());
+            HashMap<Long, MmsListEntry> window = new HashMap<Long, MmsListEntry>();
+            StringBuilder ids = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                MmsListEntry entry = entries.get(i);
+                window.put(entry.id, entry);
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(entry.id);
+            }
+            loadMmsAddresses(window, ids.toString());
+            loadMmsTexts(window, ids.toString());
+        }
+        if (V) Log.v(TAG, "loaded " + entries.size() + " MMS listing entries");
+        return entries;
+    }
+
+    /**
+     * Fill in the addresses of a window of MMS. Multiple addresses are
+     * separated by semicolon as in getMmsMsgAddress.
+     *
+     * MmsProvider only serves the addr table per message (mms/#/addr), so the
+     * addresses are read with subqueries on addr through the pdu table, which
+     * content://mms serves with the projection as given: the address count
+     * and the first MMS_BATCH_ADDRESSES addresses in _id order, each in a
+     * column of its own. Messages with more addresses, and whole windows the
+     * provider does not serve this way, are read one message at a time.
+     */
+    private void loadMmsAddresses(HashMap<Long, MmsListEntry> window, String ids) {
+        final String addresses = "FROM addr WHERE msg_id=pdu._id"
+                + " AND address!='insert-address-token'";
+        String[] projection = new String[2 + MMS_BATCH_ADDRESSES];
+        projection[0] = "_id";
+        projection[1] = "(SELECT count(*) " + addresses + ")";
+        for (int i = 0; i < MMS_BATCH_ADDRESSES; i++) {
+            projection[2 + i] = "(SELECT address " + addresses + " ORDER BY _id LIMIT 1 OFFSET "
+                    + i + ")";
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(Uri.parse("content://mms"),
+                    projection, "_id IN (" + ids + ")", null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    MmsListEntry entry = window.get(cursor.getLong(0));
+                    if (entry != null) {
+                        entry.address = readMmsAddresses(cursor);
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "batched MMS address query failed: " + e.toString());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "batched MMS address query rejected: " + e.toString());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (MmsListEntry entry : window.values()) {
+            if (entry.address == null) {
+                entry.address = getMmsMsgAddress(entry.id);
+            }
+        }
+    }
+
+    /**
+     * Addresses of the current row of the batched address query, null if
+     * the message has more than the row holds
+     */
+    private static String readMmsAddresses(Cursor cursor) {
+        int count = cursor.getInt(1);
+        if (count > MMS_BATCH_ADDRESSES) {
+            return null;
+        }
+        if (count == 1) {
+            return cursor.getString(2);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(cursor.getString(2 + i)).append(';');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Fill in the first text/plain part of a window of MMS
+     */
+    private void loadMmsTexts(HashMap<Long, MmsListEntry> window, String ids) {
+        Cursor cursor = mContext.getContentResolver().query(Uri.parse("content://mms/part"),
+                new String[] {"mid", "text"},
+                "mid IN (" + ids + ") AND ct=\"text/plain\"", null, "_id");
+        if (cursor == null) {
+            return;
+        }
+        HashSet<Long> seen = new HashSet<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                Long msgId = Long.valueOf(cursor.getLong(0));
+                if (seen.add(msgId)) {
+                    MmsListEntry entry = window.get(msgId);
+                    if (entry != null) {
+                        entry.text = cursor.getString(1);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
         }
-        return idList;
     }
 
     /**
@@ -953,26 +1059,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return whereClause;
     }
 
-    /**
-     * Obtain the MMS msg_box id
-     */
-    private int getMmsMsgBox(long msgID) {
-        int val = -1;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int msgBoxInd = cursor.getColumnIndex("msg_box");
-                val = cursor.getInt(msgBoxInd);
-            }
-            cursor.close();
-        }
-        return val;
-    }
-
     /**
      * Obtain MMS message text
      */
@@ -993,26 +1079,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return text;
     }
 
-    /**
-     * Obtain the MMS message Subject
-     */
-    private String getMmsMsgSubject(long msgID) {
-        String text = null;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int subjectInd = cursor.getColumnIndex("sub");
-                text = cursor.getString(subjectInd);
-            }
-            cursor.close();
-        }
-        return text;
-    }
-
     /**
      * Obtain the MMS message Date
      */
@@ -1033,129 +1099,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
     }
 
-    /**
-     * Obtain the MMS attachment size
-     */
-    private int getMmsMsgAttachSize(long msgID) {
-        int attachSize = 0;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int sizeInd = cursor.getColumnIndex("m_size");
-                attachSize = cursor.getInt(sizeInd);
-            }
-            cursor.close();
-        }
-        return attachSize;
-
-    }
-
-    /**
-     * Obtain the MMS message read status
-     */
-    private String getMmsMsgReadStatus(long msgID) {
-        String text = null;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int readInd = cursor.getColumnIndex("read");
-                if (cursor.getInt(readInd) == 0) {
-                    text = "no";
-                } else {
-                    text = "yes";
-                }
-            }
-            cursor.close();
-        }
-        return text;
-    }
-
-    /**
-     * Obtain the MMS message read sent
-     */
-    private String getMmsMsgReadSent(long msgID) {
-        String text = null;
-        if ( getMmsMsgBox(msgID) == 2 ) {
-            // Sent folder
-            text = "yes";
-        } else {
-            text = "no";
-        }
-        return text;
-    }
-
-    /**
-     * Obtain the MMS message priority
-     */
-    private String getMmsMsgPriority(long msgID) {
-        final int PRIORITY_LOW = 0X80;
-        final int PRIORITY_NORMAL = 0X81;
-        final int PRIORITY_HIGH = 0X82;
-
-        String text = null;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null && cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            int priInd = cursor.getColumnIndex("pri");
-
-            switch (cursor.getInt(priInd)) {
-            case PRIORITY_LOW:
-                text = "no";
-                break;
-            case PRIORITY_NORMAL:
-                text = "no";
-                break;
-            case PRIORITY_HIGH:
-                text = "yes";
-                break;
-
-            default:
-                text = "no";
-                break;
-            }
-        }
-        if (cursor != null) {
-            cursor.close();
-        }
-        return text;
-    }
-
-    /**
-     * Obtain the MMS message read protected
-     */
-    private String getMmsMsgProtected(long msgID) {
-        String text = null;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int readInd = cursor.getColumnIndex("locked");
-                if (cursor.getInt(readInd) == 0) {
-                    text = "no";
-                } else {
-                    text = "yes";
-                }
-            }
-            cursor.close();
-        }
-        return text;
-
-    }
-
     /**
      * Obtain MMS message address
      * When Multiple addresses are present return the addresses separated by semicolon
@@ -1249,9 +1192,11 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     }
 
     /**
-     * Build an MMS bMessage when given a message handle
+     * Build an MMS bMessage when given a message handle. A bMessage with
+     * attachments is streamed from the part provider when it is sent.
      */
-    private BluetoothMasMessageRsp bldMmsBmsg(long msgID, BluetoothMasMessageRsp rsp) {
+    private BluetoothMasMessageRsp bldMmsBmsg(long msgID, BluetoothMasMessageRsp rsp,
+            boolean attachments) {
         Cursor cr = null;
         Uri uri = Uri.parse("content://mms/");
         String whereClause = " _id = " + msgID;
@@ -1328,63 +1273,42 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                     bmsg.setOriginatorVcard_phone_number(getOwnerNumber());
                 }
             }
-            StringBuilder sb = new StringBuilder();
+            BmessageWriter writer = new BmessageWriter(mContext.getContentResolver());
             Date date = new Date(Integer.valueOf(getMmsMsgDate(msgID)));
-            sb.append("Date: ").append(date.toString()).append("\r\n");
+            writer.addText("Date: " + date.toString() + "\r\n");
 
             boolean MIME = true;
             boolean msgFormat = MIME;
-            sb.append(bldMMSBody(bmsg, msgFormat, msgID));
-            bmsg.setBody_msg(sb.toString());
-            bmsg.setBody_length(sb.length() + 22);
+            bldMMSBody(writer, bmsg, msgFormat, msgID, attachments);
+            bmsg.setBody_length((int) writer.getLength());
             bmsg.setBody_encoding("8BIT");
-            // Send a bMessage
+            // The envelope goes around the MSG block the writer adds
             String str = MapUtils.toBmessageMMS(bmsg);
             if (V) Log.v(TAG, str);
-            if (str != null && (str.length() > 0)) {
-                final String FILENAME = "message" + getMasId();
-                FileOutputStream bos = null;
-                File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-                file.delete();
-
-                try {
-                    bos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                    bos.write(str.getBytes());
-                    bos.flush();
-                    bos.close();
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG, "Unable to write " + FILENAME, e);
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to write " + FILENAME, e);
-                }
-
-                File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
-                if (fileR.exists() == true) {
-                    rsp.file = fileR;
-                    rsp.fractionDeliver = 1;
+            final int split = str.indexOf("END:BBODY");
+            if (split > 0) {
+                writer.setEnvelope(str.substring(0, split), str.substring(split));
+                if (writer.hasParts()) {
+                    rsp.bodyWriter = writer;
+                } else {
+                    rsp.body = writer.toByteArray();
                 }
+                rsp.fractionDeliver = 1;
             }
         }
         cr.close();
         return rsp;
     }
 
-    private boolean isOutgoingMMSMessage(long mmsMsgID) {
-        if (getMmsMsgBox(mmsMsgID) == 1) {
-            return false;
-        }
-        return true;
-    }
-
     /**
      * This method constructs an MMS message that is added to the message list
      * which is used to construct a message listing
      */
-    private MsgListingConsts bldMmsMsgLstItem(long mmsMsgID, BluetoothMasAppParams appParams,
+    private MsgListingConsts bldMmsMsgLstItem(MmsListEntry mms, BluetoothMasAppParams appParams,
             String folderName, String datetimeStr) {
 
         MsgListingConsts ml = new MsgListingConsts();
-        String address = getMmsMsgAddress(mmsMsgID);
+        String address = mms.address;
         boolean isMultipleAddress = false;
         String addressTokens[] = null;
         if ((address != null) && address.contains(";")) {
@@ -1399,11 +1323,11 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
 
         // Set the message handle
-        ml.setMsg_handle(mmsMsgID + MMS_OFFSET_START);
+        ml.setMsg_handle(mms.id + MMS_OFFSET_START);
 
         // Set the message subject
         if ((appParams.ParameterMask & BIT_SUBJECT) != 0) {
-            ml.setSubject(getMmsMsgSubject(mmsMsgID));
+            ml.setSubject(mms.subject);
             ml.sendSubject = true;
         }
 
@@ -1414,7 +1338,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         // Construct msg body
         if ((appParams.ParameterMask & BIT_TEXT) != 0) {
-            if ((getMmsMsgTxt(mmsMsgID) != null)) {
+            if (mms.text != null) {
                 ml.setContains_text("yes");
             } else {
                 ml.setContains_text("no");
@@ -1424,8 +1348,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         // Set text size
         if ((appParams.ParameterMask & BIT_SIZE) != 0) {
-            final String mmsMsgTxt = getMmsMsgTxt(mmsMsgID);
-            ml.setSize(mmsMsgTxt == null ? 0 : mmsMsgTxt.length());
+            ml.setSize(mms.text == null ? 0 : mms.text.length());
         }
 
         // Set message type
@@ -1435,11 +1358,11 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         if ((appParams.ParameterMask & BIT_RECIPIENT_NAME) != 0) {
             String recipientName = "";
-            if (isOutgoingMMSMessage(mmsMsgID) == false) {
+            if (!mms.isOutgoing()) {
                 recipientName = getOwnerName();
             } else {
                 if(!isMultipleAddress) {
-                    recipientName = getContactName(getMmsMsgAddress(mmsMsgID));
+                    recipientName = getContactName(address);
                 } else {
                     for (int i=0; i < addressTokens.length; i++) {
                         recipientName = recipientName.concat(getContactName(addressTokens[i]) + ";");
@@ -1454,10 +1377,10 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             // TODO: In case of a SMS this is the recipient's phone number
             // in canonical form (chapter 2.4.1 of [5])
             String recipientAddressing = null;
-            if (isOutgoingMMSMessage(mmsMsgID) == false) {
+            if (!mms.isOutgoing()) {
                 recipientAddressing = getOwnerNumber();
             } else {
-                recipientAddressing = getMmsMsgAddress(mmsMsgID);
+                recipientAddressing = address;
             }
             ml.setRecepient_addressing(recipientAddressing);
             ml.setSendRecipient_addressing(true);
@@ -1465,11 +1388,11 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         if ((appParams.ParameterMask & BIT_SENDER_NAME) != 0) {
             String senderName = "";
-            if (isOutgoingMMSMessage(mmsMsgID) == true) {
+            if (mms.isOutgoing()) {
                 senderName = getOwnerName();
             } else {
                 if(!isMultipleAddress) {
-                    senderName = getContactName(getMmsMsgAddress(mmsMsgID));
+                    senderName = getContactName(address);
                 } else {
                     for (int i=0; i < addressTokens.length; i++) {
                         senderName = senderName.concat(getContactName(addressTokens[i]) + ";");
@@ -1482,37 +1405,32 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         if ((appParams.ParameterMask & BIT_SENDER_ADDRESSING) != 0) {
             String senderAddressing = null;
-            if (isOutgoingMMSMessage(mmsMsgID) == true) {
+            if (mms.isOutgoing()) {
                 senderAddressing = getOwnerNumber();
             } else {
-                senderAddressing = getMmsMsgAddress(mmsMsgID);
+                senderAddressing = address;
             }
             ml.setSender_addressing(senderAddressing);
         }
 
         // Set read status
         if ((appParams.ParameterMask & BIT_READ) != 0) {
-            final String mmsMsgStatus = getMmsMsgReadStatus(mmsMsgID);
-            if (mmsMsgStatus != null && mmsMsgStatus.equalsIgnoreCase("yes")) {
-                ml.setRead("yes");
-            } else {
-                ml.setRead("no");
-            }
+            ml.setRead(mms.read ? "yes" : "no");
         }
 
         // Set priority
         if ((appParams.ParameterMask & BIT_PRIORITY) != 0) {
-            ml.setPriority(getMmsMsgPriority(mmsMsgID));
+            ml.setPriority(mms.priority == MMS_PRIORITY_HIGH ? "yes" : "no");
         }
 
         // Set Protected
         if ((appParams.ParameterMask & BIT_PROTECTED) != 0) {
-            ml.setMsg_protected(getMmsMsgProtected(mmsMsgID));
+            ml.setMsg_protected(mms.locked ? "yes" : "no");
         }
 
         // Set sent
         if ((appParams.ParameterMask & BIT_SENT) != 0) {
-            ml.setSent(getMmsMsgReadSent(mmsMsgID));
+            ml.setSent(mms.msgBox == 2 ? "yes" : "no");
         }
 
         // Set reception status
@@ -1522,7 +1440,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         // Set attachment size
         if ((appParams.ParameterMask & BIT_ATTACHMENT_SIZE) != 0) {
-            ml.setAttachment_size(getMmsMsgAttachSize(mmsMsgID));
+            ml.setAttachment_size(mms.size);
         }
 
         return ml;
@@ -1571,7 +1489,8 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
      * This method is used to take a Bmessage that was pushed and move it to the
      * folder
      */
-    private String addToMmsFolder(String folderName, String mmsMsg) throws BadRequestException {
+    private String addToMmsFolder(String folderName, BmessageParser mmsMsg)
+            throws BadRequestException {
         if (folderName == null) {
             return null;
         }
@@ -1708,13 +1627,15 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
      * Method to construct body of bmessage using either MIME or no MIME
      *
      */
-    private String bldMMSBody(BmessageConsts bMsg, boolean msgType, long msgID) {
+    private void bldMMSBody(BmessageWriter writer, BmessageConsts bMsg, boolean msgType,
+            long msgID, boolean attachments) {
         boolean MIME = true;
         StringBuilder sb = new StringBuilder();
 
         if (msgType == MIME) {
             Random randomGenerator = new Random();
             int randomInt = randomGenerator.nextInt(1000);
+            // The '.' keeps the boundary out of base64 encoded attachments
             String boundary = "MessageBoundary."+randomInt;
             final String mmsMsgTxt = getMmsMsgTxt(msgID);
             if(mmsMsgTxt != null){
@@ -1737,16 +1658,57 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             sb.append("Content-Transfer-Encoding: 8bit").append("\r\n");
             sb.append("Content-Disposition:inline").append("\r\n")
                     .append("\r\n");
-            sb.append(getMmsMsgTxt(msgID)).append("\r\n");
-            sb.append("--"+boundary+"--").append("\r\n")
-                    .append("\r\n");
+            sb.append(mmsMsgTxt).append("\r\n");
+            writer.addText(sb.toString());
+            if (attachments) {
+                addMmsAttachments(writer, msgID, boundary);
+            }
+            writer.addText("--" + boundary + "--\r\n\r\n");
         } else {
             sb.append("Subject:").append("Not Implemented").append("\r\n");
             sb.append("From:").append(bMsg.originator_vcard_phone_number)
                     .append("\r\n");
             sb.append(getMmsMsgTxt(msgID)).append("\r\n").append("\r\n");
+            writer.addText(sb.toString());
+        }
+    }
+
+    /**
+     * Add the parts of an MMS other than its text and SMIL as base64 MIME
+     * parts; their content is only read when the bMessage is sent
+     */
+    private void addMmsAttachments(BmessageWriter writer, long msgID, String boundary) {
+        Cursor cursor = mContext.getContentResolver().query(Uri.parse("content://mms/part"),
+                new String[] {"_id", "ct", "name", "cl"},
+                "mid=" + msgID + " AND ct<>\"text/plain\" AND ct<>\"application/smil\"",
+                null, "_id");
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(2);
+                if (name == null || name.length() == 0) {
+                    name = cursor.getString(3);
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("--").append(boundary).append("\r\n");
+                sb.append("Content-Type: ").append(cursor.getString(1));
+                if (name != null && name.length() > 0) {
+                    sb.append("; name=\"").append(name).append("\"");
+                }
+                sb.append("\r\n");
+                sb.append("Content-Transfer-Encoding: base64").append("\r\n");
+                sb.append("Content-Disposition:attachment").append("\r\n")
+                        .append("\r\n");
+                final Uri partUri = Uri.parse("content://mms/part/" + cursor.getLong(0));
+                if (!writer.addPart(sb.toString(), partUri)) {
+                    Log.e(TAG, "Skipping unreadable MMS part " + partUri);
+                }
+            }
+        } finally {
+            cursor.close();
         }
-        return sb.toString();
     }
 
     /**
@@ -1990,6 +1952,18 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
         return ml;
     }
+
+    /**
+     * Originator and recipient filters are matched against contact names in
+     * memory and cannot be pushed down to the provider query
+     */
+    private boolean hasAddressFilter(BluetoothMasAppParams appParams) {
+        return ((appParams.FilterOriginator != null)
+                && (appParams.FilterOriginator.length() != 0))
+                || ((appParams.FilterRecipient != null)
+                && (appParams.FilterRecipient.length() != 0));
+    }
+
     private BluetoothMsgListRsp msgListSms(List<MsgListingConsts> msgList, String folder,
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
@@ -1997,9 +1971,37 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         Uri uri = Uri.parse(url);
         ContentResolver cr = mContext.getContentResolver();
         String whereClause  = SmsMmsUtils.getConditionStringSms(folder, appParams);
+        int windowEnd = getListingWindowEnd(appParams);
+
+        // Without originator/recipient filters every row matches, so the size
+        // and the window can be taken from the provider directly
+        boolean pushDown = !hasAddressFilter(appParams);
+        String sortOrder = "date desc";
+        if (pushDown) {
+            rsp.msgListingSize += getMessageCount(uri, whereClause);
+            if ((rsp.newMessage == 0) && hasUnreadMessage(uri, whereClause, "read")) {
+                rsp.newMessage = 1;
+            }
+            if (windowEnd == 0) {
+                rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
+                bmlr.messageListingSize = rsp.msgListingSize;
+                bmlr.rsp = rsp;
+                bmlr.msgList = msgList;
+                return bmlr;
+            }
+        }
 
-        Cursor cursor = cr.query(uri, null, whereClause, null,
-                "date desc");
+        /*
+         * For incoming message, originator is the remote contact. For
+         * outgoing message, originator is the owner. The owner side of the
+         * filters is the same for every message.
+         */
+        FilterMatcher originatorFilter = FilterMatcher.compile(appParams.FilterOriginator);
+        FilterMatcher recipientFilter = FilterMatcher.compile(appParams.FilterRecipient);
+        boolean ownerIsOriginator = ownerMatches(originatorFilter);
+        boolean ownerIsRecipient = ownerMatches(recipientFilter);
+
+        Cursor cursor = cr.query(uri, null, whereClause, null, sortOrder);
 
         if (cursor != null && V) {
                 Log.v(TAG, "move to First" + cursor.moveToFirst());
@@ -2029,64 +2031,14 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                  * contact For outgoing message, originator is the
                  * owner.
                  */
-                String filterString = null;
-                String oname = getOwnerName();
-                if (oname == null) {
-                    oname = "";
-                }
-                String onumber = getOwnerNumber();
-                if (onumber == null) {
-                    onumber = "";
-                }
-
                 int msgType = cursor.getInt(typeInd);
-                String regExpOrig = null;
-                String regExpRecipient = null;
-                if (appParams.FilterOriginator != null) {
-                    regExpOrig = appParams.FilterOriginator.replace("*", ".*[0-9A-Za-z].*");
-                }
-                if (appParams.FilterRecipient != null) {
-                    regExpRecipient = appParams.FilterRecipient.replace("*", ".*[0-9A-Za-z].*");
-                }
-                if (isOutgoingSMSMessage(msgType) == true) {
-                    if ((appParams.FilterOriginator != null)
-                            && (appParams.FilterOriginator.length() != 0)
-                            && !(oname.matches(".*"+regExpOrig+".*"))
-                            && !(onumber.matches(".*"+regExpOrig+".*"))) {
-                        continue;
-                    }
-                    if ((appParams.FilterRecipient != null)
-                            && (appParams.FilterRecipient.length() != 0)) {
-                        filterString = appParams.FilterRecipient.trim();
-                        if (V){
-                                Log.v(TAG, "appParams.FilterRecipient"
-                                    + appParams.FilterRecipient);
-                        }
-                    }
-                }
-                if (isOutgoingSMSMessage(msgType) == false) {
-                    if ((appParams.FilterRecipient != null)
-                            && (appParams.FilterRecipient.length() != 0)
-                            && !(oname.matches(".*"+regExpRecipient+".*"))
-                            && !(onumber.matches(".*"+regExpRecipient+".*"))) {
-                        continue;
-                    }
-                    if ((appParams.FilterOriginator != null)
-                            && (appParams.FilterOriginator.length() != 0)) {
-                        filterString = appParams.FilterOriginator.trim();
-                        if (V){
-                                Log.v(TAG, "appParams.FilterOriginator"
-                                    + appParams.FilterOriginator);
-                        }
-                    }
+                boolean outgoing = isOutgoingSMSMessage(msgType);
+                if (!(outgoing ? ownerIsOriginator : ownerIsRecipient)) {
+                    continue;
                 }
-
-                if (filterString != null) {
-                    if (V){
-                        Log.v(TAG, "filterString = " + filterString);
-                    }
-                    if (allowEntry(cursor.getString(addressInd),
-                            filterString) == true) {
+                FilterMatcher remoteFilter = outgoing ? recipientFilter : originatorFilter;
+                if (remoteFilter != null) {
+                    if (allowEntry(cursor.getString(addressInd), remoteFilter)) {
                         if (V){
                                 Log.v(TAG,
                                     " ALLOWED : "
@@ -2103,14 +2055,26 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                         continue;
                     }
                 }
-                if (V) Log.v(TAG, " msgListSize " + rsp.msgListingSize);
-                rsp.msgListingSize++;
+                if (!pushDown) {
+                    if (V) Log.v(TAG, " msgListSize " + rsp.msgListingSize);
+                    rsp.msgListingSize++;
+
+                    // New Message?
+                    if ((rsp.newMessage == 0)
+                            && (cursor.getInt(readInd) == 0)) {
+                        rsp.newMessage = 1;
+                    }
+                }
 
                 /*
-                 * Don't want the listing; just send the listing size
-                 * after applying all the filters.
+                 * Don't build entries past the requested window; just count
+                 * them after applying all the filters, unless they are
+                 * counted already.
                  */
-                if (appParams.MaxListCount == 0) {
+                if (msgList.size() >= windowEnd) {
+                    if (pushDown) {
+                        break;
+                    }
                     continue;
                 }
                 String msgIdSms = cursor.getString(idInd);
@@ -2123,12 +2087,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                                 timestampSms, addressSms, msgIdSms,
                                 readStatusSms, msgType);
 
-                // New Message?
-                if ((rsp.newMessage == 0)
-                        && (cursor.getInt(readInd) == 0)) {
-                    rsp.newMessage = 1;
-                }
-
                 msgList.add(ml);
             } while (cursor.moveToNext());
         }
@@ -2145,121 +2103,83 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     private BluetoothMsgListRsp msgListMms(List<MsgListingConsts> msgList, String name,
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
-        String filterString = null;
 
-        String oname = getOwnerName();
-        if (oname == null) {
-            oname = "";
-        }
-
-        String onumber = getOwnerNumber();
-        if (onumber == null) {
-            onumber = "";
-        }
-
-        Log.v(TAG, "oname = " + oname + "onumber = " + onumber);
-
-        String regExpOrig = null;
-        String regExpRecipient = null;
-
-        if (appParams.FilterOriginator != null) {
-            regExpOrig = appParams.FilterOriginator.replace("*", ".*[0-9A-Za-z].*");
-        }
-
-        if (appParams.FilterRecipient != null) {
-            regExpRecipient = appParams.FilterRecipient.replace("*", ".*[0-9A-Za-z].*");
-        }
-
-        Log.v(TAG, " regExpOrig = " + regExpOrig + " regExpRecipient = " + regExpRecipient);
-
-        if (getNumMmsMsgs(name) != 0) {
-            List<Integer> list = getMmsMsgMIDs(bldMmsWhereClause(
-                    appParams, SmsMmsUtils.getFolderTypeMms(name)));
-            for (int msgId : list) {
+        FilterMatcher originatorFilter = FilterMatcher.compile(appParams.FilterOriginator);
+        FilterMatcher recipientFilter = FilterMatcher.compile(appParams.FilterRecipient);
+        boolean ownerIsOriginator = ownerMatches(originatorFilter);
+        boolean ownerIsRecipient = ownerMatches(recipientFilter);
+        if (V) Log.v(TAG, "originatorFilter = " + originatorFilter
+                + " recipientFilter = " + recipientFilter);
+
+        String whereClause = bldMmsWhereClause(appParams, SmsMmsUtils.getFolderTypeMms(name));
+        // The owner is the originator of outgoing and the recipient of
+        // incoming messages; drop the side the owner does not match before
+        // any address or part is loaded
+        if (!ownerIsOriginator && !ownerIsRecipient) {
+            whereClause += " AND 0";
+        } else if (!ownerIsOriginator) {
+            whereClause += " AND msg_box = 1";
+        } else if (!ownerIsRecipient) {
+            whereClause += " AND msg_box <> 1";
+        }
+        int windowEnd = getListingWindowEnd(appParams);
+        boolean pushDown = !hasAddressFilter(appParams);
+        String sortOrder = "date desc";
+        if (pushDown) {
+            Uri uri = Uri.parse("content://mms");
+            rsp.msgListingSize += getMessageCount(uri, whereClause);
+            if ((rsp.newMessage == 0) && hasUnreadMessage(uri, whereClause, "read")) {
+                rsp.newMessage = 1;
+            }
+        }
+
+        // Counted already, so only the window has to be loaded
+        List<MmsListEntry> list = (pushDown && windowEnd == 0) ? new ArrayList<MmsListEntry>()
+                : loadMmsListEntries(whereClause, sortOrder,
+                        pushDown ? windowEnd : Integer.MAX_VALUE);
+        if (!list.isEmpty()) {
+            for (MmsListEntry mms : list) {
                 if (V){
-                        Log.v(TAG, "\n MMS Text message ==> "
-                            + getMmsMsgTxt(msgId));
+                        Log.v(TAG, "\n MMS Text message ==> " + mms.text);
                 }
                 if (V){
-                        Log.v(TAG, "\n MMS message subject ==> "
-                            + getMmsMsgSubject(msgId));
+                        Log.v(TAG, "\n MMS message subject ==> " + mms.subject);
                 }
-                if (isOutgoingMMSMessage(msgId) == false) {
-                    if ((appParams.FilterRecipient != null)
-                        && (appParams.FilterRecipient.length() != 0)
-                        && !(oname.matches(".*"+regExpRecipient+".*"))
-                        && !(onumber.matches(".*"+regExpRecipient+".*"))) {
-                            continue;
-                        }
-                    if ((appParams.FilterOriginator != null)
-                        && (appParams.FilterOriginator.length() != 0)) {
-                        filterString = appParams.FilterOriginator.trim();
+                FilterMatcher remoteFilter = mms.isOutgoing() ? recipientFilter : originatorFilter;
+                if (remoteFilter != null) {
+                    if (allowEntry(mms.address, remoteFilter)) {
                         if (V){
-                            Log.v(TAG, " appParams.FilterOriginator"
-                                + appParams.FilterOriginator);
+                            Log.v(TAG, " ALLOWED : " + mms.address);
                         }
-                    }
-                }
-
-                if (isOutgoingMMSMessage(msgId) == true) {
-                    if ((appParams.FilterOriginator != null)
-                        && (appParams.FilterOriginator.length() != 0)
-                        && !(oname.matches(".*"+regExpOrig+".*"))
-                        && !(onumber.matches(".*"+regExpOrig+".*"))) {
-                        continue;
-                    }
-
-                    if ((appParams.FilterRecipient != null)
-                        && (appParams.FilterRecipient.length() != 0)) {
-                        filterString = appParams.FilterRecipient.trim();
+                    } else {
                         if (V){
-                            Log.v(TAG, " appParams.FilterRecipient"
-                                + appParams.FilterRecipient);
+                            Log.v(TAG, " DENIED : " + mms.address);
                         }
+                        continue;
                     }
                 }
 
-                if (filterString != null) {
-                    if (V){
-                        Log.v(TAG, " filterString = " + filterString);
-                    }
-                    String ContactName = null;
-                    String ContactNum = null;
-
-                    ContactName = getContactName(getMmsMsgAddress(msgId));
-                    ContactNum = getMmsMsgAddress(msgId);
-
-                    if (ContactName.matches(filterString) || ContactNum.matches(filterString)) {
-                        if (V){
-                            Log.v(TAG, " ALLOWED : "
-                                + ContactName + " - " + ContactNum );
-                        }
-                    } else {
-                        if (V){
-                            Log.v(TAG, " DENIED : "
-                                + ContactName + " - " + ContactNum );
-                        }
-                        continue;
+                if (!pushDown) {
+                    rsp.msgListingSize++;
+                    if ((rsp.newMessage == 0) && !mms.read) {
+                        rsp.newMessage = 1;
                     }
                 }
+                if (msgList.size() >= windowEnd) {
+                    continue;
+                }
 
-                String datetime = getMmsMsgDate(msgId);
+                String datetime = mms.date;
                 Time time = new Time();
                 Date dt = new Date(Long.valueOf(datetime));
                 time.set((dt.getTime() * 1000));
 
                 String datetimeStr = time.toString().substring(0, 15);
 
-                MsgListingConsts mmsl = bldMmsMsgLstItem(msgId, appParams, name, datetimeStr);
+                MsgListingConsts mmsl = bldMmsMsgLstItem(mms, appParams, name, datetimeStr);
                 mmsl.msgInfo.setDateTime(datetimeStr);
 
-                if ((rsp.newMessage == 0)
-                        && "no".equalsIgnoreCase(getMmsMsgReadStatus(msgId))) {
-                    rsp.newMessage = 1;
-                }
-
                 msgList.add(mmsl);
-                rsp.msgListingSize++;
             }
         }
         rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
@@ -2291,32 +2211,14 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         if (V) Log.v(TAG, strSms);
 
         if (strSms != null && (strSms.length() > 0)) {
-            final String FILENAME = "message" + getMasId();
-            FileOutputStream bos = null;
-            File file = new File(context.getFilesDir() + "/" + FILENAME);
-            file.delete();
-
-            try {
-                bos = context.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                bos.write(strSms.getBytes());
-                bos.flush();
-                bos.close();
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            }
-
-            File fileR = new File(context.getFilesDir() + "/" + FILENAME);
-            if (fileR.exists() == true) {
-                rsp.file = fileR;
-                rsp.fractionDeliver = 1;
-            }
+            rsp.body = strSms.getBytes();
+            rsp.fractionDeliver = 1;
         }
         return rsp;
     }
 
-    private BluetoothMasMessageRsp getMessageMms(long msgHandle, BluetoothMasMessageRsp rsp) {
+    private BluetoothMasMessageRsp getMessageMms(long msgHandle, BluetoothMasMessageRsp rsp,
+            boolean attachments) {
         long mmsMsgID = 0;
         try {
             mmsMsgID = getMmsMsgHndToID(msgHandle);
@@ -2325,16 +2227,16 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             return rsp;
         }
         if (mmsMsgID > 0) {
-            rsp = bldMmsBmsg(mmsMsgID, rsp);
+            rsp = bldMmsBmsg(mmsMsgID, rsp, attachments);
         }
         return rsp;
     }
 
     private BluetoothMasPushMsgRsp pushMessageMms(BluetoothMasPushMsgRsp rsp,
-            String readStr, String name) throws BadRequestException {
+            BmessageParser bmsg, String name) throws BadRequestException {
         String fullPath = (name == null || name.length() == 0) ? mCurrentPath : mCurrentPath + "/" + name;
         if (fullPath.equalsIgnoreCase("telecom/msg/outbox")) {
-            String handle = addToMmsFolder(DRAFTS, readStr);
+            String handle = addToMmsFolder(DRAFTS, bmsg);
             if (INTERNAL_ERROR == handle) {  // == comparison valid here
                 rsp.response = ResponseCodes.OBEX_HTTP_NOT_FOUND;
                 return rsp;
@@ -2361,7 +2263,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                 folderName = splitStrings[tmp - 1];
             }
             if (folderName != null && folderName.equalsIgnoreCase(DRAFT)){
-                String handle = addToMmsFolder(folderName, readStr);
+                String handle = addToMmsFolder(folderName, bmsg);
                 if (INTERNAL_ERROR == handle) {  // == comparison valid here
                     rsp.msgHandle = null;
                     rsp.response = ResponseCodes.OBEX_HTTP_NOT_FOUND;
@@ -2403,9 +2305,9 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return sms.getMessageBody();
     }
 
-    private BluetoothMasPushMsgRsp pushMessageSms(BluetoothMasPushMsgRsp rsp, String readStr,
+    private BluetoothMasPushMsgRsp pushMessageSms(BluetoothMasPushMsgRsp rsp, BmessageParser bmsg,
             String name, BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException {
-        BmessageConsts bMsg = MapUtils.fromBmessageSMS(readStr);
+        BmessageConsts bMsg = MapUtils.fromBmessageSMS(bmsg);
         String address = bMsg.getRecipientVcard_phone_number();
         String smsText;
         if((int)bluetoothMasAppParams.Charset == 0)
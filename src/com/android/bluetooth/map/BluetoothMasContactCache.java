@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.bluetooth.map.MapUtils.SmsMmsUtils.VcardContent;
+
+import java.util.Locale;
+
+/**
+ * Contact details of message originators and recipients, shared by all MAS
+ * instances.
+ *
+ * Entries are keyed by the E.164 form of the number, or its normalized form
+ * when no country is known, or the lower case email address, so that message
+ * listings resolve each address once however it is formatted. Addresses
+ * without a contact are cached as well, failed lookups are not. The cache is
+ * dropped whenever contacts change while it is started; while it is stopped
+ * every lookup goes to the contacts provider.
+ *
+ * The contacts provider is queried outside the cache lock, so a slow lookup
+ * does not hold up the other MAS instances. Its result is only cached if the
+ * cache was not dropped meanwhile.
+ */
+public class BluetoothMasContactCache {
+    private static final String TAG = "BluetoothMasContactCache";
+
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
+            PhoneLookup._ID, PhoneLookup.DISPLAY_NAME
+    };
+
+    private static final int PHONE_LOOKUP_ID_COLUMN_INDEX = 0;
+
+    private static final int PHONE_LOOKUP_DISPLAY_NAME_COLUMN_INDEX = 1;
+
+    private static BluetoothMasContactCache INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final Context mContext;
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    private ContentObserver mObserver;
+
+    // Bumped whenever the entries are dropped
+    private long mGeneration = 0;
+
+    private volatile String mCountryIso;
+
+    private static class Entry {
+        long contactId = -1;
+        String name = "";
+        // Null until first needed by a filter
+        String email;
+    }
+
+    public static BluetoothMasContactCache getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothMasContactCache(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothMasContactCache(Context context) {
+        mContext = context;
+    }
+
+    public synchronized void start() {
+        if (mObserver != null) {
+            return;
+        }
+        mObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (V) Log.v(TAG, "contacts changed");
+                clear();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                true, mObserver);
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    public synchronized void stop() {
+        if (mObserver == null) {
+            return;
+        }
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mObserver = null;
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    /**
+     * Contact details of the address. The returned object is a copy owned by
+     * the caller; tel is the address as given and name is empty when no
+     * contact has the address. Emails are only looked up when needEmail is
+     * set.
+     */
+    public VcardContent get(String address, boolean needEmail) {
+        VcardContent vCard = new VcardContent();
+        vCard.tel = address;
+        if (address == null) {
+            return vCard;
+        }
+        final String key = getKey(address);
+        Entry entry;
+        long contactId;
+        String name;
+        String email;
+        long generation;
+        synchronized (this) {
+            entry = (mObserver != null) ? mEntries.get(key) : null;
+            generation = mGeneration;
+            if (entry != null) {
+                contactId = entry.contactId;
+                name = entry.name;
+                email = entry.email;
+            } else {
+                contactId = -1;
+                name = null;
+                email = null;
+            }
+        }
+        boolean store = false;
+        if (entry == null) {
+            entry = lookup(address);
+            if (entry == null) {
+                return vCard;
+            }
+            contactId = entry.contactId;
+            name = entry.name;
+            email = entry.email;
+            store = true;
+        }
+        if (needEmail && email == null) {
+            email = lookupEmails(contactId);
+            store = store || email != null;
+        }
+        if (store) {
+            synchronized (this) {
+                // Dropped while looking up, the result may be stale already
+                if (mObserver != null && generation == mGeneration) {
+                    if (entry.email == null) {
+                        entry.email = email;
+                    }
+                    mEntries.put(key, entry);
+                }
+            }
+        }
+        vCard.name = name;
+        if (email != null) {
+            vCard.email = email;
+        }
+        return vCard;
+    }
+
+    private String getKey(String address) {
+        if (address.indexOf('@') >= 0) {
+            return address.trim().toLowerCase(Locale.US);
+        }
+        String key = toE164(address);
+        if (TextUtils.isEmpty(key)) {
+            key = PhoneNumberUtils.normalizeNumber(address);
+        }
+        return TextUtils.isEmpty(key) ? address : key;
+    }
+
+    private String toE164(String number) {
+        String countryIso = mCountryIso;
+        if (countryIso == null) {
+            TelephonyManager tm =
+                    (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+            String iso = (tm != null) ? tm.getSimCountryIso() : null;
+            if (TextUtils.isEmpty(iso) && tm != null) {
+                iso = tm.getNetworkCountryIso();
+            }
+            countryIso = TextUtils.isEmpty(iso) ? "" : iso.toUpperCase(Locale.US);
+            mCountryIso = countryIso;
+        }
+        if (TextUtils.isEmpty(countryIso)) {
+            return null;
+        }
+        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    }
+
+    /** Contact of the address, or null if the contacts provider failed */
+    private Entry lookup(String address) {
+        Entry entry = new Entry();
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(address));
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(uri, PHONE_LOOKUP_PROJECTION,
+                    null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                entry.contactId = cursor.getLong(PHONE_LOOKUP_ID_COLUMN_INDEX);
+                String name = cursor.getString(PHONE_LOOKUP_DISPLAY_NAME_COLUMN_INDEX);
+                if (name != null) {
+                    entry.name = name;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "contact lookup failed " + e.toString());
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (entry.contactId < 0) {
+            // Nothing else to look up for an unknown address
+            entry.email = "";
+        }
+        if (V) Log.v(TAG, "looked up " + address + " -> " + entry.name);
+        return entry;
+    }
+
+    /** Emails of the contact separated by ';', or null if the provider failed */
+    private String lookupEmails(long contactId) {
+        StringBuilder emails = new StringBuilder();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(Email.CONTENT_URI,
+                    new String[] { Email.DATA }, Email.CONTACT_ID + "=?",
+                    new String[] { String.valueOf(contactId) }, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    emails.append(cursor.getString(0)).append(';');
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "email lookup failed " + e.toString());
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return emails.toString();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.ContactsContract;
+import android.provider.Telephony.MmsSms;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.bluetooth.map.MapUtils.EmailUtils;
+
+import static com.android.bluetooth.map.IBluetoothMasApp.MESSAGE_TYPE_EMAIL;
+import static com.android.bluetooth.map.IBluetoothMasApp.MESSAGE_TYPE_SMS_MMS;
+
+/**
+ * Composed bMessages served by GetMessage, shared by all MAS instances.
+ *
+ * Entries are keyed by message handle and the request parameters which
+ * change the bMessage, so a client scrolling back over recent messages gets
+ * them without querying the providers again. The SMS/MMS entries are dropped
+ * when the telephony provider reports a change, the email entries when the
+ * email provider does, and all of them when contacts change since names are
+ * part of the bMessage. While the cache is stopped nothing is cached.
+ *
+ * A bMessage is composed outside the cache lock, so an invalidation may land
+ * while it is composed. Callers read {@link #getGeneration} before composing
+ * and hand it to {@link #put}, which drops the bMessage if any invalidation
+ * happened since, rather than caching content which may already be stale.
+ */
+public class BluetoothMasMessageCache {
+    private static final String TAG = "BluetoothMasMessageCache";
+
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final int MAX_SIZE = 512 * 1024;
+
+    /** Larger bMessages, typically MMS with attachments, are not kept */
+    private static final int MAX_ENTRY_SIZE = 64 * 1024;
+
+    private static BluetoothMasMessageCache INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final Context mContext;
+
+    private final LruCache<String, byte[]> mEntries = new LruCache<String, byte[]>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    // Bumped by every invalidation
+    private long mGeneration = 0;
+
+    private ContentObserver mMmsSmsObserver;
+
+    private ContentObserver mEmailObserver;
+
+    private ContentObserver mContactsObserver;
+
+    public static BluetoothMasMessageCache getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothMasMessageCache(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothMasMessageCache(Context context) {
+        mContext = context;
+    }
+
+    public synchronized void start() {
+        if (mMmsSmsObserver != null) {
+            return;
+        }
+        mMmsSmsObserver = register(MmsSms.CONTENT_URI, MESSAGE_TYPE_SMS_MMS);
+        mEmailObserver = register(EmailUtils.EMAIL_URI, MESSAGE_TYPE_EMAIL);
+        mContactsObserver = register(ContactsContract.AUTHORITY_URI,
+                MESSAGE_TYPE_SMS_MMS | MESSAGE_TYPE_EMAIL);
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    public synchronized void stop() {
+        if (mMmsSmsObserver == null) {
+            return;
+        }
+        mContext.getContentResolver().unregisterContentObserver(mMmsSmsObserver);
+        mContext.getContentResolver().unregisterContentObserver(mEmailObserver);
+        mContext.getContentResolver().unregisterContentObserver(mContactsObserver);
+        mMmsSmsObserver = null;
+        mEmailObserver = null;
+        mContactsObserver = null;
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    private ContentObserver register(final Uri uri, final int messageTypes) {
+        ContentObserver observer = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (V) Log.v(TAG, uri + " changed");
+                clear(messageTypes);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    /**
+     * Drop the entries of MAS instances supporting any of messageTypes
+     */
+    public synchronized void clear(int messageTypes) {
+        mGeneration++;
+        for (String key : mEntries.snapshot().keySet()) {
+            if ((getMessageTypes(key) & messageTypes) != 0) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop every variant of the bMessage of msgHandle
+     */
+    public synchronized void remove(int messageTypes, String msgHandle) {
+        mGeneration++;
+        final String prefix = messageTypes + "/" + msgHandle + "/";
+        for (String key : mEntries.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return the cached bMessage, or null
+     */
+    public synchronized byte[] get(String key) {
+        return (mMmsSmsObserver != null) ? mEntries.get(key) : null;
+    }
+
+    /**
+     * @return the invalidation generation, to be read before composing a
+     *         bMessage and passed to put()
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache bmsg, unless the cache was invalidated after generation was read
+     */
+    public synchronized void put(String key, byte[] bmsg, long generation) {
+        if (mMmsSmsObserver == null || bmsg.length > MAX_ENTRY_SIZE) {
+            return;
+        }
+        if (generation != mGeneration) {
+            if (V) Log.v(TAG, "invalidated while composed, not caching " + key);
+            return;
+        }
+        mEntries.put(key, bmsg);
+    }
+
+    /**
+     * Key of a bMessage as composed by a MAS instance
+     *
+     * @param messageTypes message types supported by the MAS instance
+     * @param variant anything else the instance puts in its bMessages, such
+     *            as the remote device name
+     */
+    public static String getKey(int messageTypes, String msgHandle, int charset,
+            int attachment, String variant) {
+        return messageTypes + "/" + msgHandle + "/" + charset + "/" + attachment + "/" + variant;
+    }
+
+    private static int getMessageTypes(String key) {
+        return Integer.parseInt(key.substring(0, key.indexOf('/')));
+    }
+}
@@ -37,20 +37,19 @@ import android.os.PowerManager;
 import android.text.format.Time;
 import android.util.Log;
 
+import com.android.bluetooth.map.MapUtils.BmessageWriter;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageListingRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
+import com.android.bluetooth.map.MapUtils.MapUtils;
+import com.android.bluetooth.map.MapUtils.MsgListingConsts;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.btobex.ApplicationParameter;
 import javax.btobex.HeaderSet;
@@ -85,7 +84,9 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
     public Context mContext;
 
-    public static boolean sIsAborted = false;
+    // Set from the OBEX thread when the MCE aborts, polled by the senders. It
+    // is per server, so an abort on one MAS instance leaves the others alone.
+    private volatile boolean mIsAborted = false;
 
     private PowerManager.WakeLock mWakeLock = null;
 
@@ -650,7 +651,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     @Override
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
-        sIsAborted = true;
+        mIsAborted = true;
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -749,7 +750,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
         if (D) Log.d(TAG, "onGet(): support GET request.");
 
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request = null;
         String type = "";
         String name = "";
@@ -793,97 +794,57 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     }
 
     private final int pushMsg(Operation op, String name) {
-        // TBD - Need to do this on a per masinstance basis
-        String fileName = "PushMsg" + mAppIf.getMasId();
-        int outputBufferSize = op.getMaxPacketSize();
-        int readLength = 0;
-        long timestamp = 0;
-        int position = 0;
-        byte[] b = new byte[outputBufferSize];
-        BufferedOutputStream bos = null;
         InputStream is = null;
-        boolean error = false;
-        File file = null;
-        BluetoothMasPushMsgRsp pMsg = new BluetoothMasPushMsgRsp();;
-
-        file = new File(mContext.getFilesDir() + "/" + fileName);
+        BluetoothMasPushMsgRsp pMsg = null;
 
         try {
             is = op.openInputStream();
         } catch (IOException e1) {
             Log.e(TAG, "Error while opening InputStream");
-            error = true;
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        if (error != true) {
-            try {
-
-                FileOutputStream fos = mContext.openFileOutput(fileName,
-                        Context.MODE_PRIVATE);
-
-                bos = new BufferedOutputStream(fos);
-            } catch (FileNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+        try {
+            // The bMessage is parsed as it arrives rather than spooled first
+            pMsg = mAppIf.pushMsg(name, is, masAppParams.get());
+        } catch (BadRequestException e) {
+            if (V) Log.v(TAG, "BadRequestException:" + e.getMessage(), e);
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } finally {
+            closePushStream(is);
         }
 
-        if (error != true) {
-            try {
-                while (true) {
-                    if (V) {
-                        timestamp = System.currentTimeMillis();
-                    }
-                    readLength = is.read(b);
-                    if (readLength == -1) {
-                        if (D) {
-                            Log.d(TAG, "Receive file reached stream end at position" + position);
-                        }
-                        break;
-                    }
-                    bos.write(b, 0, readLength);
-                    position += readLength;
-                    if (V) {
-                        Log.v(TAG, "Receive file position = " + position
-                                + " readLength " + readLength + " bytes took "
-                                + (System.currentTimeMillis() - timestamp)
-                                + " ms");
-                    }
-                }
-            } catch (IOException e1) {
-                Log.e(TAG, "Error when receiving file");
-                error = true;
-            }
+        if ((pMsg.msgHandle != null)
+                && (pMsg.response == ResponseCodes.OBEX_HTTP_OK)) {
+            HeaderSet reply;
+            reply = new HeaderSet();
+            reply.setHeader(HeaderSet.NAME, pMsg.msgHandle);
+            return pushHeader(op, reply);
+        } else {
+            return pMsg.response;
         }
+    }
 
-        if (bos != null) {
-            try {
-                bos.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error when closing stream after send");
-                error = true;
+    /**
+     * Read whatever the MAS instance left of the pushed body, so the
+     * response is only sent once the client is done sending, and close it
+     */
+    private void closePushStream(InputStream is) {
+        try {
+            final byte[] b = new byte[1024];
+            int position = 0;
+            int readLength;
+            while ((readLength = is.read(b)) != -1) {
+                position += readLength;
             }
+            if (D && position > 0) Log.d(TAG, "Discarded " + position + " pushed bytes");
+        } catch (IOException e) {
+            Log.e(TAG, "Error when receiving file");
         }
-
-        if (error != true) {
-            try {
-                pMsg = mAppIf.pushMsg(name, file, masAppParams.get());
-            } catch (BadRequestException e) {
-                if (V) Log.v(TAG, "BadRequestException:" + e.getMessage(), e);
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
-
-            if ((pMsg.msgHandle != null)
-                    && (pMsg.response == ResponseCodes.OBEX_HTTP_OK)) {
-                HeaderSet reply;
-                reply = new HeaderSet();
-                reply.setHeader(HeaderSet.NAME, pMsg.msgHandle);
-                return pushHeader(op, reply);
-            } else {
-                return pMsg.response;
-            }
-        } else {
-            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        try {
+            is.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error when closing stream after receive");
         }
     }
 
@@ -924,7 +885,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
         if (D) Log.d(TAG, "onPut(): support PUT request.");
 
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request = null;
         String type = "";
         String name = "";
@@ -1061,9 +1022,9 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         int outputBufferSize = op.getMaxPacketSize();
         if (V) Log.v(TAG, "outputBufferSize = " + outputBufferSize);
         while (position != folderlistStringLen) {
-            if (sIsAborted) {
+            if (mIsAborted) {
                 ((ServerOperation) op).isAborted = true;
-                sIsAborted = false;
+                mIsAborted = false;
                 break;
             }
             if (V) timestamp = System.currentTimeMillis();
@@ -1097,53 +1058,126 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         return pushResult;
     }
 
-    private final int sendBody(Operation op, File fileinfo) {
-        if (V) Log.v(TAG, "sendFile = " + fileinfo.getName());
+    private final int sendBody(Operation op, byte[] body) {
+        if (V) Log.v(TAG, "sendBody length = " + body.length);
         int position = 0;
         int readLength = 0;
         int outputBufferSize = op.getMaxPacketSize();
         long timestamp = 0;
-        FileInputStream fileInputStream = null;
         OutputStream outputStream;
-        BufferedInputStream bis;
 
         if (D) Log.d(TAG, "Send Body: Enter");
         try {
-            byte[] buffer = new byte[outputBufferSize];
-            fileInputStream = new FileInputStream(fileinfo);
             outputStream = op.openOutputStream();
-            bis = new BufferedInputStream(fileInputStream, 0x4000);
-            while ((position != fileinfo.length())) {
+            while (position != body.length) {
                 timestamp = System.currentTimeMillis();
-                if (position != fileinfo.length()) {
-                    readLength = bis.read(buffer, 0, outputBufferSize);
-                }
-                outputStream.write(buffer, 0, readLength);
+                readLength = Math.min(outputBufferSize, body.length - position);
+                outputStream.write(body, position, readLength);
                 position += readLength;
                 if (V) {
-                    Log.v(TAG, "Sending file position = " + position
+                    Log.v(TAG, "Sending body position = " + position
                             + " readLength " + readLength + " bytes took "
                             + (System.currentTimeMillis() - timestamp) + " ms");
                 }
             }
         } catch (IOException e) {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException ei) {
-                    Log.e(TAG, "Error while closing stream"+ ei.toString());
-                }
+        }
+        if (D) Log.d(TAG, "SendBody : Exit: OK");
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * Write a bMessage straight into the OBEX body, reading its parts from
+     * the providers as it goes
+     */
+    private final int sendBody(Operation op, BmessageWriter writer) {
+        if (D) Log.d(TAG, "Send Body: msg length=" + writer.getLength());
+        BodyOutputStream outputStream;
+        try {
+            outputStream = new BodyOutputStream(op);
+        } catch (IOException e) {
+            Log.e(TAG, "open outputstream failed" + e.toString());
+            return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+        }
+        BufferedOutputStream bos = new BufferedOutputStream(outputStream,
+                op.getMaxPacketSize());
+        try {
+            writer.writeTo(bos);
+            bos.flush();
+        } catch (IOException e) {
+            if (mIsAborted) {
+                ((ServerOperation) op).isAborted = true;
+                mIsAborted = false;
+                if (D) Log.d(TAG, "Send Body aborted after "
+                        + outputStream.mPosition + " bytes");
+                return ResponseCodes.OBEX_HTTP_OK;
             }
+            Log.e(TAG, "write outputstream failed" + e.toString());
+            return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
         }
-        if (position == fileinfo.length()) {
-            if (D) Log.d(TAG, "SendBody : Exit: OK");
-            return ResponseCodes.OBEX_HTTP_OK;
+        if (D) Log.d(TAG, "SendBody : Exit: OK, " + outputStream.mPosition + " bytes");
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * Serialize the message listing straight into the OBEX body, one packet
+     * at a time
+     */
+    private final int sendMsgListingBody(Operation op, List<MsgListingConsts> msgList) {
+        if (D) Log.d(TAG, "Send Msg Listing Body: entries=" + msgList.size());
+        BodyOutputStream outputStream;
+        try {
+            outputStream = new BodyOutputStream(op);
+        } catch (IOException e) {
+            Log.e(TAG, "open outputstream failed" + e.toString());
+            return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
         }
-        else {
-            if (D) Log.d(TAG, "SendBody : Exit: CONTINUE");
-            return ResponseCodes.OBEX_HTTP_CONTINUE;
+        BufferedOutputStream bos = new BufferedOutputStream(outputStream,
+                op.getMaxPacketSize());
+        try {
+            MapUtils.writeMessageListingXML(msgList, bos);
+            bos.flush();
+        } catch (IOException e) {
+            if (mIsAborted) {
+                ((ServerOperation) op).isAborted = true;
+                mIsAborted = false;
+                if (D) Log.d(TAG, "Send Msg Listing Body aborted after "
+                        + outputStream.mPosition + " bytes");
+                return ResponseCodes.OBEX_HTTP_OK;
+            }
+            Log.e(TAG, "write outputstream failed" + e.toString());
+            return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+        }
+        if (D) Log.d(TAG, "Send Msg Listing Body : Exit: OK, " + outputStream.mPosition
+                + " bytes");
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * OBEX body stream which counts the bytes sent and stops on abort
+     */
+    private class BodyOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        long mPosition = 0;
+
+        BodyOutputStream(Operation op) throws IOException {
+            mOut = op.openOutputStream();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mIsAborted) {
+                throw new IOException("aborted");
+            }
+            mOut.write(buffer, offset, count);
+            mPosition += count;
+            if (V) Log.v(TAG, "Sending body position = " + mPosition);
         }
     }
 
@@ -1157,6 +1191,9 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         if(msg == null || msg.rsp != ResponseCodes.OBEX_HTTP_OK) {
             return msg.rsp;
         }
+        if (msg.body == null && msg.bodyWriter == null) {
+            return ResponseCodes.OBEX_HTTP_NOT_FOUND;
+        }
 
         if(masAppParams.get().FractionRequest == 1){
             HeaderSet reply;
@@ -1178,7 +1215,10 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
             }
         }
         if (D) Log.d(TAG, "SendMsg : SUCCESS");
-        return sendBody(op, msg.file);
+        if (msg.bodyWriter != null) {
+            return sendBody(op, msg.bodyWriter);
+        }
+        return sendBody(op, msg.body);
     }
 
     /** Send an XML format String to client for Folder listing */
@@ -1263,7 +1303,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
                 if (D) Log.d(TAG, "SendMsgListing : Failed : RetVal " + retVal);
                 return retVal;
             }
-            return sendBody(op, appIfMsgListRsp.file);
+            return sendMsgListingBody(op, appIfMsgListRsp.msgList);
         } else {
             return pushHeader(op, reply);
         }
@@ -44,6 +44,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -152,6 +153,8 @@ public class BluetoothMasService extends Service {
 
     private static final int MSG_INTERNAL_USER_TIMEOUT = 2;
 
+    private static final int MSG_INTERNAL_UPDATE_INSTANCES = 3;
+
     private static final int USER_CONFIRM_TIMEOUT_VALUE = 30000;
 
     // Ensure not conflict with Opp notification ID
@@ -192,22 +195,74 @@ public class BluetoothMasService extends Service {
         }
     }
 
-    public static final int MAX_INSTANCES = 2;
+    // RFCOMM channel of the first email MAS id, published on every build
+    private static final int EMAIL_MAS_PORT = 17;
+
+    /**
+     * Comma separated RFCOMM channels of the extra email MAS ids, in MAS id
+     * order, e.g. "21,22". The SDP records come from the platform, not from
+     * this service, so a channel is listed here only when a matching record
+     * is published; an instance listening without one is never found by an
+     * MCE. Unset by default, leaving the single email instance that all
+     * accounts but the first go without.
+     */
+    private static final String PROP_EMAIL_PORTS = "ro.qualcomm.bluetooth.map.email.ports";
+
+    // Room for channels 21 to 30, clear of OPP, PBAP and FTP
+    private static final int MAX_EXTRA_EMAIL_INSTANCES = 10;
+
+    private static final int EMAIL_MAS_PORTS[] = getEmailMasPorts();
+
     public static final int EMAIL_MAS_START = 1;
-    public static final int EMAIL_MAS_END = 1;
+    public static final int EMAIL_MAS_END = EMAIL_MAS_START - 1 + EMAIL_MAS_PORTS.length;
+    public static final int MAX_INSTANCES = EMAIL_MAS_END + 1;
     public static final MasInstanceInfo MAS_INS_INFO[] = new MasInstanceInfo[MAX_INSTANCES];
 
+    private static int[] getEmailMasPorts() {
+        ArrayList<Integer> ports = new ArrayList<Integer>();
+        ports.add(EMAIL_MAS_PORT);
+        String value = SystemProperties.get(PROP_EMAIL_PORTS, "");
+        if (!TextUtils.isEmpty(value)) {
+            for (String port : value.split(",")) {
+                if (ports.size() > MAX_EXTRA_EMAIL_INSTANCES) {
+                    Log.w(TAG, "Ignoring email MAS ports beyond " + MAX_EXTRA_EMAIL_INSTANCES);
+                    break;
+                }
+                try {
+                    int channel = Integer.parseInt(port.trim());
+                    if (channel > 0 && !ports.contains(channel)) {
+                        ports.add(channel);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid email MAS port: " + port);
+                }
+            }
+        }
+        int result[] = new int[ports.size()];
+        for (int i = 0; i < result.length; i ++) {
+            result[i] = ports.get(i);
+        }
+        return result;
+    }
+
     // The following information must match with corresponding
     // SDP records supported message types and port number
     // Please refer sdptool.c, BluetoothService.java, & init.qcom.rc
     static {
         MAS_INS_INFO[0] = new MasInstanceInfo(MESSAGE_TYPE_SMS_MMS, BluetoothMnsSmsMms.class, 16);
-        MAS_INS_INFO[1] = new MasInstanceInfo(MESSAGE_TYPE_EMAIL, BluetoothMnsEmail.class, 17);
+        for (int i = EMAIL_MAS_START; i <= EMAIL_MAS_END; i ++) {
+            MAS_INS_INFO[i] = new MasInstanceInfo(MESSAGE_TYPE_EMAIL, BluetoothMnsEmail.class,
+                    EMAIL_MAS_PORTS[i - EMAIL_MAS_START]);
+        }
     }
 
     private ContentObserver mEmailAccountObserver;
 
-    private void updateEmailAccount() {
+    /**
+     * Give each email account without one a free email MAS instance, then
+     * have the instances listen or go dormant accordingly
+     */
+    private synchronized void updateEmailAccount() {
         if (VERBOSE) Log.v(TAG, "updateEmailAccount()");
         List<Long> list = EmailUtils.getEmailAccountIdList(this);
         ArrayList<Long> notAssigned = new ArrayList<Long>();
@@ -224,6 +279,12 @@ public class BluetoothMasService extends Service {
                 EmailUtils.updateMapTable(notAssigned.remove(0), i);
             }
         }
+        if (notAssigned.size() > 0) {
+            Log.w(TAG, notAssigned.size() + " email accounts left without MAS instance");
+        }
+        if (mHasStarted && mAdapter != null && mAdapter.isEnabled()) {
+            mSessionStatusHandler.sendEmptyMessage(MSG_INTERNAL_UPDATE_INSTANCES);
+        }
     }
 
     public BluetoothMasService() {
@@ -244,6 +305,7 @@ public class BluetoothMasService extends Service {
 
         mConnectionManager.init();
         mAdapter = BluetoothAdapter.getDefaultAdapter();
+        updateEmailAccount();
 
         if (!mHasStarted) {
             mHasStarted = true;
@@ -258,6 +320,8 @@ public class BluetoothMasService extends Service {
         }
         getContentResolver().registerContentObserver(
                 EmailUtils.EMAIL_ACCOUNT_URI, true, mEmailAccountObserver);
+        BluetoothMasContactCache.getInstance(this).start();
+        BluetoothMasMessageCache.getInstance(this).start();
     }
 
     @Override
@@ -343,6 +407,8 @@ public class BluetoothMasService extends Service {
 
         super.onDestroy();
         getContentResolver().unregisterContentObserver(mEmailAccountObserver);
+        BluetoothMasContactCache.getInstance(this).stop();
+        BluetoothMasMessageCache.getInstance(this).stop();
         EmailUtils.clearMapTable();
         closeService();
     }
@@ -390,6 +456,11 @@ public class BluetoothMasService extends Service {
                         closeService();
                     }
                     break;
+                case MSG_INTERNAL_UPDATE_INSTANCES:
+                    if (mHasStarted) {
+                        mConnectionManager.updateInstances();
+                    }
+                    break;
                 case MSG_INTERNAL_USER_TIMEOUT:
                     Intent intent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
                     intent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
@@ -569,7 +640,28 @@ public class BluetoothMasService extends Service {
 
         public void startAll() {
             for (BluetoothMasObexConnection connection : mConnections) {
-                connection.startRfcommSocketListener(mnsClient);
+                if (connection.isActive()) {
+                    connection.startRfcommSocketListener(mnsClient);
+                }
+            }
+        }
+
+        /**
+         * Listen on the instances with something to serve and let the
+         * others go dormant. Connected instances are left alone; an email
+         * session disconnects itself when its account goes away.
+         */
+        public void updateInstances() {
+            for (BluetoothMasObexConnection connection : mConnections) {
+                if (connection.mConnSocket != null) {
+                    continue;
+                }
+                if (connection.isActive()) {
+                    connection.startRfcommSocketListener(mnsClient);
+                } else if (connection.mAcceptThread != null) {
+                    if (VERBOSE) Log.v(TAG, "MAS id " + connection.mMasId + " going dormant");
+                    connection.closeConnection();
+                }
             }
         }
 
@@ -643,6 +735,18 @@ public class BluetoothMasService extends Service {
                 mPortNum = portNumber;
         }
 
+        /**
+         * @return false if the instance is dormant: an extra email instance
+         *         with no email account assigned. The first email instance
+         *         always listens so an MCE finding its record gets an empty
+         *         listing rather than a failed connect.
+         */
+        boolean isActive() {
+            return (mSupportedMessageTypes & MESSAGE_TYPE_EMAIL) == 0
+                    || mMasId == EMAIL_MAS_START
+                    || EmailUtils.getAccountId(mMasId) != -1;
+        }
+
         private void startRfcommSocketListener(BluetoothMns mnsClient) {
             if (VERBOSE)
                 Log.v(TAG, "Map Service startRfcommSocketListener");
@@ -779,7 +883,7 @@ public class BluetoothMasService extends Service {
 
             // Last obex transaction is finished, we start to listen for incoming
             // connection again
-            if (mAdapter.isEnabled()) {
+            if (mAdapter.isEnabled() && isActive()) {
                 startRfcommSocketListener(mnsClient);
             }
         }
@@ -36,27 +36,23 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.Pair;
 
+import com.android.bluetooth.map.BluetoothMnsEventQueue.Event;
 import com.android.bluetooth.map.IBluetoothMasApp.MessageNotificationListener;
 import com.android.bluetooth.map.IBluetoothMasApp.MnsRegister;
 import com.android.bluetooth.map.MapUtils.MapUtils;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.btobex.ObexTransport;
 
@@ -84,14 +80,15 @@ public class BluetoothMns implements MessageNotificationListener {
 
     public static final int MNS_SEND_EVENT = 15;
 
-    public static final int MNS_SEND_EVENT_DONE = 16;
-
     public static final int MNS_SEND_TIMEOUT = 17;
 
     public static final int MNS_BLUETOOTH_OFF = 18;
 
     public static final int MNS_SEND_TIMEOUT_DURATION = 30000; // 30 secs
 
+    /** Time events are held so that changes of the same message coalesce */
+    private static final int MNS_EVENT_WINDOW = 300; // 0.3 sec
+
     private static final short MNS_UUID16 = 0x1133;
 
     public static final String NEW_MESSAGE = "NewMessage";
@@ -125,8 +122,9 @@ public class BluetoothMns implements MessageNotificationListener {
             .fromString("00001133-0000-1000-8000-00805F9B34FB");
 
     private HashSet<Integer> mWaitingMasId = new HashSet<Integer>();
-    private final Queue<Pair<Integer, String>> mEventQueue = new ConcurrentLinkedQueue<Pair<Integer, String>>();
-    private boolean mSendingEvent = false;
+    private final BluetoothMnsEventQueue mEventQueue = new BluetoothMnsEventQueue();
+    private HandlerThread mEventThread;
+    private Handler mEventHandler;
 
 
     public BluetoothMns(Context context) {
@@ -173,6 +171,7 @@ public class BluetoothMns implements MessageNotificationListener {
         }
 
         mSessionHandler = new EventHandler();
+        startEventDispatcher();
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
@@ -258,6 +257,7 @@ public class BluetoothMns implements MessageNotificationListener {
                 if (V) Log.v(TAG, "MNS_BT: mnsCleanupInstances: made client = null");
             }
         }
+        stopEventDispatcher();
         if (V) Log.v(TAG, "Relase MNS lock during MNS close service");
         if(mSession != null) {
             mSession.releaseMnsLock();
@@ -362,28 +362,6 @@ public class BluetoothMns implements MessageNotificationListener {
                     deregisterAll();
                     stop();
                     break;
-                case MNS_SEND_EVENT:
-                {
-                    final String xml = (String)msg.obj;
-                    final int masId = msg.arg1;
-                    if (mSendingEvent) {
-                        mEventQueue.add(new Pair<Integer, String>(masId, xml));
-                    } else {
-                        mSendingEvent = true;
-                        new Thread(new SendEventTask(xml, masId)).start();
-                    }
-                    break;
-                }
-                case MNS_SEND_EVENT_DONE:
-                    if (mEventQueue.isEmpty()) {
-                        mSendingEvent = false;
-                    } else {
-                        final Pair<Integer, String> p = mEventQueue.remove();
-                        final int masId = p.first;
-                        final String xml = p.second;
-                        new Thread(new SendEventTask(xml, masId)).start();
-                    }
-                    break;
                 case MNS_SEND_TIMEOUT:
                 {
                     if (V) Log.v(TAG, "MNS_SEND_TIMEOUT disconnecting.");
@@ -393,41 +371,6 @@ public class BluetoothMns implements MessageNotificationListener {
                 }
             }
         }
-
-        private void setTimeout(int masId) {
-            if (V) Log.v(TAG, "setTimeout MNS_SEND_TIMEOUT for instance " + masId);
-            sendMessageDelayed(obtainMessage(MNS_SEND_TIMEOUT, masId, -1),
-                    MNS_SEND_TIMEOUT_DURATION);
-        }
-
-        private void removeTimeout() {
-            if (hasMessages(MNS_SEND_TIMEOUT)) {
-                removeMessages(MNS_SEND_TIMEOUT);
-                sendEventDone();
-            }
-        }
-
-        private void sendEventDone() {
-            if (V) Log.v(TAG, "post MNS_SEND_EVENT_DONE");
-            obtainMessage(MNS_SEND_EVENT_DONE).sendToTarget();
-        }
-
-        class SendEventTask implements Runnable {
-            final String mXml;
-            final int mMasId;
-            SendEventTask (String xml, int masId) {
-                mXml = xml;
-                mMasId = masId;
-            }
-
-            public void run() {
-                if (V) Log.v(TAG, "MNS_SEND_EVENT started");
-                setTimeout(mMasId);
-                sendEvent(mXml, mMasId);
-                removeTimeout();
-                if (V) Log.v(TAG, "MNS_SEND_EVENT finished");
-            }
-        }
     }
 
     /*
@@ -544,57 +487,93 @@ public class BluetoothMns implements MessageNotificationListener {
         }
 
         if (location == -1) {
-            String str = MapUtils.mapEventReportXML(msg, handle, folder, old_folder, msgType);
             if (V) Log.v(TAG, "Notification to MAS " + masId + ", msgType = " + msgType);
-            mSessionHandler.obtainMessage(MNS_SEND_EVENT, masId, -1, str).sendToTarget();
+            mEventQueue.add(new Event(masId, msg, handle, folder, old_folder, msgType));
+            scheduleEvents(MNS_EVENT_WINDOW);
         } else {
             if (V) Log.v(TAG, "REMOVE location" + location);
             removeMceInitiatedOperation(location);
         }
     }
 
+    /**
+     * Start the thread which sends the queued events over the MNS session
+     */
+    private synchronized void startEventDispatcher() {
+        if (mEventThread != null) {
+            return;
+        }
+        mEventThread = new HandlerThread("MNS Event Dispatcher");
+        mEventThread.start();
+        mEventHandler = new Handler(mEventThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MNS_SEND_EVENT) {
+                    sendEvents();
+                }
+            }
+        };
+    }
+
+    private synchronized void stopEventDispatcher() {
+        if (mEventThread == null) {
+            return;
+        }
+        mEventHandler.removeCallbacksAndMessages(null);
+        mEventThread.quit();
+        mEventThread = null;
+        mEventHandler = null;
+        mEventQueue.clear();
+    }
+
+    private synchronized void scheduleEvents(int delay) {
+        if (mEventHandler != null && !mEventHandler.hasMessages(MNS_SEND_EVENT)) {
+            mEventHandler.sendEmptyMessageDelayed(MNS_SEND_EVENT, delay);
+        }
+    }
+
+    /**
+     * Send the pending events back to back over the connected session.
+     * Events arriving meanwhile are coalesced and sent by the next run.
+     */
+    private void sendEvents() {
+        final List<Event> events = mEventQueue.drain();
+        if (V) Log.v(TAG, "sendEvents(): " + events.size() + " events");
+        for (Event event : events) {
+            final BluetoothMnsObexSession session = mSession;
+            if (session == null || !session.isConnected()) {
+                if (V) Log.v(TAG, "MNS session is gone, dropping events");
+                mEventQueue.clear();
+                return;
+            }
+            if (V) Log.v(TAG, "Sending " + event);
+            String str = MapUtils.mapEventReportXML(event.mType, event.mHandle, event.mFolder,
+                    event.mOldFolder, event.mMsgType);
+            mSessionHandler.sendMessageDelayed(mSessionHandler.obtainMessage(MNS_SEND_TIMEOUT,
+                    event.mMasId, -1), MNS_SEND_TIMEOUT_DURATION);
+            sendEvent(session, str, event.mMasId);
+            mSessionHandler.removeMessages(MNS_SEND_TIMEOUT);
+        }
+        if (!mEventQueue.isEmpty()) {
+            scheduleEvents(0);
+        }
+    }
+
     /**
      * Push the message over Obex client session
      */
-    private void sendEvent(String str, int masId) {
+    private void sendEvent(BluetoothMnsObexSession session, String str, int masId) {
         if (str != null && (str.length() > 0)) {
             if (V){
                 Log.v(TAG, "--------------");
                 Log.v(TAG, " CONTENT OF EVENT REPORT FILE: " + str);
+                Log.v(TAG, " Sending event report for Mas " + masId);
             }
-
-            final String FILENAME = "EventReport" + masId;
-            FileOutputStream fos = null;
-            File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-            file.delete();
             try {
-                fos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                fos.write(str.getBytes());
-                fos.flush();
-                fos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
+                session.sendEvent(str.getBytes(), (byte) masId);
+            } catch (Exception e) {
                 e.printStackTrace();
             }
-
-            File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
-            if (fileR.exists() == true) {
-                if (V) {
-                    Log.v(TAG, " Sending event report file for Mas " + masId);
-                }
-                try {
-                    if (mSession != null) {
-                        mSession.sendEvent(fileR, (byte) masId);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } else {
-                if (V){
-                    Log.v(TAG, " ERROR IN CREATING SEND EVENT OBJ FILE");
-                }
-            }
         } else if (V) {
             Log.v(TAG, "sendEvent(null, " + masId + ")");
         }
@@ -33,14 +33,18 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.bluetooth.map.BluetoothMns.MnsClient;
 import com.android.bluetooth.map.MapUtils.EmailUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 
+import static com.android.bluetooth.map.MapUtils.EmailUtils.ACCOUNT_KEY;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_BOX_COLUMN_ACCOUNT_KEY;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_BOX_COLUMN_DISPLAY_NAME;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_BOX_COLUMN_RECORD_ID;
@@ -50,9 +54,11 @@ import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_BOX_URI;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_MESSAGE_PROJECTION;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_MESSAGE_URI;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.EMAIL_URI;
+import static com.android.bluetooth.map.MapUtils.EmailUtils.MAILBOX_KEY;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.MSG_COL_ACCOUNT_KEY;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.MSG_COL_MAILBOX_KEY;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.MSG_COL_RECORD_ID;
+import static com.android.bluetooth.map.MapUtils.EmailUtils.RECORD_ID;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.TYPE_DELETED;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.TYPE_DRAFT;
 import static com.android.bluetooth.map.MapUtils.EmailUtils.TYPE_INBOX;
@@ -76,6 +82,8 @@ public class BluetoothMnsEmail extends MnsClient {
         ""          // TYPE_JUNK = 7;
     };
     private static final String EMAIL = "EMAIL";
+    /** Type of messages whose mailbox is not known yet */
+    private static final int TYPE_UNKNOWN = -1;
     private EmailContentObserver mEmailObserver = new EmailContentObserver();
     private long mAccountKey;
 
@@ -87,8 +95,7 @@ public class BluetoothMnsEmail extends MnsClient {
     protected void registerContentObserver() {
         if (V) Log.v(TAG, "REGISTERING EMAIL MNS");
         mAccountKey = EmailUtils.getAccountId(mMasId);
-        mEmailObserver.updateEmailBox();
-        mEmailObserver.update(true);
+        mEmailObserver.start();
         mContext.getContentResolver().registerContentObserver(EMAIL_URI, true, mEmailObserver);
         if (V) Log.v(TAG, "REGISTERING EMAIL MNS DONE");
     }
@@ -97,6 +104,7 @@ public class BluetoothMnsEmail extends MnsClient {
     protected void unregisterContentObserver() {
         if (V) Log.v(TAG, "UNREGISTERING MNS EMAIL");
         mContext.getContentResolver().unregisterContentObserver(mEmailObserver);
+        mEmailObserver.stop();
         if (V) Log.v(TAG, "UNREGISTERED MNS EMAIL");
     }
 
@@ -140,55 +148,95 @@ public class BluetoothMnsEmail extends MnsClient {
         }
     }
 
+    /**
+     * Keeps a snapshot of the account's messages and their mailboxes. After
+     * the first scan an update only reads messages past the largest known id
+     * and rescans the mailboxes whose message count no longer matches the
+     * snapshot, so a sync burst on a large account costs a handful of count
+     * queries instead of a scan of every message.
+     */
     private class EmailContentObserver extends ContentObserver {
         private static final String TAG = "EmailContentObserver";
-        private HashMap<Long, EmailBox> mEmailBoxList = new HashMap<Long, EmailBox>();
-        private HashMap<Long, EmailMessage> mEmailList = new HashMap<Long, EmailMessage>();
-        /** List of deleted message, do not notify */
-        private HashMap<Long, EmailMessage> mDeletedList = new HashMap<Long, EmailMessage>();
+        private static final int MAX_IDS_PER_QUERY = 100;
+
+        private LongSparseArray<EmailBox> mEmailBoxList = new LongSparseArray<EmailBox>();
+        /** Message id to mailbox type and mailbox key */
+        private BluetoothMnsMessageMap mEmailList = new BluetoothMnsMessageMap();
         private HashMap<Long, EmailMessage> mEmailAddedList = new HashMap<Long, EmailMessage>();
         /** List of newly deleted message, notify */
         private HashMap<Long, EmailMessage> mEmailDeletedList = new HashMap<Long, EmailMessage>();
 
-        private static final int UPDATE = 0;
+        private static final int INIT = 0;
+        private static final int UPDATE = 1;
         private static final int THRESHOLD = 3000;  // 3 sec
 
+        private HandlerThread mThread;
+        private Handler mHandler;
+
         public EmailContentObserver() {
             super(null);
         }
 
+        /**
+         * Start the worker which takes the snapshot and then handles all
+         * change notifications in order
+         */
+        synchronized void start() {
+            if (mThread != null) {
+                return;
+            }
+            mThread = new HandlerThread("Email Content Observer Thread");
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper()) {
+                private static final String TAG = "EmailContentObserver.Hanlder";
+                @Override
+                public void handleMessage(android.os.Message msg) {
+                    if (V) Log.v(TAG, "handleMessage(" + msg.what + ") mas Id: " + mMasId);
+                    switch (msg.what) {
+                        case INIT:
+                            updateEmailBox();
+                            reconcile();
+                            break;
+                        case UPDATE:
+                            updateEmailBox();
+                            update();
+                            sendEvents();
+                            break;
+                    }
+                }
+            };
+            mHandler.sendEmptyMessage(INIT);
+        }
+
+        synchronized void stop() {
+            if (mThread == null) {
+                return;
+            }
+            mHandler.removeCallbacksAndMessages(null);
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+
         @Override
-        public void onChange(boolean selfChange) {
+        public synchronized void onChange(boolean selfChange) {
             if (V) Log.v(TAG, "onChange(" + selfChange + ")");
-            if (mHandler.hasMessages(UPDATE)) {
-                mHandler.removeMessages(UPDATE);
+            if (mHandler == null) {
+                return;
             }
+            mHandler.removeMessages(UPDATE);
             mHandler.sendEmptyMessageDelayed(UPDATE, THRESHOLD);
         }
 
-        private Handler mHandler = new Handler() {
-            private static final String TAG = "EmailContentObserver.Hanlder";
-            @Override
-            public void handleMessage(android.os.Message msg) {
-                if (V) Log.v(TAG, "handleMessage(" + msg.what + ") mas Id: " + mMasId);
-                switch (msg.what) {
-                    case UPDATE:
-                        new Thread(new Runnable() {
-                            public void run() {
-                                updateEmailBox();
-                                update(false);
-                                sendEvents();
-                            }
-                        }, "Email Content Observer Thread").start();
-                        break;
-                }
-            }
-        };
+        private String getAccountSelection() {
+            return ACCOUNT_KEY + "=" + mAccountKey;
+        }
 
         void updateEmailBox() {
-            mEmailBoxList.clear();
+            LongSparseArray<EmailBox> boxList = new LongSparseArray<EmailBox>();
             final ContentResolver resolver = mContext.getContentResolver();
-            Cursor crBox = resolver.query(EMAIL_BOX_URI, EMAIL_BOX_PROJECTION, null, null, null);
+            Cursor crBox = resolver.query(EMAIL_BOX_URI, EMAIL_BOX_PROJECTION,
+                    getAccountSelection(), null, null);
             if (crBox != null) {
                 if (crBox.moveToFirst()) {
                     do {
@@ -197,85 +245,211 @@ public class BluetoothMnsEmail extends MnsClient {
                         final long accountKey = crBox.getLong(EMAIL_BOX_COLUMN_ACCOUNT_KEY);
                         final int type = crBox.getInt(EMAIL_BOX_COLUMN_TYPE);
                         final EmailBox box = new EmailBox(id, displayName, accountKey, type);
-                        mEmailBoxList.put(id, box);
+                        boxList.put(id, box);
                         if (V) Log.v(TAG, box.toString());
                     } while (crBox.moveToNext());
                 }
                 crBox.close();
             }
+            mEmailBoxList = boxList;
         }
 
-        void update(boolean init) {
-            if (init) {
-                clear();
-            }
-            final ContentResolver resolver = mContext.getContentResolver();
-            Cursor crEmail = resolver.query(EMAIL_MESSAGE_URI, EMAIL_MESSAGE_PROJECTION,
-                    null, null, null);
+        /** Full scan of the account, without notification */
+        void reconcile() {
+            mEmailList.clear();
+            mEmailAddedList.clear();
+            mEmailDeletedList.clear();
+            Cursor crEmail = mContext.getContentResolver().query(EMAIL_MESSAGE_URI,
+                    EMAIL_MESSAGE_PROJECTION, getAccountSelection(), null, RECORD_ID);
             if (crEmail != null) {
-                if (crEmail.moveToFirst()) {
-                    final HashMap<Long, EmailBox> boxList = mEmailBoxList;
-                    HashMap<Long, EmailMessage> oldEmailList = mEmailList;
-                    HashMap<Long, EmailMessage> emailList = new HashMap<Long, EmailMessage>();
-                    do {
-                        final long accountKey = crEmail.getLong(MSG_COL_ACCOUNT_KEY);
-                        if (accountKey != mAccountKey) {
-                            continue;
-                        }
-                        final long id = crEmail.getLong(MSG_COL_RECORD_ID);
+                try {
+                    while (crEmail.moveToNext()) {
                         final long mailboxKey = crEmail.getLong(MSG_COL_MAILBOX_KEY);
-                        if (boxList.containsKey(mailboxKey)) {
-                            final EmailBox box = boxList.get(mailboxKey);
-                            if (box == null) {
-                                continue;
-                            }
-                            final String folderName = isMapFolder(box.mType)
-                                    ? EMAIL_TO_MAP[box.mType] : box.mDisplayName;
-                            final EmailMessage msg = new EmailMessage(id, accountKey,
-                                    folderName, box.mType);
-                            if (box.mType == EmailUtils.TYPE_DELETED) {
-                                if (init) {
-                                    mDeletedList.put(id, msg);
-                                } else if (!mDeletedList.containsKey(id) &&
-                                        !mEmailDeletedList.containsKey(id)) {
-                                    mEmailDeletedList.put(id, msg);
-                                }
-                            } else {
-                                emailList.put(id, msg);
-                                if (!oldEmailList.containsKey(id) && !init &&
-                                        !mEmailAddedList.containsKey(id)) {
-                                    mEmailAddedList.put(id, msg);
-                                }
-                            }
-                        } else {
-                            Log.e(TAG, "Mailbox is not updated");
+                        mEmailList.put(crEmail.getLong(MSG_COL_RECORD_ID),
+                                getBoxType(mailboxKey), mailboxKey, 0);
+                    }
+                } finally {
+                    crEmail.close();
+                }
+            }
+        }
+
+        void update() {
+            // New messages
+            query(getAccountSelection() + " AND " + RECORD_ID + " > " + mEmailList.maxId());
+
+            // Mailboxes whose count changed had messages moved in or out
+            final LongSparseArray<Integer> known = getMailboxCounts();
+            final ArrayList<Long> changedBoxes = new ArrayList<Long>();
+            for (int i = 0; i < known.size(); i++) {
+                final long mailboxKey = known.keyAt(i);
+                if (getMessageCount(mailboxKey) != known.valueAt(i)) {
+                    changedBoxes.add(mailboxKey);
+                }
+            }
+            for (int i = 0; i < mEmailBoxList.size(); i++) {
+                final long mailboxKey = mEmailBoxList.keyAt(i);
+                if (known.get(mailboxKey) == null && getMessageCount(mailboxKey) > 0) {
+                    changedBoxes.add(mailboxKey);
+                }
+            }
+            if (changedBoxes.size() == 0) {
+                return;
+            }
+            if (V) Log.v(TAG, "Rescanning mailboxes " + changedBoxes);
+
+            // Messages found in a rescanned mailbox are moved there; those
+            // missing from their old mailbox are looked up by id below
+            final BluetoothMnsMessageMap seen = new BluetoothMnsMessageMap();
+            for (Long mailboxKey : changedBoxes) {
+                Cursor crEmail = mContext.getContentResolver().query(EMAIL_MESSAGE_URI,
+                        EMAIL_MESSAGE_PROJECTION, MAILBOX_KEY + "=" + mailboxKey, null, null);
+                if (crEmail == null) {
+                    continue;
+                }
+                try {
+                    while (crEmail.moveToNext()) {
+                        final long id = crEmail.getLong(MSG_COL_RECORD_ID);
+                        apply(id, crEmail.getLong(MSG_COL_MAILBOX_KEY));
+                        seen.put(id, 0, 0, 0);
+                    }
+                } finally {
+                    crEmail.close();
+                }
+            }
+            final ArrayList<Long> missing = new ArrayList<Long>();
+            for (int i = 0; i < mEmailList.size(); i++) {
+                final long id = mEmailList.idAt(i);
+                if (changedBoxes.contains(mEmailList.folderKeyAt(i)) && seen.indexOf(id) < 0) {
+                    missing.add(id);
+                }
+            }
+            for (int start = 0; start < missing.size(); start += MAX_IDS_PER_QUERY) {
+                final int end = Math.min(start + MAX_IDS_PER_QUERY, missing.size());
+                final StringBuilder ids = new StringBuilder();
+                for (int i = start; i < end; i++) {
+                    if (i > start) {
+                        ids.append(',');
+                    }
+                    ids.append(missing.get(i));
+                }
+                final BluetoothMnsMessageMap found = new BluetoothMnsMessageMap();
+                Cursor crEmail = mContext.getContentResolver().query(EMAIL_MESSAGE_URI,
+                        EMAIL_MESSAGE_PROJECTION, RECORD_ID + " IN (" + ids + ")", null, null);
+                if (crEmail == null) {
+                    continue;
+                }
+                try {
+                    while (crEmail.moveToNext()) {
+                        final long id = crEmail.getLong(MSG_COL_RECORD_ID);
+                        if (crEmail.getLong(MSG_COL_ACCOUNT_KEY) == mAccountKey) {
+                            apply(id, crEmail.getLong(MSG_COL_MAILBOX_KEY));
+                            found.put(id, 0, 0, 0);
                         }
-                    } while (crEmail.moveToNext());
-                    mEmailList = emailList;
+                    }
+                } finally {
+                    crEmail.close();
                 }
+                // Removed from the provider, nothing to report
+                for (int i = start; i < end; i++) {
+                    final long id = missing.get(i);
+                    final int index = mEmailList.indexOf(id);
+                    if (found.indexOf(id) < 0 && index >= 0) {
+                        mEmailList.removeAt(index);
+                    }
+                }
+            }
+        }
+
+        /** Apply the messages matching where to the snapshot */
+        private void query(String where) {
+            Cursor crEmail = mContext.getContentResolver().query(EMAIL_MESSAGE_URI,
+                    EMAIL_MESSAGE_PROJECTION, where, null, null);
+            if (crEmail == null) {
+                return;
+            }
+            try {
+                while (crEmail.moveToNext()) {
+                    apply(crEmail.getLong(MSG_COL_RECORD_ID), crEmail.getLong(MSG_COL_MAILBOX_KEY));
+                }
+            } finally {
                 crEmail.close();
             }
         }
 
+        /**
+         * Record that message id is in mailboxKey, queueing an event when it
+         * is new or was moved into or out of the deleted folder
+         */
+        private void apply(long id, long mailboxKey) {
+            final EmailBox box = mEmailBoxList.get(mailboxKey);
+            if (box == null) {
+                Log.e(TAG, "Mailbox is not updated");
+            }
+            final int type = (box != null) ? box.mType : TYPE_UNKNOWN;
+            final int index = mEmailList.indexOf(id);
+            final int oldType = (index >= 0) ? mEmailList.typeAt(index) : TYPE_UNKNOWN;
+            mEmailList.put(id, type, mailboxKey, 0);
+            if (box == null || (index >= 0 && oldType != TYPE_UNKNOWN &&
+                    (oldType == TYPE_DELETED) == (type == TYPE_DELETED))) {
+                return;
+            }
+            final String folderName = isMapFolder(type) ? EMAIL_TO_MAP[type] : box.mDisplayName;
+            final EmailMessage msg = new EmailMessage(id, mAccountKey, folderName, type);
+            if (type == TYPE_DELETED) {
+                mEmailAddedList.remove(id);
+                mEmailDeletedList.put(id, msg);
+            } else {
+                mEmailDeletedList.remove(id);
+                mEmailAddedList.put(id, msg);
+            }
+        }
+
+        private int getBoxType(long mailboxKey) {
+            final EmailBox box = mEmailBoxList.get(mailboxKey);
+            return (box != null) ? box.mType : TYPE_UNKNOWN;
+        }
+
+        /** Number of snapshot messages in each mailbox */
+        private LongSparseArray<Integer> getMailboxCounts() {
+            final LongSparseArray<Integer> counts = new LongSparseArray<Integer>();
+            for (int i = 0; i < mEmailList.size(); i++) {
+                final long mailboxKey = mEmailList.folderKeyAt(i);
+                final Integer count = counts.get(mailboxKey);
+                counts.put(mailboxKey, (count != null) ? count + 1 : 1);
+            }
+            return counts;
+        }
+
+        private int getMessageCount(long mailboxKey) {
+            Cursor cursor = null;
+            try {
+                cursor = mContext.getContentResolver().query(EMAIL_MESSAGE_URI,
+                        new String[] {"count(*)"}, MAILBOX_KEY + "=" + mailboxKey, null, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    return cursor.getInt(0);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "count failed " + e.toString());
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return -1;
+        }
+
         private void sendEvents() {
             if (mEmailAddedList.size() > 0) {
                 newEmail();
                 mEmailAddedList.clear();
             }
             if (mEmailDeletedList.size() > 0) {
-                mDeletedList.putAll(mEmailDeletedList);
                 deletedEmail();
                 mEmailDeletedList.clear();
             }
         }
 
-        private void clear() {
-            mEmailList.clear();
-            mDeletedList.clear();
-            mEmailAddedList.clear();
-            mEmailDeletedList.clear();
-        }
-
         private boolean isMapFolder(int type) {
             if (type == TYPE_INBOX || type == TYPE_OUTBOX || type == TYPE_SENT ||
                     type == TYPE_DRAFT || type == TYPE_DELETED) {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Pending MNS event reports, coalesced per message handle. An event that
+ * repeats or is superseded by a later event for the same handle (a new
+ * message which is then shifted or deleted, say) is merged or dropped while
+ * it waits, so a burst of provider changes sends each handle's net change
+ * once. Events of one handle keep their order; handles are sent in the
+ * order their first pending event arrived.
+ */
+class BluetoothMnsEventQueue {
+    static class Event {
+        final int mMasId;
+        final String mType;
+        final String mHandle;
+        String mFolder;
+        final String mOldFolder;
+        final String mMsgType;
+
+        Event(int masId, String type, String handle, String folder, String oldFolder,
+                String msgType) {
+            mMasId = masId;
+            mType = type;
+            mHandle = handle;
+            mFolder = folder;
+            mOldFolder = oldFolder;
+            mMsgType = msgType;
+        }
+
+        boolean isMemoryEvent() {
+            return BluetoothMns.MEMORY_FULL.equals(mType)
+                    || BluetoothMns.MEMORY_AVAILABLE.equals(mType);
+        }
+
+        boolean sameAs(Event e) {
+            return mType.equals(e.mType) && equal(mFolder, e.mFolder)
+                    && equal(mOldFolder, e.mOldFolder) && equal(mMsgType, e.mMsgType);
+        }
+
+        static boolean equal(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+
+        @Override
+        public String toString() {
+            return "[mas id:" + mMasId + ", type:" + mType + ", handle:" + mHandle
+                    + ", folder:" + mFolder + ", old folder:" + mOldFolder + "]";
+        }
+    }
+
+    private LinkedHashMap<String, ArrayList<Event>> mEvents =
+            new LinkedHashMap<String, ArrayList<Event>>();
+
+    public synchronized boolean isEmpty() {
+        return mEvents.isEmpty();
+    }
+
+    public synchronized void clear() {
+        mEvents.clear();
+    }
+
+    public synchronized void add(Event event) {
+        // Memory status is per MAS instance and only the latest one matters
+        final String key = event.mMasId + ":" + (event.isMemoryEvent() ? "" : event.mHandle);
+        ArrayList<Event> events = mEvents.get(key);
+        if (events == null) {
+            events = new ArrayList<Event>();
+            mEvents.put(key, events);
+        } else if (event.isMemoryEvent()) {
+            events.clear();
+        } else if (!coalesce(events, event)) {
+            if (events.isEmpty()) {
+                mEvents.remove(key);
+            }
+            return;
+        }
+        events.add(event);
+    }
+
+    /**
+     * Remove all pending events
+     * @return the events in the order they should be sent
+     */
+    public synchronized List<Event> drain() {
+        ArrayList<Event> all = new ArrayList<Event>();
+        for (ArrayList<Event> events : mEvents.values()) {
+            all.addAll(events);
+        }
+        mEvents.clear();
+        return all;
+    }
+
+    /**
+     * Merge event into the pending events of its handle
+     * @return true if event still has to be queued
+     */
+    private boolean coalesce(ArrayList<Event> events, Event event) {
+        for (Event pending : events) {
+            if (pending.sameAs(event)) {
+                return false;
+            }
+        }
+        if (BluetoothMns.MESSAGE_DELETED.equals(event.mType)) {
+            // The remote never needs to hear where a deleted message was
+            Iterator<Event> it = events.iterator();
+            while (it.hasNext()) {
+                final String type = it.next().mType;
+                if (BluetoothMns.NEW_MESSAGE.equals(type)
+                        || BluetoothMns.MESSAGE_SHIFT.equals(type)) {
+                    it.remove();
+                }
+            }
+        } else if (BluetoothMns.MESSAGE_SHIFT.equals(event.mType)) {
+            for (Iterator<Event> it = events.iterator(); it.hasNext(); ) {
+                Event pending = it.next();
+                if (BluetoothMns.NEW_MESSAGE.equals(pending.mType)) {
+                    // Report the message where it ended up
+                    pending.mFolder = event.mFolder;
+                    return false;
+                } else if (BluetoothMns.MESSAGE_SHIFT.equals(pending.mType)) {
+                    pending.mFolder = event.mFolder;
+                    if (Event.equal(pending.mFolder, pending.mOldFolder)) {
+                        it.remove();
+                    }
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
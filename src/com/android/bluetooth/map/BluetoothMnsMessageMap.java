@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map;
+
+/**
+ * Compact snapshot of the messages an MNS client watches, keyed by message
+ * id. Each message keeps a type, a folder key (thread or mailbox id) and a
+ * stamp (date or other change marker) in parallel primitive arrays sorted by
+ * id, so a snapshot of tens of thousands of messages stays small and ids
+ * appended in increasing order are cheap to add.
+ */
+class BluetoothMnsMessageMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mIds = new long[MIN_CAPACITY];
+    private int[] mTypes = new int[MIN_CAPACITY];
+    private long[] mFolderKeys = new long[MIN_CAPACITY];
+    private long[] mStamps = new long[MIN_CAPACITY];
+    private int mSize = 0;
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * @return index of the message, or a negative value if it is not present
+     */
+    public int indexOf(long id) {
+        if (mSize > 0 && mIds[mSize - 1] < id) {
+            return -(mSize + 1);
+        }
+        int lo = 0;
+        int hi = mSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = mIds[mid];
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    public long idAt(int index) {
+        return mIds[index];
+    }
+
+    public int typeAt(int index) {
+        return mTypes[index];
+    }
+
+    public long folderKeyAt(int index) {
+        return mFolderKeys[index];
+    }
+
+    public long stampAt(int index) {
+        return mStamps[index];
+    }
+
+    /** Largest id in the map, or -1 when it is empty */
+    public long maxId() {
+        return (mSize == 0) ? -1 : mIds[mSize - 1];
+    }
+
+    public void put(long id, int type, long folderKey, long stamp) {
+        int index = indexOf(id);
+        if (index < 0) {
+            index = -(index + 1);
+            ensureCapacity(mSize + 1);
+            if (index < mSize) {
+                System.arraycopy(mIds, index, mIds, index + 1, mSize - index);
+                System.arraycopy(mTypes, index, mTypes, index + 1, mSize - index);
+                System.arraycopy(mFolderKeys, index, mFolderKeys, index + 1, mSize - index);
+                System.arraycopy(mStamps, index, mStamps, index + 1, mSize - index);
+            }
+            mIds[index] = id;
+            mSize++;
+        }
+        mTypes[index] = type;
+        mFolderKeys[index] = folderKey;
+        mStamps[index] = stamp;
+    }
+
+    public void removeAt(int index) {
+        int moved = mSize - index - 1;
+        if (moved > 0) {
+            System.arraycopy(mIds, index + 1, mIds, index, moved);
+            System.arraycopy(mTypes, index + 1, mTypes, index, moved);
+            System.arraycopy(mFolderKeys, index + 1, mFolderKeys, index, moved);
+            System.arraycopy(mStamps, index + 1, mStamps, index, moved);
+        }
+        mSize--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mIds.length * 2);
+        long[] ids = new long[newCapacity];
+        int[] types = new int[newCapacity];
+        long[] folderKeys = new long[newCapacity];
+        long[] stamps = new long[newCapacity];
+        System.arraycopy(mIds, 0, ids, 0, mSize);
+        System.arraycopy(mTypes, 0, types, 0, mSize);
+        System.arraycopy(mFolderKeys, 0, folderKeys, 0, mSize);
+        System.arraycopy(mStamps, 0, stamps, 0, mSize);
+        mIds = ids;
+        mTypes = types;
+        mFolderKeys = folderKeys;
+        mStamps = stamps;
+    }
+}
@@ -28,11 +28,12 @@
 
 package com.android.bluetooth.map;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
@@ -83,7 +84,7 @@ public class BluetoothMnsSmsMms extends MnsClient {
     @Override
     protected void registerContentObserver() {
         if (V) Log.v(TAG, "REGISTERING SMS/MMS MNS");
-        mMmsSmsObserver.update(true);
+        mMmsSmsObserver.start();
         mContext.getContentResolver().registerContentObserver(MmsSms.CONTENT_URI, true,
                 mMmsSmsObserver);
         if (V) Log.v(TAG, "REGISTERING SMS/MMS MNS DONE");
@@ -93,23 +94,29 @@ public class BluetoothMnsSmsMms extends MnsClient {
     protected void unregisterContentObserver() {
         if (V) Log.v(TAG, "UNREGISTERING MNS SMS/MMS");
         mContext.getContentResolver().unregisterContentObserver(mMmsSmsObserver);
+        mMmsSmsObserver.stop();
         if (V) Log.v(TAG, "UNREGISTERING MNS SMS/MMS DONE");
     }
 
+    // Both projections are in the column order Tracker expects
     private static final String[] MMS_PROJECTION = new String[] {Mms._ID, Mms.MESSAGE_BOX,
-        Mms.THREAD_ID, Mms.MESSAGE_TYPE, Mms.DATE};
-    private static final int MMS_ID_COL = 0;
-    private static final int MMS_BOX_TYPE_COL = 1;
-    private static final int MMS_THREAD_ID_COL = 2;
-    private static final int MMS_MSG_TYPE_COL = 3;
-    private static final int MMS_DATE_COL = 4;
-
+        Mms.THREAD_ID, Mms.DATE};
     private static final String[] SMS_PROJECTION = new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID,
         Sms.DATE};
-    private static final int SMS_ID_COL = 0;
-    private static final int SMS_TYPE_COL = 1;
-    private static final int SMS_THREAD_ID_COL = 2;
-    private static final int SMS_DATE_COL = 3;
+    private static final int ID_COL = 0;
+    private static final int TYPE_COL = 1;
+    private static final int THREAD_ID_COL = 2;
+    private static final int DATE_COL = 3;
+
+    // Rows the observer tracks, the types are indices into MSG_TO_MAP
+    private static final String SMS_SELECTION = Sms.TYPE + " > 0 AND " + Sms.TYPE + " < "
+            + MSG_TO_MAP.length;
+    private static final String MMS_SELECTION = Mms.MESSAGE_BOX + " >= 0 AND "
+            + Mms.MESSAGE_BOX + " < " + MSG_TO_MAP.length + " AND (" + Mms.MESSAGE_TYPE
+            + " IS NULL OR " + Mms.MESSAGE_TYPE + " NOT IN ("
+            + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + ","
+            + PduHeaders.MESSAGE_TYPE_DELIVERY_IND + "))";
+    private static final int MMS_BOX_QUEUED = 6;
 
     static class Message {
         long mId;
@@ -127,182 +134,294 @@ public class BluetoothMnsSmsMms extends MnsClient {
         }
     }
 
-    private class MmsSmsContentObserver extends ContentObserver {
-        private static final String TAG = "MmsSmsContentObserver";
-        private HashMap<Long, Message> mSmsList = new HashMap<Long, Message>();
-        private HashMap<Long, Message> mSmsAddedList = new HashMap<Long, Message>();
-        private HashMap<Long, Message> mSmsDeletedList = new HashMap<Long, Message>();
+    /**
+     * Incremental snapshot of the SMS or MMS table. After the first full
+     * scan an update only reads rows past the id and date watermarks and
+     * rows which are still being drafted or sent; the table is only scanned
+     * again when its row count no longer matches the snapshot, which means
+     * messages were deleted or moved out of the tracked rows.
+     */
+    private abstract class Tracker {
+        private static final int MAX_IDS_PER_QUERY = 100;
 
-        private HashMap<Long, Message> mMmsList = new HashMap<Long, Message>();
-        private HashMap<Long, Message> mMmsAddedList = new HashMap<Long, Message>();
-        private HashMap<Long, Message> mMmsDeletedList = new HashMap<Long, Message>();
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private BluetoothMnsMessageMap mMessages = new BluetoothMnsMessageMap();
+        private long mMaxDate = -1;
 
-        private static final int UPDATE = 0;
-        private static final int THRESHOLD = 1500;  // 1.5 sec
+        final HashMap<Long, Message> mAdded = new HashMap<Long, Message>();
+        final HashMap<Long, Message> mDeleted = new HashMap<Long, Message>();
 
-        public MmsSmsContentObserver() {
-            super(null);
+        /**
+         * @param projection _id, type, thread id and date columns
+         */
+        Tracker(Uri uri, String[] projection, String selection) {
+            mUri = uri;
+            mProjection = projection;
+            mSelection = selection;
         }
 
-        @Override
-        public void onChange(boolean selfChange) {
-            if (V) Log.v(TAG, "onChange(" + selfChange + ") SMS mas Id: " + mMasId);
-            if (mHandler.hasMessages(UPDATE)) {
-                mHandler.removeMessages(UPDATE);
+        /** Messages of this type may still change in place */
+        abstract boolean isPending(int type);
+
+        /** Whether a message that changed this way is reported as new */
+        abstract boolean isChanged(int oldType, long oldDate, int type, long date);
+
+        void update() {
+            // New messages, and messages dated after the newest one seen
+            query("_id > " + mMessages.maxId() + " OR date > " + mMaxDate);
+
+            // Drafts and messages being sent may change type or date in place
+            StringBuilder ids = new StringBuilder();
+            int count = 0;
+            for (int i = 0; i < mMessages.size(); i++) {
+                if (!isPending(mMessages.typeAt(i))) {
+                    continue;
+                }
+                if (count > 0) {
+                    ids.append(',');
+                }
+                ids.append(mMessages.idAt(i));
+                if (++count == MAX_IDS_PER_QUERY) {
+                    query("_id IN (" + ids + ")");
+                    ids.setLength(0);
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                query("_id IN (" + ids + ")");
+            }
+
+            int rows = getRowCount();
+            if (rows != mMessages.size()) {
+                if (V) Log.v(TAG, mUri + ": " + rows + " rows, " + mMessages.size()
+                        + " known, rescanning");
+                reconcile(true);
             }
-            mHandler.sendEmptyMessageDelayed(UPDATE, THRESHOLD);
         }
 
-        private Handler mHandler = new Handler() {
-            private static final String TAG = "MmsSmsContentObserver.Hanlder";
-            @Override
-            public void handleMessage(android.os.Message msg) {
-                if (V) Log.v(TAG, "handleMessage(" + msg.what + ") mas Id: " + mMasId);
-                switch (msg.what) {
-                    case UPDATE:
-                        new Thread(new Runnable() {
-                            public void run() {
-                                update(false);
-                                sendEvents();
-                            }
-                        }, "MmsSms Content Observer Thread").start();
-                        break;
+        /** Apply the rows matching where to the snapshot */
+        private void query(String where) {
+            Cursor cursor = mContext.getContentResolver().query(mUri, mProjection,
+                    mSelection + " AND (" + where + ")", null, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final long id = cursor.getLong(ID_COL);
+                    final int type = cursor.getInt(TYPE_COL);
+                    final long threadId = cursor.getLong(THREAD_ID_COL);
+                    final long date = cursor.getLong(DATE_COL);
+                    final int index = mMessages.indexOf(id);
+                    if (index < 0 || isChanged(mMessages.typeAt(index),
+                            mMessages.stampAt(index), type, date)) {
+                        if (V) Log.v(TAG, "added/changed: id: " + id + " type: " + type
+                                + " threadId: " + threadId + " date: " + date);
+                        mAdded.put(id, new Message(id, MSG_TO_MAP[type], type, threadId, date));
+                    }
+                    mMessages.put(id, type, threadId, date);
+                    mMaxDate = Math.max(mMaxDate, date);
                 }
+            } finally {
+                cursor.close();
             }
-        };
+        }
 
-        void update(boolean init) {
-            updateSms(init);
-            updateMms(init);
+        private int getRowCount() {
+            Cursor cursor = null;
+            try {
+                cursor = mContext.getContentResolver().query(mUri,
+                        new String[] {"count(*)"}, mSelection, null, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    return cursor.getInt(0);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "count failed " + e.toString());
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return -1;
         }
 
-        void updateSms(boolean init) {
-            if (init) {
-                clearSms();
+        /**
+         * Rebuild the snapshot from a full scan; with notify, report the
+         * differences to the previous snapshot
+         */
+        void reconcile(boolean notify) {
+            if (!notify) {
+                mAdded.clear();
+                mDeleted.clear();
+            }
+            BluetoothMnsMessageMap messages = new BluetoothMnsMessageMap();
+            long maxDate = -1;
+            Cursor cursor = mContext.getContentResolver().query(mUri, mProjection, mSelection,
+                    null, "_id");
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    long date = cursor.getLong(DATE_COL);
+                    messages.put(cursor.getLong(ID_COL), cursor.getInt(TYPE_COL),
+                            cursor.getLong(THREAD_ID_COL), date);
+                    maxDate = Math.max(maxDate, date);
+                }
+            } finally {
+                cursor.close();
             }
 
-           if(V) Log.v(TAG, "MNS_SMS: updateSMS");
-            final ContentResolver resolver = mContext.getContentResolver();
-            Cursor crSms = resolver.query(Sms.CONTENT_URI, SMS_PROJECTION, null, null, null);
-            if (crSms != null) {
-                if (crSms.moveToFirst()) {
-                    HashMap<Long, Message> oldSmsList = mSmsList;
-                    HashMap<Long, Message> newSmsList = new HashMap<Long, Message>();
-                    do {
-                        final long id = crSms.getLong(SMS_ID_COL);
-                        final int type = crSms.getInt(SMS_TYPE_COL);
-                        final long threadId = crSms.getLong(SMS_THREAD_ID_COL);
-                        final long date = crSms.getLong(SMS_DATE_COL);
-                        if (type > 0 && type < MSG_TO_MAP.length) {
-                            final Message msg = new Message(id, MSG_TO_MAP[type], type, threadId,
-                                    date);
-                            if(V) Log.v(TAG, "MNS_SMS: Found: id: " + id+ "  type: " + type + " threadId: " + threadId + " date: " + date +"\n");
-                            newSmsList.put(id, msg);
-                            if (oldSmsList.containsKey(id)) {
-                                Message old_msg = oldSmsList.remove(id);
-                                if (msg.mType != old_msg.mType) {
-                                    if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList from old");
-                                    mSmsAddedList.put(id, msg);
-                                }
-                            }
-                            else {
-                                final Message oldMsg = oldSmsList.remove(id);
-                                if (!init && (oldMsg == null || oldMsg.mDate != date)) {
-                                    if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList");
-                                    mSmsAddedList.put(id, msg);
-                                }
-                            }
+            if (notify) {
+                // Both snapshots are sorted by id, walk them side by side
+                BluetoothMnsMessageMap old = mMessages;
+                int i = 0;
+                int j = 0;
+                while (i < old.size() || j < messages.size()) {
+                    long oldId = (i < old.size()) ? old.idAt(i) : Long.MAX_VALUE;
+                    long newId = (j < messages.size()) ? messages.idAt(j) : Long.MAX_VALUE;
+                    if (oldId < newId) {
+                        int type = old.typeAt(i);
+                        mDeleted.put(oldId, new Message(oldId, MSG_TO_MAP[type], type,
+                                old.folderKeyAt(i), old.stampAt(i)));
+                        i++;
+                    } else {
+                        int type = messages.typeAt(j);
+                        if (oldId > newId || isChanged(old.typeAt(i), old.stampAt(i), type,
+                                messages.stampAt(j))) {
+                            mAdded.put(newId, new Message(newId, MSG_TO_MAP[type], type,
+                                    messages.folderKeyAt(j), messages.stampAt(j)));
                         }
-                    } while (crSms.moveToNext());
-                    mSmsList = newSmsList;
-                    mSmsDeletedList = oldSmsList;
-                }
-                else
-                {
-                    // Last sms to be deleted
-                    if(mSmsList.size() > 0)
-                    {
-                        if(V) Log.v(TAG, "MNS_SMS: mSmsList Length: " + mSmsList.size());
-                        mSmsDeletedList = mSmsList;
+                        if (oldId == newId) {
+                            i++;
+                        }
+                        j++;
                     }
                 }
-                crSms.close();
             }
+            mMessages = messages;
+            mMaxDate = maxDate;
+        }
+    }
+
+    private class MmsSmsContentObserver extends ContentObserver {
+        private static final String TAG = "MmsSmsContentObserver";
+        private final Tracker mSms = new Tracker(Sms.CONTENT_URI, SMS_PROJECTION,
+                SMS_SELECTION) {
+            @Override
+            boolean isPending(int type) {
+                return type >= Sms.MESSAGE_TYPE_DRAFT && type <= Sms.MESSAGE_TYPE_QUEUED;
+            }
+
+            @Override
+            boolean isChanged(int oldType, long oldDate, int type, long date) {
+                return oldType != type;
+            }
+        };
+
+        private final Tracker mMms = new Tracker(Mms.CONTENT_URI, MMS_PROJECTION,
+                MMS_SELECTION) {
+            @Override
+            boolean isPending(int type) {
+                return type >= Mms.MESSAGE_BOX_DRAFTS && type <= MMS_BOX_QUEUED;
+            }
+
+            @Override
+            boolean isChanged(int oldType, long oldDate, int type, long date) {
+                return oldDate != date;
+            }
+        };
+
+        private static final int INIT = 0;
+        private static final int UPDATE = 1;
+        private static final int THRESHOLD = 1500;  // 1.5 sec
+
+        private HandlerThread mThread;
+        private Handler mHandler;
+
+        public MmsSmsContentObserver() {
+            super(null);
         }
 
-        void updateMms(boolean init) {
-            if (init) {
-                clearMms();
+        /**
+         * Start the worker which takes the snapshot and then handles all
+         * change notifications in order
+         */
+        synchronized void start() {
+            if (mThread != null) {
+                return;
             }
-            final ContentResolver resolver = mContext.getContentResolver();
-            Cursor crMms = resolver.query(Mms.CONTENT_URI, MMS_PROJECTION, null, null, null);
-            if (crMms != null) {
-                if (crMms.moveToFirst()) {
-                    HashMap<Long, Message> oldMmsList = mMmsList;
-                    HashMap<Long, Message> newMmsList = new HashMap<Long, Message>();
-                    do {
-                        final long id = crMms.getInt(MMS_ID_COL);
-                        final int boxType = crMms.getInt(MMS_BOX_TYPE_COL);
-                        final long threadId = crMms.getLong(MMS_THREAD_ID_COL);
-                        final int msgType = crMms.getInt(MMS_MSG_TYPE_COL);
-                        final long date = crMms.getLong(MMS_DATE_COL);
-                        // TODO need to filter out Pdu by message type?
-                        if (msgType != PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND &&
-                                msgType != PduHeaders.MESSAGE_TYPE_DELIVERY_IND) {
-                            final Message msg = new Message(id, MSG_TO_MAP[boxType],
-                                    boxType, threadId, date);
-                            newMmsList.put(id, msg);
-                            final Message oldMsg = oldMmsList.remove(id);
-                            if (!init && (oldMsg == null || oldMsg.mDate != date)) {
-                                mMmsAddedList.put(id, msg);
-                            }
-                        }
-                    } while (crMms.moveToNext());
-                    mMmsList = newMmsList;
-                    mMmsDeletedList = oldMmsList;
+            mThread = new HandlerThread("MmsSms Content Observer Thread");
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper()) {
+                private static final String TAG = "MmsSmsContentObserver.Hanlder";
+                @Override
+                public void handleMessage(android.os.Message msg) {
+                    if (V) Log.v(TAG, "handleMessage(" + msg.what + ") mas Id: " + mMasId);
+                    switch (msg.what) {
+                        case INIT:
+                            mSms.reconcile(false);
+                            mMms.reconcile(false);
+                            break;
+                        case UPDATE:
+                            mSms.update();
+                            mMms.update();
+                            sendEvents();
+                            break;
+                    }
                 }
-                crMms.close();
+            };
+            mHandler.sendEmptyMessage(INIT);
+        }
+
+        synchronized void stop() {
+            if (mThread == null) {
+                return;
             }
+            mHandler.removeCallbacksAndMessages(null);
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+
+        @Override
+        public synchronized void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "onChange(" + selfChange + ") SMS mas Id: " + mMasId);
+            if (mHandler == null) {
+                return;
+            }
+            mHandler.removeMessages(UPDATE);
+            mHandler.sendEmptyMessageDelayed(UPDATE, THRESHOLD);
         }
 
         private void sendEvents() {
-            if (mSmsAddedList.size() > 0) {
+            if (mSms.mAdded.size() > 0) {
                 newSms();
-                mSmsAddedList.clear();
+                mSms.mAdded.clear();
             }
-            if (mSmsDeletedList.size() > 0) {
+            if (mSms.mDeleted.size() > 0) {
                 deletedSms();
-                mSmsDeletedList.clear();
+                mSms.mDeleted.clear();
             }
-            if (mMmsAddedList.size() > 0) {
+            if (mMms.mAdded.size() > 0) {
                 newMms();
-                mMmsAddedList.clear();
+                mMms.mAdded.clear();
             }
-            if (mMmsDeletedList.size() > 0) {
+            if (mMms.mDeleted.size() > 0) {
                 deletedMms();
-                mMmsDeletedList.clear();
+                mMms.mDeleted.clear();
             }
         }
 
-        private void clearSms() {
-            mSmsList.clear();
-            mSmsAddedList.clear();
-            mSmsDeletedList.clear();
-        }
-
-        private void clearMms() {
-            mMmsList.clear();
-            mMmsAddedList.clear();
-            mMmsDeletedList.clear();
-        }
-
         private void newSms() {
             if (V) Log.v(TAG, "newSms() SMS mas Id: " + mMasId);
             if (mListener != null) {
                 final int phoneType = TelephonyManager.getDefault().getPhoneType();
                 final String type = (phoneType == TelephonyManager.PHONE_TYPE_CDMA)
                         ? SMS_CDMA : SMS_GSM;
-                Collection<Message> values = mSmsAddedList.values();
+                Collection<Message> values = mSms.mAdded.values();
                 for (Message msg : values) {
                     if (msg.mType == Sms.MESSAGE_TYPE_SENT) {
                         mListener.onSendingSuccess(mMasId, String.valueOf(SMS_OFFSET_START +
@@ -326,7 +445,7 @@ public class BluetoothMnsSmsMms extends MnsClient {
                 final int phoneType = TelephonyManager.getDefault().getPhoneType();
                 final String type = (phoneType == TelephonyManager.PHONE_TYPE_CDMA)
                         ? SMS_CDMA : SMS_GSM;
-                Collection<Message> values = mSmsDeletedList.values();
+                Collection<Message> values = mSms.mDeleted.values();
                 for (Message msg : values) {
                     String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
                     mListener.onMessageDeleted(mMasId, String.valueOf(SMS_OFFSET_START + msg.mId),
@@ -338,7 +457,7 @@ public class BluetoothMnsSmsMms extends MnsClient {
         private void newMms() {
             if (V) Log.v(TAG, "newMms() MMS mas Id: " + mMasId);
             if (mListener != null) {
-                Collection<Message> values = mMmsAddedList.values();
+                Collection<Message> values = mMms.mAdded.values();
                 for (Message msg : values) {
                     String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
                     mListener.onNewMessage(mMasId, String.valueOf(MMS_OFFSET_START + msg.mId),
@@ -354,7 +473,7 @@ public class BluetoothMnsSmsMms extends MnsClient {
         private void deletedMms() {
             if (V) Log.v(TAG, "deletedMms() MMS mas Id: " + mMasId);
             if (mListener != null) {
-                Collection<Message> values = mMmsDeletedList.values();
+                Collection<Message> values = mMms.mDeleted.values();
                 for (Message msg : values) {
                     String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
                     mListener.onMessageDeleted(mMasId, String.valueOf(MMS_OFFSET_START + msg.mId),
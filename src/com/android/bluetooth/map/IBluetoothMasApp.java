@@ -35,7 +35,7 @@ import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
 import com.android.bluetooth.map.MapUtils.MapUtils.BadRequestException;
 
-import java.io.File;
+import java.io.InputStream;
 
 public interface IBluetoothMasApp {
     public static final int BIT_SUBJECT = 0x1;
@@ -106,7 +106,7 @@ public interface IBluetoothMasApp {
         BluetoothMasAppParams appParams);
     public BluetoothMasMessageRsp msg(String msgHandle,
         BluetoothMasAppParams bluetoothMasAppParams);
-    public BluetoothMasPushMsgRsp pushMsg(String name, File file,
+    public BluetoothMasPushMsgRsp pushMsg(String name, InputStream in,
         BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException;
     public int msgStatus(String msgHandle, BluetoothMasAppParams bluetoothMasAppParams);
     public int msgUpdate();
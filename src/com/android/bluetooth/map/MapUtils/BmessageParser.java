@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map.MapUtils;
+
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMasService;
+import com.android.bluetooth.map.MapUtils.MapUtils.BadRequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Single pass parser for a pushed bMessage. The message is read line by
+ * line straight from the OBEX input stream; the envelope properties, the
+ * originator and first recipient vCards and the first BEGIN:MSG ... END:MSG
+ * block are kept, everything else is dropped as it is read.
+ */
+public class BmessageParser {
+    private static final String TAG = "BmessageParser";
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final String BEGIN = "BEGIN:";
+    private static final String END = "END:";
+    private static final String BMSG = "BMSG";
+    private static final String BENV = "BENV";
+    private static final String BBODY = "BBODY";
+    private static final String VCARD = "VCARD";
+    private static final String MSG = "MSG";
+    private static final String END_MSG = END + MSG;
+    private static final int BUFFER_SIZE = 0x1000;
+
+    /**
+     * Thrown when the pushed message is larger than the caller accepts
+     */
+    public static class EntityTooLargeException extends IOException {
+        public EntityTooLargeException(long maxLength) {
+            super("bMessage is larger than " + maxLength + " bytes");
+        }
+    }
+
+    private String mVersion = "";
+    private String mStatus = "";
+    private String mType = null;
+    private String mFolder = null;
+    private String mEncoding = null;
+    private String mCharset = null;
+    private String mLanguage = null;
+    private String mPartId = null;
+    private int mLength = 0;
+    private String mOriginatorVcard = null;
+    private String mRecipientVcard = null;
+    private String mMsg = null;
+
+    // Parser state
+    private final ArrayList<String> mContainers = new ArrayList<String>();
+    private boolean mSeenEnvelope = false;
+    /** MSG or VCARD while inside one of them, null otherwise */
+    private String mCapturing = null;
+    /** Raw text of the block being captured, null if it is skipped */
+    private StringBuilder mCapture = null;
+
+    private BmessageParser() {
+    }
+
+    /**
+     * Read and parse a bMessage
+     *
+     * @param in stream positioned at BEGIN:BMSG; it is read to its end
+     * @param maxLength largest accepted message in bytes
+     * @throws EntityTooLargeException when more than maxLength bytes are read
+     * @throws BadRequestException when the message is not a well formed
+     *             bMessage
+     */
+    public static BmessageParser parse(InputStream in, long maxLength)
+            throws IOException, BadRequestException {
+        BmessageParser bmsg = new BmessageParser();
+        bmsg.read(in, maxLength);
+        return bmsg;
+    }
+
+    private void read(InputStream in, long maxLength) throws IOException, BadRequestException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long total = 0;
+        int readLength;
+        while ((readLength = in.read(buffer)) != -1) {
+            total += readLength;
+            if (total > maxLength) {
+                throw new EntityTooLargeException(maxLength);
+            }
+            for (int i = 0; i < readLength; i++) {
+                if (lineLength == line.length) {
+                    byte[] grown = new byte[line.length * 2];
+                    System.arraycopy(line, 0, grown, 0, lineLength);
+                    line = grown;
+                }
+                line[lineLength++] = buffer[i];
+                if (buffer[i] == '\n') {
+                    parseLine(new String(line, 0, lineLength));
+                    lineLength = 0;
+                }
+            }
+        }
+        if (lineLength > 0) {
+            parseLine(new String(line, 0, lineLength));
+        }
+        if (mCapturing != null) {
+            throw new BadRequestException("Ill-formatted bMessage, no END:" + mCapturing);
+        }
+        if (V) Log.v(TAG, "Parsed " + total + " bytes, type: " + mType + " folder: " + mFolder);
+    }
+
+    /**
+     * @param raw one line of the message including its line terminator
+     */
+    private void parseLine(String raw) throws BadRequestException {
+        final String text = trimEol(raw);
+
+        if (mCapturing != null) {
+            // Inside a vCard or a message only its end is significant
+            final boolean ended = (END + mCapturing).equals(text);
+            if (mCapture != null) {
+                mCapture.append(ended ? text : raw);
+            }
+            if (ended) {
+                if (mCapture != null) {
+                    store(mCapturing, mCapture.toString());
+                }
+                mCapturing = null;
+                mCapture = null;
+            }
+            return;
+        }
+
+        if (text.startsWith(BEGIN)) {
+            final String name = text.substring(BEGIN.length());
+            if (MSG.equals(name) || VCARD.equals(name)) {
+                mCapturing = name;
+                if (wants(name)) {
+                    mCapture = new StringBuilder(raw);
+                }
+                return;
+            }
+            if (BENV.equals(name)) {
+                mSeenEnvelope = true;
+            }
+            mContainers.add(name);
+        } else if (text.startsWith(END)) {
+            final int top = mContainers.size() - 1;
+            if (top >= 0 && mContainers.get(top).equals(text.substring(END.length()))) {
+                mContainers.remove(top);
+            }
+        } else if (!mContainers.isEmpty()) {
+            property(mContainers.get(mContainers.size() - 1), text);
+        }
+    }
+
+    /** Whether the vCard or MSG block about to start is one that is kept */
+    private boolean wants(String block) {
+        if (MSG.equals(block)) {
+            return mMsg == null;
+        }
+        if (mContainers.contains(BENV)) {
+            return mRecipientVcard == null;
+        }
+        // Only a vCard ahead of the first envelope is the originator
+        return !mSeenEnvelope && mOriginatorVcard == null && !mContainers.isEmpty()
+                && BMSG.equals(mContainers.get(mContainers.size() - 1));
+    }
+
+    private void store(String block, String text) {
+        if (MSG.equals(block)) {
+            mMsg = text;
+        } else if (mContainers.contains(BENV)) {
+            mRecipientVcard = text;
+        } else {
+            mOriginatorVcard = text;
+        }
+    }
+
+    private void property(String container, String text) throws BadRequestException {
+        final int colon = text.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        final String name = text.substring(0, colon);
+        final String value = text.substring(colon + 1);
+        if (BMSG.equals(container)) {
+            if ("VERSION".equals(name) && mVersion.length() == 0) {
+                mVersion = value;
+            } else if ("STATUS".equals(name) && mStatus.length() == 0) {
+                mStatus = value;
+            } else if ("TYPE".equals(name) && mType == null) {
+                mType = value;
+            } else if ("FOLDER".equals(name) && mFolder == null) {
+                mFolder = value;
+            }
+        } else if (BBODY.equals(container)) {
+            if ("ENCODING".equals(name) && mEncoding == null) {
+                mEncoding = value;
+            } else if ("CHARSET".equals(name) && mCharset == null) {
+                mCharset = value;
+            } else if ("LANGUAGE".equals(name) && mLanguage == null) {
+                mLanguage = value;
+            } else if ("PARTID".equals(name) && mPartId == null) {
+                mPartId = value;
+            } else if ("LENGTH".equals(name)) {
+                try {
+                    mLength = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    throw new BadRequestException("Invalid LENGTH " + value);
+                }
+            }
+        }
+    }
+
+    private static String trimEol(String raw) {
+        int end = raw.length();
+        while (end > 0 && (raw.charAt(end - 1) == '\n' || raw.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return raw.substring(0, end);
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getFolder() {
+        return mFolder;
+    }
+
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    public String getCharset() {
+        return mCharset;
+    }
+
+    public String getLanguage() {
+        return mLanguage;
+    }
+
+    public String getPartId() {
+        return mPartId;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the originator vCard from BEGIN:VCARD to END:VCARD, or null
+     *         when the message has none
+     */
+    public String getOriginatorVcard() {
+        return mOriginatorVcard;
+    }
+
+    /**
+     * @return the first vCard of the envelopes from BEGIN:VCARD to
+     *         END:VCARD, or null when there is none
+     */
+    public String getRecipientVcard() {
+        return mRecipientVcard;
+    }
+
+    /**
+     * @return the first message from BEGIN:MSG to END:MSG, or null when the
+     *         message has none
+     */
+    public String getMsgBlock() {
+        return mMsg;
+    }
+
+    /**
+     * @return the content of the first message, without the BEGIN:MSG and
+     *         END:MSG lines
+     */
+    public String getMsgContent() {
+        if (mMsg == null) {
+            return "";
+        }
+        final int begin = mMsg.indexOf('\n') + 1;
+        int end = mMsg.length() - END_MSG.length();
+        if (end > begin && mMsg.charAt(end - 1) == '\n') {
+            end--;
+            if (end > begin && mMsg.charAt(end - 1) == '\r') {
+                end--;
+            }
+        }
+        return (end > begin) ? mMsg.substring(begin, end) : "";
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map.MapUtils;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMasService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * bMessage whose MSG content is written straight to an output stream. The
+ * content is a list of text segments and provider parts; the parts are
+ * only measured when added and are read and base64 encoded while the
+ * bMessage is written, so an MMS with large attachments never has to be
+ * held in memory. The envelope around BEGIN:MSG ... END:MSG is supplied by
+ * the caller, whose LENGTH property comes from {@link #getLength()}.
+ */
+public class BmessageWriter {
+    private static final String TAG = "BmessageWriter";
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final String BEGIN_MSG = "BEGIN:MSG\r\n";
+    private static final String END_MSG = "\r\nEND:MSG\r\n";
+    /** Characters per base64 line before its CRLF, see android.util.Base64 */
+    private static final int BASE64_LINE = 76;
+    /** Input bytes per base64 line */
+    private static final int BASE64_LINE_INPUT = BASE64_LINE / 4 * 3;
+    private static final int ENCODE_CHUNK = BASE64_LINE_INPUT * 72;
+    private static final int BUFFER_SIZE = 0x1000;
+
+    private static class Segment {
+        final byte[] mText;
+        final Uri mUri;
+        final long mSize;
+
+        Segment(byte[] text) {
+            mText = text;
+            mUri = null;
+            mSize = text.length;
+        }
+
+        Segment(Uri uri, long size) {
+            mText = null;
+            mUri = uri;
+            mSize = size;
+        }
+
+        long getEncodedLength() {
+            if (mUri == null) {
+                return mSize;
+            }
+            final long encoded = (mSize + 2) / 3 * 4;
+            return encoded + (encoded + BASE64_LINE - 1) / BASE64_LINE * 2;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private long mLength = BEGIN_MSG.length() + END_MSG.length();
+    private boolean mHasParts = false;
+    private byte[] mHead = new byte[0];
+    private byte[] mTail = new byte[0];
+
+    public BmessageWriter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Set the bMessage text before BEGIN:MSG and after END:MSG
+     */
+    public void setEnvelope(String head, String tail) {
+        mHead = head.getBytes();
+        mTail = tail.getBytes();
+    }
+
+    public void addText(String text) {
+        add(new Segment(text.getBytes()));
+    }
+
+    /**
+     * Append header and then the content of a provider part, base64 encoded
+     * in CRLF terminated lines. Nothing is added if the part can not be read.
+     *
+     * @return false if the part can not be read
+     */
+    public boolean addPart(String header, Uri uri) {
+        final long size = getPartSize(uri);
+        if (size < 0) {
+            return false;
+        }
+        addText(header);
+        add(new Segment(uri, size));
+        mHasParts = true;
+        return true;
+    }
+
+    private void add(Segment segment) {
+        mSegments.add(segment);
+        mLength += segment.getEncodedLength();
+    }
+
+    /**
+     * @return true if some content is read from providers when written
+     */
+    public boolean hasParts() {
+        return mHasParts;
+    }
+
+    /**
+     * @return the length of the MSG block, BEGIN:MSG and END:MSG included
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mHead);
+        out.write(BEGIN_MSG.getBytes());
+        for (Segment segment : mSegments) {
+            if (segment.mUri == null) {
+                out.write(segment.mText);
+            } else {
+                writePart(segment, out);
+            }
+        }
+        out.write(END_MSG.getBytes());
+        out.write(mTail);
+    }
+
+    /**
+     * @return the whole bMessage, or null if a part could not be read
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) mLength
+                + mHead.length + mTail.length);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write bMessage", e);
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private void writePart(Segment segment, OutputStream out) throws IOException {
+        InputStream is = mResolver.openInputStream(segment.mUri);
+        if (is == null) {
+            throw new IOException("Unable to open " + segment.mUri);
+        }
+        try {
+            // Whole lines per chunk, so each chunk ends with its own CRLF
+            byte[] buffer = new byte[ENCODE_CHUNK];
+            long remaining = segment.mSize;
+            while (remaining > 0) {
+                final int length = (int) Math.min(buffer.length, remaining);
+                int filled = 0;
+                while (filled < length) {
+                    int count = is.read(buffer, filled, length - filled);
+                    if (count < 0) {
+                        // LENGTH has been sent already
+                        throw new IOException(segment.mUri + " shrank while being sent");
+                    }
+                    filled += count;
+                }
+                out.write(Base64.encode(buffer, 0, length, Base64.CRLF));
+                remaining -= length;
+            }
+        } finally {
+            is.close();
+        }
+        if (V) Log.v(TAG, "Wrote " + segment.mSize + " bytes of " + segment.mUri);
+    }
+
+    /**
+     * @return the size of the part content, or -1 if it can not be read
+     */
+    private long getPartSize(Uri uri) {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(uri, "r");
+            if (afd != null) {
+                long size = afd.getLength();
+                if (size == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    size = afd.getParcelFileDescriptor().getStatSize();
+                }
+                if (size >= 0) {
+                    return size;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Unable to open " + uri, e);
+            return -1;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error while closing " + uri, e);
+                }
+            }
+        }
+
+        // Not backed by a plain file, count the bytes instead
+        InputStream is = null;
+        try {
+            is = mResolver.openInputStream(uri);
+            if (is == null) {
+                return -1;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                size += count;
+            }
+            return size;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + uri, e);
+            return -1;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error while closing " + uri, e);
+                }
+            }
+        }
+    }
+}
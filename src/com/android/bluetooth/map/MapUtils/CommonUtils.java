@@ -35,7 +35,6 @@ import android.util.TimeFormatException;
 
 import com.android.bluetooth.map.BluetoothMasAppParams;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -61,7 +60,7 @@ public class CommonUtils {
     }
 
     public static class BluetoothMasMessageListingRsp {
-        public File file = null;
+        public List<MsgListingConsts> msgList = null;
         public int msgListingSize = 0;
         public byte newMessage = 0;
         public int rsp = ResponseCodes.OBEX_HTTP_OK;
@@ -69,7 +68,9 @@ public class CommonUtils {
 
     public static class BluetoothMasMessageRsp {
         public byte fractionDeliver = 0;
-        public File file = null;
+        public byte[] body = null;
+        /** Set instead of body when the bMessage is streamed from providers */
+        public BmessageWriter bodyWriter = null;
         public int rsp = ResponseCodes.OBEX_HTTP_OK;
     }
 
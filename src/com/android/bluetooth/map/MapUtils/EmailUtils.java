@@ -42,7 +42,6 @@ import com.android.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -773,48 +772,62 @@ public class EmailUtils {
     // deleted
     public static final int TYPE_DELETED = 6;
 
-    public static HashMap<Long, Integer> sAccToMas = new HashMap<Long, Integer>();
-    public static HashMap<Integer, Long> sMasToAcc = new HashMap<Integer, Long>();
+    // Email account <-> MAS instance, updated by the MAS service while
+    // sessions and MNS clients read it
+    private static final Object sMapTableLock = new Object();
+    private static HashMap<Long, Integer> sAccToMas = new HashMap<Long, Integer>();
+    private static HashMap<Integer, Long> sMasToAcc = new HashMap<Integer, Long>();
 
     public static void clearMapTable() {
-        sAccToMas.clear();
-        sMasToAcc.clear();
+        synchronized (sMapTableLock) {
+            sAccToMas.clear();
+            sMasToAcc.clear();
+        }
     }
 
     public static void updateMapTable(long accountId, int masId) {
-        if (sAccToMas.containsKey(accountId)) {
-            sAccToMas.remove(accountId);
-        }
-        if (sMasToAcc.containsKey(masId)) {
-            sMasToAcc.remove(masId);
+        synchronized (sMapTableLock) {
+            Integer oldMasId = sAccToMas.remove(accountId);
+            if (oldMasId != null) {
+                sMasToAcc.remove(oldMasId);
+            }
+            Long oldAccountId = sMasToAcc.remove(masId);
+            if (oldAccountId != null) {
+                sAccToMas.remove(oldAccountId);
+            }
+            sAccToMas.put(accountId, masId);
+            sMasToAcc.put(masId, accountId);
         }
-        sAccToMas.put(accountId, masId);
-        sMasToAcc.put(masId, accountId);
     }
 
     public static long getAccountId(int masId) {
-        Long accountId = sMasToAcc.get(masId);
-        return (accountId != null) ? accountId : -1;
+        synchronized (sMapTableLock) {
+            Long accountId = sMasToAcc.get(masId);
+            return (accountId != null) ? accountId : -1;
+        }
     }
 
     public static int getMasId(long accountId) {
-        Integer masId = sAccToMas.get(accountId);
-        return (masId != null) ? masId : -1;
+        synchronized (sMapTableLock) {
+            Integer masId = sAccToMas.get(accountId);
+            return (masId != null) ? masId : -1;
+        }
     }
 
     public static void removeMasIdIfNotPresent(List<Long> accountIdList) {
-        Collection<Long> oldList = sMasToAcc.values();
-        ArrayList<Long> toRemove = new ArrayList<Long>();
-        for (long oldId : oldList) {
-            if (!accountIdList.contains(oldId)) {
-                // remove it
-                toRemove.add(oldId);
-            }
-        }
-        for (long accountId : toRemove) {
-            Integer masId = sAccToMas.remove(accountId);
-            if (masId != null) {
-                sMasToAcc.remove(masId);
+        synchronized (sMapTableLock) {
+            ArrayList<Long> toRemove = new ArrayList<Long>();
+            for (long oldId : sMasToAcc.values()) {
+                if (!accountIdList.contains(oldId)) {
+                    // remove it
+                    toRemove.add(oldId);
+                }
+            }
+            for (long accountId : toRemove) {
+                Integer masId = sAccToMas.remove(accountId);
+                if (masId != null) {
+                    sMasToAcc.remove(masId);
+                }
             }
         }
     }
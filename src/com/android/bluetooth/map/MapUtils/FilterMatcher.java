@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map.MapUtils;
+
+import java.util.regex.Pattern;
+
+/**
+ * Matcher for the FilterOriginator and FilterRecipient application
+ * parameters, compiled once per listing request.
+ *
+ * A value matches if it contains the filter, where each '*' of the filter
+ * stands for any text containing at least one letter or digit. Filters
+ * without '*' are plain substring searches; everything else in the filter
+ * is taken literally.
+ */
+public class FilterMatcher {
+    private static final String WILDCARD = ".*[0-9A-Za-z].*";
+
+    private final String mLiteral;
+    private final Pattern mPattern;
+
+    private FilterMatcher(String literal, Pattern pattern) {
+        mLiteral = literal;
+        mPattern = pattern;
+    }
+
+    /**
+     * @return the matcher for the filter, or null if the filter is not set
+     */
+    public static FilterMatcher compile(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        filter = filter.trim();
+        if (filter.length() == 0) {
+            return null;
+        }
+        if (filter.indexOf('*') < 0) {
+            return new FilterMatcher(filter, null);
+        }
+        StringBuilder regExp = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = filter.indexOf('*', start)) >= 0) {
+            if (star > start) {
+                regExp.append(Pattern.quote(filter.substring(start, star)));
+            }
+            regExp.append(WILDCARD);
+            start = star + 1;
+        }
+        if (start < filter.length()) {
+            regExp.append(Pattern.quote(filter.substring(start)));
+        }
+        return new FilterMatcher(null, Pattern.compile(regExp.toString(), Pattern.DOTALL));
+    }
+
+    public boolean matches(String value) {
+        if (value == null) {
+            return false;
+        }
+        if (mPattern == null) {
+            return value.contains(mLiteral);
+        }
+        return mPattern.matcher(value).find();
+    }
+
+    @Override
+    public String toString() {
+        return (mPattern == null) ? mLiteral : mPattern.pattern();
+    }
+}
@@ -50,8 +50,9 @@ import java.io.StringBufferInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.StringWriter;
 import java.util.List;
-import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import static com.android.vcard.VCardConstants.PROPERTY_EMAIL;
 import static com.android.vcard.VCardConstants.PROPERTY_FN;
@@ -75,6 +76,8 @@ import static com.android.vcard.VCardConstants.VERSION_V30;
 public class MapUtils {
     public static final String TAG = "MapUtils";
     public static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final String MSG_LISTING_XML_DECLARATION = "<?xml version=\"1.0\"?>";
     private static final String CRLF = "\r\n";
 
     /**
@@ -103,145 +106,166 @@ public class MapUtils {
     }
 
     /**
-     * messageListingXML
+     * writeMessageListingXML
      *
-     * This method takes a list of message objects and returns a String with the
-     * XML version of the List
+     * This method writes the XML version of the list straight to the given
+     * stream, without building the document in memory
      *
      * @param list
      *            An array of message objects where each element represents a
      *            message
-     * @return This method returns either null or a String
+     * @param out
+     *            The stream to write the XML to; it is flushed, not closed
      */
-    public static String messageListingXML(List<MsgListingConsts> list) {
+    public static void writeMessageListingXML(List<MsgListingConsts> list, OutputStream out)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write(MSG_LISTING_XML_DECLARATION);
         XmlSerializer serializer = new FastXmlSerializer();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        OutputStreamWriter myOutputStreamWriter = null;
+        // Replace the declaration of the serializer with our own
+        serializer.setOutput(new SkipFirstLineWriter(writer));
         try {
-            myOutputStreamWriter = new OutputStreamWriter(outputStream, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to encode: charset=" + "UTF-8");
-            return null;
+            serializeMessageListing(serializer, list);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.toString());
+        } catch (IllegalStateException e) {
+            throw new IOException(e.toString());
         }
-        try {
-            String str1;
-            String str2 = "<?xml version=\"1.0\"?>";
-            serializer.setOutput(myOutputStreamWriter);
-            serializer.startDocument("UTF-8", true);
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            serializer.text("\n");
-            serializer.startTag(null, "MAP-msg-listing");
-            serializer.attribute(null, "version", "1.0");
-            for (MsgListingConsts msg : list) {
-                serializer.startTag(null, "msg");
-
-                serializer.attribute(null, "handle", ("" + msg.msg_handle));
-                if (msg.sendSubject == true) {
-                    if (msg.subject == null){
-                        serializer.attribute(null, "subject", "");
-                    } else {
-                        serializer.attribute(null, "subject", msg.subject);
-                    }
-
-                }
-                if (msg.datetime != null) {
-                    serializer.attribute(null, "datetime", msg.datetime);
-                }
-                if (msg.sender_name != null) {
-                    serializer.attribute(null, "sender_name", msg.sender_name);
-                }
+        writer.flush();
+    }
 
-                if (msg.sender_addressing != null) {
-                    serializer.attribute(null, "sender_addressing",
-                            msg.sender_addressing);
+    private static void serializeMessageListing(XmlSerializer serializer,
+            List<MsgListingConsts> list) throws IOException {
+        serializer.startDocument("UTF-8", true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.text("\n");
+        serializer.startTag(null, "MAP-msg-listing");
+        serializer.attribute(null, "version", "1.0");
+        for (MsgListingConsts msg : list) {
+            serializer.startTag(null, "msg");
+
+            serializer.attribute(null, "handle", ("" + msg.msg_handle));
+            if (msg.sendSubject == true) {
+                if (msg.subject == null){
+                    serializer.attribute(null, "subject", "");
+                } else {
+                    serializer.attribute(null, "subject", msg.subject);
                 }
 
-                if (msg.replyto_addressing != null) {
-                    serializer.attribute(null, "replyto_addressing",
-                            msg.replyto_addressing);
-                }
+            }
+            if (msg.datetime != null) {
+                serializer.attribute(null, "datetime", msg.datetime);
+            }
+            if (msg.sender_name != null) {
+                serializer.attribute(null, "sender_name", msg.sender_name);
+            }
 
-                if (msg.recepient_name != null) {
-                    serializer.attribute(null, "recipient_name",
-                            msg.recepient_name);
-                }
-                if (msg.sendRecipient_addressing == true) {
-                    if (msg.recepient_addressing != null) {
-                        serializer.attribute(null, "recipient_addressing",
-                                msg.recepient_addressing);
-                    } else {
-                        serializer.attribute(null, "recipient_addressing", "");
-                    }
-                }
-                if (msg.type != null) {
-                    serializer.attribute(null, "type", msg.type);
-                }
-                if (msg.size != -1) {
-                    serializer.attribute(null, "size", ("" + msg.size));
-                }
+            if (msg.sender_addressing != null) {
+                serializer.attribute(null, "sender_addressing",
+                        msg.sender_addressing);
+            }
 
-                if (msg.contains_text != null) {
-                    serializer.attribute(null, "text", msg.contains_text);
-                }
+            if (msg.replyto_addressing != null) {
+                serializer.attribute(null, "replyto_addressing",
+                        msg.replyto_addressing);
+            }
 
-                if (msg.reception_status != null) {
-                    serializer.attribute(null, "reception_status",
-                            msg.reception_status);
+            if (msg.recepient_name != null) {
+                serializer.attribute(null, "recipient_name",
+                        msg.recepient_name);
+            }
+            if (msg.sendRecipient_addressing == true) {
+                if (msg.recepient_addressing != null) {
+                    serializer.attribute(null, "recipient_addressing",
+                            msg.recepient_addressing);
+                } else {
+                    serializer.attribute(null, "recipient_addressing", "");
                 }
+            }
+            if (msg.type != null) {
+                serializer.attribute(null, "type", msg.type);
+            }
+            if (msg.size != -1) {
+                serializer.attribute(null, "size", ("" + msg.size));
+            }
 
-                if (msg.attachment_size != -1) {
-                    serializer.attribute(null, "attachment_size",
-                            ("" + Integer.toString(msg.attachment_size)));
-                }
+            if (msg.contains_text != null) {
+                serializer.attribute(null, "text", msg.contains_text);
+            }
 
-                if (msg.priority != null) {
-                    serializer.attribute(null, "priority", msg.priority);
-                }
+            if (msg.reception_status != null) {
+                serializer.attribute(null, "reception_status",
+                        msg.reception_status);
+            }
 
-                if (msg.read != null) {
-                    serializer.attribute(null, "read", msg.read);
-                }
+            if (msg.attachment_size != -1) {
+                serializer.attribute(null, "attachment_size",
+                        ("" + Integer.toString(msg.attachment_size)));
+            }
 
-                if (msg.sent != null) {
-                    serializer.attribute(null, "sent", msg.sent);
-                }
+            if (msg.priority != null) {
+                serializer.attribute(null, "priority", msg.priority);
+            }
 
-                if (msg.msg_protected != null) {
-                    serializer.attribute(null, "protected", msg.msg_protected);
-                }
+            if (msg.read != null) {
+                serializer.attribute(null, "read", msg.read);
+            }
 
-                serializer.endTag(null, "msg");
+            if (msg.sent != null) {
+                serializer.attribute(null, "sent", msg.sent);
+            }
 
+            if (msg.msg_protected != null) {
+                serializer.attribute(null, "protected", msg.msg_protected);
             }
-            serializer.endTag(null, "MAP-msg-listing");
-            serializer.endDocument();
-            try {
-                str1 = outputStream.toString("UTF-8");
-                if (V) Log.v(TAG, "Printing XML-Converted String: " + str1);
-            int line1 = 0;
-            line1 = str1.indexOf("\n");
-            str2 += str1.substring(line1 + 1);
-            if (list.size() > 0) {
-                int indxHandle = str2.indexOf("msg handle");
-                String str3 = "<" + str2.substring(indxHandle);
-                str2 = str2.substring(0, (indxHandle - 1)) + str3;
+
+            serializer.endTag(null, "msg");
+
+        }
+        serializer.endTag(null, "MAP-msg-listing");
+        serializer.endDocument();
+    }
+
+    /**
+     * Drops everything up to and including the first line feed
+     */
+    private static class SkipFirstLineWriter extends Writer {
+        private final Writer mOut;
+        private boolean mSkipping = true;
+
+        SkipFirstLineWriter(Writer out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(char[] buf, int offset, int count) throws IOException {
+            if (mSkipping) {
+                int end = offset + count;
+                int i = offset;
+                while (i < end && buf[i] != '\n') {
+                    i++;
+                }
+                if (i == end) {
+                    return;
+                }
+                mSkipping = false;
+                count = end - (i + 1);
+                offset = i + 1;
             }
-            return str2;
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Failed to encode: charset=" + "UTF-8");
-                return null;
+            if (count > 0) {
+                mOut.write(buf, offset, count);
             }
-        } catch (IllegalArgumentException e) {
-
-            e.printStackTrace();
-        } catch (IllegalStateException e) {
+        }
 
-            e.printStackTrace();
-        } catch (IOException e) {
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
 
-            e.printStackTrace();
+        @Override
+        public void close() throws IOException {
+            mOut.close();
         }
-        return null;
     }
 
     /**
@@ -907,15 +931,15 @@ public class MapUtils {
     /**
      * fromBmessageSMS
      *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and loads a BmessageConsts object that is returned
+     * This method takes as input a parsed bMessage and loads a BmessageConsts
+     * object that is returned
      *
-     * @param String
+     * @param BmessageParser
      *            - which is a bMessage formatted SMS message
      * @return This method returns a BmessageConsts object
      * @throws BadRequestException
      */
-    public static BmessageConsts fromBmessageSMS(String bmsg) throws BadRequestException {
+    public static BmessageConsts fromBmessageSMS(BmessageParser bmsg) throws BadRequestException {
         BmessageConsts bMsgObj = new BmessageConsts();
         String vCard = fetchRecipientVcard(bmsg);
 
@@ -929,26 +953,10 @@ public class MapUtils {
         // Extract vCard Version
         bMsgObj.setVcard_version(recipient.mVersion);
 
-        // Extract bMessage Version
-        bMsgObj.setBmsg_version(fetchVersion(bmsg));
-
-        // Extract Message Status
-        bMsgObj.setStatus(fetchReadStatus(bmsg));
-
-        // Extract Message Type
-        bMsgObj.setType(fetchType(bmsg));
-
-        // Extract Message Folder
-        bMsgObj.setFolder(fetchFolder(bmsg));
-
-        // Fetch Message Length
-        bMsgObj.setBody_length(fetchBodyLength(bmsg));
+        loadBmessageEnvelope(bMsgObj, bmsg);
 
         // Extract Message
-        bMsgObj.setBody_msg(fetchBodyMsg(bmsg));
-
-        // Extract Message encoding
-        bMsgObj.setBody_encoding(fetchBodyEncoding(bmsg));
+        bMsgObj.setBody_msg(bmsg.getMsgContent());
 
         return bMsgObj;
     }
@@ -956,15 +964,15 @@ public class MapUtils {
     /**
      * fromBmessageMMS
      *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and loads a BmessageConsts object that is returned
+     * This method takes as input a parsed bMessage and loads a BmessageConsts
+     * object that is returned
      *
-     * @param String
-     *            - which is a bMessage formatted SMS message
+     * @param BmessageParser
+     *            - which is a bMessage formatted MMS message
      * @return This method returns a BmessageConsts object
      * @throws BadRequestException
      */
-    public static BmessageConsts fromBmessageMMS(String bmsg) throws BadRequestException {
+    public static BmessageConsts fromBmessageMMS(BmessageParser bmsg) throws BadRequestException {
         BmessageConsts bMsgObj = new BmessageConsts();
 
         String phoneNumber = null;
@@ -988,43 +996,27 @@ public class MapUtils {
         // Extract vCard Version
         bMsgObj.setVcard_version(recipient.mVersion);
 
-        // Extract bMessage Version
-        bMsgObj.setBmsg_version(fetchVersion(bmsg));
-
-        // Extract Message Status
-        bMsgObj.setStatus(fetchReadStatus(bmsg));
-
-        // Extract Message Type
-        bMsgObj.setType(fetchType(bmsg));
+        loadBmessageEnvelope(bMsgObj, bmsg);
 
-        // Extract Message Folder
-        bMsgObj.setFolder(fetchFolder(bmsg));
-
-        // Fetch Message Length
-        bMsgObj.setBody_length(fetchBodyLength(bmsg));
-
-        // Extract Message
+        // Extract Message, MMS body keeps both Begin and End message tags
         bMsgObj.setBody_msg(fetchBodyMsgMMS(bmsg));
 
-        // Extract Message encoding
-        bMsgObj.setBody_encoding(fetchBodyEncoding(bmsg));
-
         return bMsgObj;
     }
 
     /**
      * fromBmessageEmail
      *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and loads a BmessageConsts object that is returned
+     * This method takes as input a parsed bMessage and loads a BmessageConsts
+     * object that is returned
      *
-     * @param String
+     * @param BmessageParser
      *            - which is a bMessage formatted Email message
      * @return This method returns a BmessageConsts object
      */
 
     public static BmessageConsts fromBmessageEmail(Context context,
-                        String bmsg, int mMasId) throws BadRequestException {
+                        BmessageParser bmsg, int mMasId) throws BadRequestException {
         BmessageConsts bMsgObj = new BmessageConsts();
         String vCard = fetchRecipientVcard(bmsg);
         if (V) Log.v(TAG, "vCard Info: " + vCard);
@@ -1036,8 +1028,8 @@ public class MapUtils {
         bMsgObj.setRecipientVcard_email(recipient.mEmail);
         if (V) Log.v(TAG, "Email: " + recipient.mEmail);
 
-        String vcardOrig = fetchOriginatorVcardEmail(bmsg);
-        RecipientVCard originator = parseVCard(vcardOrig);
+        String vcardOrig = bmsg.getOriginatorVcard();
+        RecipientVCard originator = parseVCard((vcardOrig != null) ? vcardOrig : "");
         if (originator.mEmail.length() == 0) {
             long accountId = -1;
             accountId = EmailUtils.getAccountId(mMasId);
@@ -1063,48 +1055,58 @@ public class MapUtils {
             bMsgObj.setOriginatorVcard_name(originator.mName);
         }
 
-        if (V){
-            Log.v(TAG, "Bmsg version:: "+fetchVersion(bmsg));
-        }
-        // Extract bMessage Version
-        bMsgObj.setBmsg_version(fetchVersion(bmsg));
+        loadBmessageEnvelope(bMsgObj, bmsg);
 
-        if (V){
-            Log.v(TAG, "Read status:: "+fetchReadStatus(bmsg));
-        }
-        // Extract Message Status
-        bMsgObj.setStatus(fetchReadStatus(bmsg));
+        // Extract Message and the Subject of the email
+        final String msg = fetchBodyMsgMMS(bmsg);
+        bMsgObj.setBody_msg(fetchBodyEmail(msg));
+        bMsgObj.setSubject(fetchSubjectEmail(msg));
 
-        if (V){
-            Log.v(TAG, "Message Type:: "+fetchType(bmsg));
-        }
-        // Extract Message Type
-        bMsgObj.setType(fetchType(bmsg));
-
-        if (V){
-            Log.v(TAG, "Folder:: "+fetchFolder(bmsg));
-        }
-        // Extract Message Folder
-        bMsgObj.setFolder(fetchFolder(bmsg));
+        return bMsgObj;
+    }
 
-        if (V){
-            Log.v(TAG, "body length:: "+fetchBodyLength(bmsg));
-        }
-        // Fetch Message Length
-        bMsgObj.setBody_length(fetchBodyLength(bmsg));
-        // Extract Message
-        bMsgObj.setBody_msg(fetchBodyEmail(bmsg));
+    /**
+     * Copy the bMessage properties and the bBody properties of a parsed
+     * bMessage
+     */
+    private static void loadBmessageEnvelope(BmessageConsts bMsgObj, BmessageParser bmsg) {
+        if (V) {
+            Log.v(TAG, "Bmsg version:: " + bmsg.getVersion() + " Read status:: "
+                    + bmsg.getStatus() + " Message Type:: " + bmsg.getType() + " Folder:: "
+                    + bmsg.getFolder() + " body length:: " + bmsg.getLength()
+                    + " Message encoding:: " + bmsg.getEncoding());
+        }
+        bMsgObj.setBmsg_version(bmsg.getVersion());
+        bMsgObj.setStatus(bmsg.getStatus());
+        bMsgObj.setType(bmsg.getType());
+        bMsgObj.setFolder(bmsg.getFolder());
+        bMsgObj.setBody_length(bmsg.getLength());
+        bMsgObj.setBody_encoding(bmsg.getEncoding());
+        bMsgObj.setBody_charset(bmsg.getCharset());
+        bMsgObj.setBody_language(bmsg.getLanguage());
+        bMsgObj.setBody_part_ID(bmsg.getPartId());
+    }
 
-        if (V){
-            Log.v(TAG, "Message encoding:: "+fetchBodyEncoding(bmsg));
+    /**
+     * fetchRecipientVcard
+     *
+     * Returns the first vCard of the envelopes of a parsed bMessage
+     *
+     * @param
+     * @return String This method returns a Vcard String
+     */
+    private static String fetchRecipientVcard(BmessageParser bmsg) throws BadRequestException {
+        final String vCard = bmsg.getRecipientVcard();
+        if (vCard == null) {
+            // no vCard in BENV
+            throw new BadRequestException("No vCard in BENV");
         }
-        // Extract Message encoding
-        bMsgObj.setBody_encoding(fetchBodyEncoding(bmsg));
-
-        // Extract Subject of the email
-        bMsgObj.setSubject(fetchSubjectEmail(bmsg));
+        return vCard;
+    }
 
-        return bMsgObj;
+    private static String fetchBodyMsgMMS(BmessageParser bmsg) {
+        final String msg = bmsg.getMsgBlock();
+        return (msg != null) ? msg : "";
     }
 
     /**
@@ -1163,29 +1165,6 @@ public class MapUtils {
         }
     }
 
-    private static String fetchOriginatorVcardEmail(String bmsg) throws BadRequestException {
-        // Find the position of the first vCard in the string
-        int vCardBeginPos = bmsg.indexOf("BEGIN:VCARD");
-        if (vCardBeginPos == -1) {
-            // no vCard bad request
-            throw new BadRequestException("No Vcard");
-        }
-        if (V) Log.v(TAG, "vCard start position: " + vCardBeginPos);
-        int bEnvPos = bmsg.indexOf("BEGIN:BENV");
-        if (vCardBeginPos > bEnvPos) {
-            // the first vCard is not originator
-            return "";
-        }
-        int vCardEndPos = bmsg.indexOf("END:VCARD", vCardBeginPos);
-        if (vCardEndPos == -1) {
-            // no END:VCARD bad request
-            throw new BadRequestException("No END:VCARD");
-        }
-        vCardEndPos += "END:VCARD".length();
-
-        return bmsg.substring(vCardBeginPos, vCardEndPos);
-    }
-
     private static String fetchSubjectEmail(String body) {
         int pos = body.indexOf("Subject:");
 
@@ -1198,335 +1177,6 @@ public class MapUtils {
         }
     }
 
-    /**
-     * fetchVersion
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage version string
-     *
-     * @param
-     * @return String This method returns a Version String
-     */
-    private static String fetchVersion(String bmsg) {
-        int pos = bmsg.indexOf("VERSION:");
-        if (pos > 0) {
-
-            int beginVersionPos = pos + (("VERSION:").length());
-            int endVersionPos = bmsg.indexOf(CRLF, beginVersionPos);
-            return bmsg.substring(beginVersionPos, endVersionPos);
-
-        } else {
-            return "";
-        }
-    }
-
-    /**
-     * fetchOriginatorVcard
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the orginator vCard string
-     *
-     * @param
-     * @return String This method returns a vCard String
-     */
-    private static String fetchOriginatorVcard(String bmsg) {
-        // Find the position of the first vCard in the string
-        int pos = bmsg.indexOf("\r\nBEGIN:VCARD");
-        if (pos > 0) {
-            int beginVcardPos = pos + ("\r\n".length());
-            int endVcardPos = bmsg.indexOf("END:VCARD");
-
-            return bmsg.substring(beginVcardPos, endVcardPos);
-
-        } else {
-
-            return null;
-
-        }
-    }
-
-    /**
-     * fetchRecipientVcard
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String looking for the first envelope. Once it finds the envelop, it then
-     * looks for the first vCard and returns it as a String
-     *
-     * @param
-     * @return String This method returns a Vcard String
-     */
-    private static String fetchRecipientVcard(String bmsg) throws BadRequestException {
-        // Locate BENV
-        int locBENV = 0;
-        int pos = 0;
-        locBENV = bmsg.indexOf(CRLF + "BEGIN:BENV");
-        pos = bmsg.indexOf(CRLF + "BEGIN:VCARD", locBENV);
-        if (pos < 0) {
-            // no vCard in BENV
-            throw new BadRequestException("No vCard in BENV");
-        }
-        if (pos > 0) {
-            int beginVcardPos = pos + CRLF.length();
-            int endVcardPos = bmsg.indexOf("END:VCARD", pos);
-            if (endVcardPos < 0) {
-                // no END:VCARD in BENV
-                throw new BadRequestException("No END:VCARD in BENV");
-            }
-            endVcardPos += "END:VCARD".length();
-            return bmsg.substring(beginVcardPos, endVcardPos);
-
-        } else {
-            return "";
-        }
-    }
-
-    /**
-     * fetchReadStatus
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage read status String
-     *
-     * @param
-     * @return String This method returns a Read Status String
-     */
-    private static String fetchReadStatus(String bmsg) {
-        int pos = bmsg.indexOf("STATUS:");
-        if (pos > 0) {
-
-            int beginStatusPos = pos + (("STATUS:").length());
-            int endStatusPos = bmsg.indexOf(CRLF, beginStatusPos);
-            return bmsg.substring(beginStatusPos, endStatusPos);
-
-        } else {
-            return "";
-        }
-    }
-
-    /**
-     * fetchType
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage type String
-     *
-     * @param
-     * @return String This method returns a message type String
-     */
-    public static String fetchType(String bmsg) {
-        int pos = bmsg.indexOf("TYPE:");
-        if (pos > 0) {
-            int beginTypePos = pos + (("TYPE:").length());
-            int endTypePos = bmsg.indexOf(CRLF, beginTypePos);
-
-            return bmsg.substring(beginTypePos, endTypePos);
-
-        } else {
-            return null;
-        }
-    }
-
-    /**
-     * fetchFolder
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage Folder path String
-     *
-     * @param
-     * @return String This method returns a Folder path String
-     */
-    private static String fetchFolder(String bmsg) {
-        int pos = bmsg.indexOf("FOLDER:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("FOLDER:").length());
-            int endVersionPos = bmsg.indexOf(CRLF, beginVersionPos);
-
-            return bmsg.substring(beginVersionPos, endVersionPos);
-
-        } else {
-            return null;
-        }
-    }
-
-    /**
-     * fetchBody
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage Body as a String
-     *
-     * @param
-     * @return String This method returns a Body String
-     */
-    @SuppressWarnings("unused")
-    private static String fetchBody(String bmsg) {
-        int pos = bmsg.indexOf("BEGIN:BBODY");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("BEGIN:BBODY").length());
-            int endVersionPos = bmsg.indexOf("END:BBODY", beginVersionPos);
-
-            return bmsg.substring(beginVersionPos, endVersionPos);
-
-        } else {
-            return null;
-        }
-
-    }
-
-    /**
-     * fetchBodyPartID
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Part ID as a
-     * String
-     *
-     * @param
-     * @return String This method returns a Body Part ID String
-     */
-    @SuppressWarnings("unused")
-    private static String fetchBodyPartID(String body) {
-        int pos = body.indexOf("PARTID:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("PARTID:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-            return body.substring(beginVersionPos, endVersionPos);
-
-        } else {
-            return null;
-        }
-    }
-
-    /**
-     * fetchCharset
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Charset as a
-     * String
-     *
-     * @param
-     * @return String This method returns a Charset String
-     */
-    @SuppressWarnings("unused")
-    private static String fetchCharset(String body) {
-        int pos = body.indexOf("CHARSET:");
-        if (pos > 0) {
-
-            int beginVersionPos = pos + (("CHARSET:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-
-            return body.substring(beginVersionPos, endVersionPos);
-
-        } else {
-
-            return null;
-        }
-    }
-
-    /**
-     * fetchBodyEncoding
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Encoding as
-     * a String
-     *
-     * @param
-     * @return String This method returns a Body Encoding String
-     */
-    private static String fetchBodyEncoding(String body) {
-        int pos = body.indexOf("ENCODING:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("ENCODING:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-            return body.substring(beginVersionPos, endVersionPos);
-
-        } else {
-
-            return null;
-        }
-    }
-
-    /**
-     * fetchBodyLanguage
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Language as
-     * a String
-     *
-     * @param
-     * @return String This method returns a Body Language String
-     */
-    @SuppressWarnings("unused")
-    private static String fetchBodyLanguage(String body) {
-        int pos = body.indexOf("LANGUAGE:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("LANGUAGE:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-            return body.substring(beginVersionPos, endVersionPos);
-
-        } else {
-
-            return null;
-        }
-    }
-
-    /**
-     * fetchBodyLength
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Length as an
-     * Integer
-     *
-     * @param
-     * @return String This method returns a Body Length Integer
-     */
-    private static Integer fetchBodyLength(String body) {
-        int pos = body.indexOf("LENGTH:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("LENGTH:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-            String bd = body.substring(beginVersionPos,
-                       endVersionPos);
-            Integer bl = Integer.valueOf(bd);
-            return bl;
-
-        } else {
-
-            return null;
-        }
-    }
-
-    /**
-     * fetchBodyMsg
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Message as a
-     * String
-     *
-     * @param
-     * @return String This method returns a Body Message String
-     */
-    private static String fetchBodyMsg(String body) {
-        int pos = body.indexOf("BEGIN:MSG");
-        if (pos > 0) {
-            int beginVersionPos = pos
-                    + (("BEGIN:MSG").length() + CRLF.length());
-            int endVersionPos = (body.indexOf("END:MSG", beginVersionPos) - CRLF
-                    .length());
-            return body.substring(beginVersionPos, endVersionPos);
-        } else {
-            return "";
-        }
-    }
-
-    private static String fetchBodyMsgMMS(String body) {
-        int pos = body.indexOf("BEGIN:MSG");
-        if (pos > 0) {
-            /* MMS body should contain both Begin and End message tags */
-            int beginVersionPos = pos;
-            int endVersionPos = body.indexOf("END:MSG", beginVersionPos) + ("END:MSG").length();
-            return body.substring(beginVersionPos, endVersionPos);
-        } else {
-            return "";
-        }
-    }
-
     private static String fetchBodyMsgEmail(String body) {
         if (V){
             Log.v(TAG, "bMessageEmail inside fetch body ::"+body);
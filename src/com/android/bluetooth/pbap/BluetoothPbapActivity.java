@@ -97,6 +97,9 @@ public class BluetoothPbapActivity extends AlertActivity implements
 
     private static final int DISMISS_TIMEOUT_DIALOG_VALUE = 2000;
 
+    // Name of the device of the session this dialog belongs to
+    private String mRemoteName;
+
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -112,6 +115,7 @@ public class BluetoothPbapActivity extends AlertActivity implements
         super.onCreate(savedInstanceState);
         Intent i = getIntent();
         String action = i.getAction();
+        mRemoteName = i.getStringExtra(BluetoothPbapService.EXTRA_REMOTE_DEVICE_NAME);
         if (action.equals(BluetoothPbapService.AUTH_CHALL_ACTION)) {
             showPbapDialog(DIALOG_YES_NO_AUTH);
             mCurrentDialog = DIALOG_YES_NO_AUTH;
@@ -145,7 +149,6 @@ public class BluetoothPbapActivity extends AlertActivity implements
     }
 
     private String createDisplayText(final int id) {
-        String mRemoteName = BluetoothPbapService.getRemoteDeviceName();
         switch (id) {
             case DIALOG_YES_NO_AUTH:
                 String mMessage2 = getString(R.string.pbap_session_key_dialog_title, mRemoteName);
@@ -235,7 +238,7 @@ public class BluetoothPbapActivity extends AlertActivity implements
         mTimeout = true;
         if (mCurrentDialog == DIALOG_YES_NO_AUTH) {
             messageView.setText(getString(R.string.pbap_authentication_timeout_message,
-                    BluetoothPbapService.getRemoteDeviceName()));
+                    mRemoteName));
             mKeyView.setVisibility(View.GONE);
             mKeyView.clearFocus();
             mKeyView.removeTextChangedListener(this);
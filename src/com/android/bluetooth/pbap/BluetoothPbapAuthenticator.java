@@ -76,6 +76,7 @@ public class BluetoothPbapAuthenticator implements Authenticator {
     private void waitUserConfirmation() {
         Message msg = Message.obtain(mCallback);
         msg.what = BluetoothPbapService.MSG_OBEX_AUTH_CHALL;
+        msg.obj = this;
         msg.sendToTarget();
         synchronized (this) {
             while (!mChallenged && !mAuthCancelled) {
@@ -34,7 +34,9 @@ import com.android.vcard.VCardConfig;
 import com.android.vcard.VCardConstants;
 import com.android.vcard.VCardUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * VCard composer especially for Call Log used in Bluetooth.
@@ -83,11 +85,24 @@ public class BluetoothPbapCallLogComposer {
 
     private String mErrorReason = NO_ERROR;
 
+    private BluetoothPbapCallerNameResolver mCallerNameResolver;
+
+    // Names of the unnamed numbers of the selection, resolved in init
+    private HashMap<String, String> mResolvedNames;
+
     public BluetoothPbapCallLogComposer(final Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
     }
 
+    /**
+     * Resolve names of numbers which have no cached name in the call log
+     * with the given resolver. Must be set before {@link #init}.
+     */
+    public void setCallerNameResolver(BluetoothPbapCallerNameResolver resolver) {
+        mCallerNameResolver = resolver;
+    }
+
     public boolean init(final Uri contentUri, final String selection,
             final String[] selectionArgs, final String sortOrder) {
         final String[] projection;
@@ -118,9 +133,24 @@ public class BluetoothPbapCallLogComposer {
             return false;
         }
 
+        if (mCallerNameResolver != null) {
+            resolveCallerNames();
+        }
         return true;
     }
 
+    /** Resolve all unnamed numbers of the selection at once, before composing */
+    private void resolveCallerNames() {
+        ArrayList<String> numbers = new ArrayList<String>();
+        for (mCursor.moveToFirst(); !mCursor.isAfterLast(); mCursor.moveToNext()) {
+            if (TextUtils.isEmpty(mCursor.getString(CALLER_NAME_COLUMN_INDEX))) {
+                numbers.add(mCursor.getString(NUMBER_COLUMN_INDEX));
+            }
+        }
+        mCursor.moveToFirst();
+        mResolvedNames = numbers.isEmpty() ? null : mCallerNameResolver.resolve(numbers);
+    }
+
     public String createOneEntry(boolean vcardVer21) {
         if (mCursor == null || mCursor.isAfterLast()) {
             mErrorReason = FAILURE_REASON_NOT_INITIALIZED;
@@ -139,6 +169,9 @@ public class BluetoothPbapCallLogComposer {
                 VCardConfig.FLAG_REFRAIN_PHONE_NUMBER_FORMATTING;
         final VCardBuilder builder = new VCardBuilder(vcardType);
         String name = mCursor.getString(CALLER_NAME_COLUMN_INDEX);
+        if (TextUtils.isEmpty(name) && mResolvedNames != null) {
+            name = mResolvedNames.get(mCursor.getString(NUMBER_COLUMN_INDEX));
+        }
         if (TextUtils.isEmpty(name)) {
             name = "";
         }
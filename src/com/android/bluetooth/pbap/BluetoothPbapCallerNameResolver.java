@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.telephony.CallerInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolves contact names of call log numbers which have no cached name.
+ *
+ * Numbers are resolved in batches with a few IN queries on the phone data
+ * table instead of one lookup per call log row. Each number is matched in
+ * its raw, separator free and E.164 forms; there is no per-number fuzzy
+ * fallback, so a number stored in yet another format stays unnamed.
+ *
+ * Results, including numbers without any contact, are shared by all
+ * sessions and kept until contacts change, as told by the contacts
+ * generation of BluetoothPbapContentTracker.
+ */
+public class BluetoothPbapCallerNameResolver {
+    private static final String TAG = "BluetoothPbapCallerNameResolver";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final int MAX_CACHED_NUMBERS = 512;
+
+    // Keep well below the SQLite limit of 999 bound arguments per query
+    private static final int MAX_NUMBERS_PER_QUERY = 100;
+
+    private static final String[] PHONE_PROJECTION = new String[] {
+            Phone.NUMBER, // 0
+            Phone.NORMALIZED_NUMBER, // 1
+            Phone.DISPLAY_NAME, // 2
+    };
+
+    private static final int PHONE_NUMBER_COLUMN_INDEX = 0;
+
+    private static final int PHONE_NORMALIZED_NUMBER_COLUMN_INDEX = 1;
+
+    private static final int PHONE_DISPLAY_NAME_COLUMN_INDEX = 2;
+
+    // Cached value of numbers which do not belong to any contact
+    private static final String NO_NAME = "";
+
+    private static BluetoothPbapCallerNameResolver INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final ContentResolver mResolver;
+
+    private final Context mContext;
+
+    private final BluetoothPbapContentTracker mContentTracker;
+
+    private long mContactsGeneration = BluetoothPbapContentTracker.GENERATION_UNKNOWN;
+
+    private final LruCache<String, String> mNames =
+            new LruCache<String, String>(MAX_CACHED_NUMBERS);
+
+    private String mCountryIso;
+
+    public static BluetoothPbapCallerNameResolver getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapCallerNameResolver(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapCallerNameResolver(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mContentTracker = BluetoothPbapContentTracker.getInstance(context);
+    }
+
+    /** Numbers which never map to a contact */
+    public static boolean isSpecialNumber(String number) {
+        return TextUtils.isEmpty(number) || CallerInfo.UNKNOWN_NUMBER.equals(number)
+                || CallerInfo.PRIVATE_NUMBER.equals(number)
+                || CallerInfo.PAYPHONE_NUMBER.equals(number);
+    }
+
+    /**
+     * Resolve every number of the collection. Call this once with all numbers
+     * of a listing or pull window.
+     *
+     * @return number -> contact name, for the numbers which have a contact.
+     *         The map holds the whole window however small the LRU is.
+     */
+    public synchronized HashMap<String, String> resolve(Collection<String> numbers) {
+        checkContactsGeneration();
+        HashMap<String, String> names = new HashMap<String, String>();
+        ArrayList<String> pending = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        for (String number : numbers) {
+            if (isSpecialNumber(number) || !seen.add(number)) {
+                continue;
+            }
+            String name = mNames.get(number);
+            if (name == null) {
+                pending.add(number);
+            } else if (!TextUtils.isEmpty(name)) {
+                names.put(number, name);
+            }
+        }
+        if (pending.isEmpty()) {
+            return names;
+        }
+        if (V) Log.v(TAG, "resolving " + pending.size() + " numbers");
+        for (int start = 0; start < pending.size(); start += MAX_NUMBERS_PER_QUERY) {
+            int end = Math.min(start + MAX_NUMBERS_PER_QUERY, pending.size());
+            resolveBatch(pending.subList(start, end), names);
+        }
+        return names;
+    }
+
+    /** Forget every name if contacts changed since they were resolved */
+    private void checkContactsGeneration() {
+        long generation = mContentTracker.getGeneration(
+                BluetoothPbapContentTracker.SOURCE_CONTACTS);
+        if (generation == BluetoothPbapContentTracker.GENERATION_UNKNOWN
+                || generation != mContactsGeneration) {
+            mNames.evictAll();
+            mContactsGeneration = generation;
+        }
+    }
+
+    private void resolveBatch(final List<String> numbers, HashMap<String, String> names) {
+        // Every number is looked up in its raw, separator free and E.164 forms,
+        // against both the number as stored and its normalized form.
+        HashMap<String, String> variantToNumber = new HashMap<String, String>();
+        ArrayList<String> args = new ArrayList<String>();
+        for (String number : numbers) {
+            addVariant(variantToNumber, args, number, number);
+            addVariant(variantToNumber, args, PhoneNumberUtils.stripSeparators(number), number);
+            addVariant(variantToNumber, args, toE164(number), number);
+        }
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < args.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+        final String selection = Phone.NUMBER + " IN (" + in + ") OR "
+                + Phone.NORMALIZED_NUMBER + " IN (" + in + ")";
+        String[] selectionArgs = new String[args.size() * 2];
+        for (int i = 0; i < args.size(); i++) {
+            selectionArgs[i] = args.get(i);
+            selectionArgs[i + args.size()] = args.get(i);
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(Phone.CONTENT_URI, PHONE_PROJECTION, selection,
+                    selectionArgs, null);
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(PHONE_DISPLAY_NAME_COLUMN_INDEX);
+                if (TextUtils.isEmpty(name)) {
+                    continue;
+                }
+                matchRow(variantToNumber, cursor.getString(PHONE_NUMBER_COLUMN_INDEX), name,
+                        names);
+                matchRow(variantToNumber,
+                        cursor.getString(PHONE_NORMALIZED_NUMBER_COLUMN_INDEX), name, names);
+            }
+        } catch (RuntimeException e) {
+            // Leave the batch unresolved, so it is tried again on the next request
+            Log.e(TAG, "caller name query failed " + e.toString());
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (String number : numbers) {
+            if (!names.containsKey(number)) {
+                // Remember misses too, so they are not queried again for every pull
+                mNames.put(number, NO_NAME);
+            }
+        }
+    }
+
+    private void matchRow(HashMap<String, String> variantToNumber, String rowNumber,
+            String name, HashMap<String, String> names) {
+        if (rowNumber == null) {
+            return;
+        }
+        String number = variantToNumber.get(rowNumber);
+        if (number == null) {
+            number = variantToNumber.get(PhoneNumberUtils.stripSeparators(rowNumber));
+        }
+        if (number != null && !names.containsKey(number)) {
+            names.put(number, name);
+            mNames.put(number, name);
+        }
+    }
+
+    private static void addVariant(HashMap<String, String> variantToNumber,
+            ArrayList<String> args, String variant, String number) {
+        if (!TextUtils.isEmpty(variant) && !variantToNumber.containsKey(variant)) {
+            variantToNumber.put(variant, number);
+            args.add(variant);
+        }
+    }
+
+    private String toE164(String number) {
+        if (mCountryIso == null) {
+            TelephonyManager tm =
+                    (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+            String iso = (tm != null) ? tm.getSimCountryIso() : null;
+            if (TextUtils.isEmpty(iso) && tm != null) {
+                iso = tm.getNetworkCountryIso();
+            }
+            mCountryIso = TextUtils.isEmpty(iso) ? "" : iso.toUpperCase(Locale.US);
+        }
+        if (TextUtils.isEmpty(mCountryIso)) {
+            return null;
+        }
+        return PhoneNumberUtils.formatNumberToE164(number, mCountryIso);
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per contact change log of the phonebook, used for incremental
+ * synchronization.
+ *
+ * Every contact records the primary version counter value at which its
+ * version (see {@link BluetoothPbapVcardManager}) was last seen to change.
+ * The counter is bumped once for every refresh which finds a change, and
+ * together with the database identifier it forms the token a PCE presents
+ * to get only the contacts added or modified since.
+ *
+ * The secondary version counter follows PBAP 1.2: it is bumped only when a
+ * contact is added or deleted, or when one of the fields it covers changes,
+ * i.e. the name (N and FN), a phone number (TEL) or an email address (EMAIL).
+ * Every contact records a digest of those fields, computed again only for
+ * the contacts whose version changed. MAILER is not stored by the contacts
+ * provider, so it never bumps the counter.
+ *
+ * The log is refreshed on a thread of its own whenever the contacts change,
+ * never while a request is served. A PCE served before a pending refresh
+ * gets the previous counter, so its next synchronization includes the
+ * contacts changed meanwhile again rather than missing them.
+ *
+ * The log is kept in a file so tokens stay valid across reboots. If the file
+ * is lost a new database identifier is generated, which makes every token
+ * handed out before unusable, and PCEs fall back to a full synchronization.
+ */
+public class BluetoothPbapChangeLog implements BluetoothPbapContentTracker.Listener {
+    private static final String TAG = "BluetoothPbapChangeLog";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final String LOG_FILE = "pbap_changelog";
+
+    // 2: versions are those of BluetoothPbapVcardManager.queryContactVersions
+    // 3: secondary counter and per contact digest of the fields it covers
+    private static final int LOG_FORMAT = 3;
+
+    // Contacts whose secondary digest is computed in one Data query
+    private static final int DIGEST_BATCH_SIZE = 500;
+
+    // Data kinds holding the fields covered by the secondary version counter
+    private static final String[] SECONDARY_MIMETYPES = new String[] {
+            StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE
+    };
+
+    private static final String[] SECONDARY_PROJECTION = new String[] {
+            Data.CONTACT_ID, Data.MIMETYPE, Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4,
+            Data.DATA5, Data.DATA6
+    };
+
+    private static final int SECONDARY_COLUMN_FIRST_FIELD = 1;
+
+    // Wait for a burst of contacts changes, e.g. a sync, to settle
+    private static final int REFRESH_DELAY = 2000;
+
+    private static final int MSG_REFRESH = 1;
+
+    public static final int DATABASE_IDENTIFIER_LENGTH = 16;
+
+    public static final int VERSION_COUNTER_LENGTH = 16;
+
+    private static BluetoothPbapChangeLog INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final Context mContext;
+
+    private byte[] mDatabaseIdentifier;
+
+    private long mPrimaryCounter = 0;
+
+    private long mSecondaryCounter = 0;
+
+    // contact id -> {version, counter at which it changed, secondary digest}
+    private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+
+    private boolean mLoaded = false;
+
+    // a new database identifier has not been written yet
+    private boolean mNeedSave = false;
+
+    private HandlerThread mHandlerThread;
+
+    private Handler mHandler;
+
+    private static class Entry {
+        String version;
+
+        long counter;
+
+        long digest;
+
+        Entry(String version, long counter, long digest) {
+            this.version = version;
+            this.counter = counter;
+            this.digest = digest;
+        }
+    }
+
+    public static BluetoothPbapChangeLog getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapChangeLog(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapChangeLog(Context context) {
+        mContext = context;
+    }
+
+    /** Start following contacts changes, called when PBAP service starts */
+    public synchronized void start() {
+        if (mHandlerThread != null) {
+            return;
+        }
+        mHandlerThread = new HandlerThread("BluetoothPbapChangeLog");
+        mHandlerThread.start();
+        mHandler = new RefreshHandler(mHandlerThread.getLooper());
+        BluetoothPbapContentTracker.getInstance(mContext).registerListener(this);
+        // Catch up with changes made while the service was not running
+        mHandler.sendEmptyMessage(MSG_REFRESH);
+        if (V) Log.v(TAG, "started");
+    }
+
+    /** Stop following contacts changes, called when PBAP service is destroyed */
+    public synchronized void stop() {
+        if (mHandlerThread == null) {
+            return;
+        }
+        BluetoothPbapContentTracker.getInstance(mContext).unregisterListener(this);
+        mHandler.removeMessages(MSG_REFRESH);
+        mHandlerThread.getLooper().quit();
+        mHandlerThread = null;
+        mHandler = null;
+        if (V) Log.v(TAG, "stopped");
+    }
+
+    public void onContentChanged(int source) {
+        if (source != BluetoothPbapContentTracker.SOURCE_CONTACTS) {
+            return;
+        }
+        Handler handler;
+        synchronized (this) {
+            handler = mHandler;
+        }
+        if (handler != null) {
+            handler.removeMessages(MSG_REFRESH);
+            handler.sendEmptyMessageDelayed(MSG_REFRESH, REFRESH_DELAY);
+        }
+    }
+
+    /** Bring the log up to date with the contacts provider, on the refresh thread */
+    private void refresh() {
+        // The scan runs unlocked, so requests are not held up by it
+        HashMap<Long, String> versions = BluetoothPbapVcardManager.queryContactVersions(
+                mContext.getContentResolver(), null);
+        if (versions == null) {
+            return;
+        }
+        ArrayList<Long> changedIds = new ArrayList<Long>();
+        synchronized (this) {
+            ensureLoaded();
+            for (Map.Entry<Long, String> version : versions.entrySet()) {
+                Entry entry = mEntries.get(version.getKey());
+                if (entry == null || !entry.version.equals(version.getValue())) {
+                    changedIds.add(version.getKey());
+                }
+            }
+        }
+        // Only the contacts whose version changed need their digest again
+        HashMap<Long, Long> digests = querySecondaryDigests(mContext.getContentResolver(),
+                changedIds);
+        synchronized (this) {
+            apply(versions, digests);
+        }
+    }
+
+    private void apply(HashMap<Long, String> versions, HashMap<Long, Long> digests) {
+        ensureLoaded();
+        long counter = mPrimaryCounter + 1;
+        boolean changed = false;
+        boolean secondaryChanged = false;
+        for (Map.Entry<Long, String> version : versions.entrySet()) {
+            Entry entry = mEntries.get(version.getKey());
+            Long digest = digests != null ? digests.get(version.getKey()) : null;
+            if (entry == null) {
+                mEntries.put(version.getKey(), new Entry(version.getValue(), counter,
+                        digest != null ? digest : 0));
+                changed = true;
+                secondaryChanged = true;
+            } else if (!entry.version.equals(version.getValue())) {
+                entry.version = version.getValue();
+                entry.counter = counter;
+                changed = true;
+                // Without a digest, assume the covered fields changed
+                if (digest == null || digest != entry.digest) {
+                    entry.digest = digest != null ? digest : 0;
+                    secondaryChanged = true;
+                }
+            }
+        }
+        Iterator<Long> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!versions.containsKey(it.next())) {
+                it.remove();
+                changed = true;
+                secondaryChanged = true;
+            }
+        }
+        if (changed) {
+            mPrimaryCounter = counter;
+        }
+        if (secondaryChanged) {
+            mSecondaryCounter++;
+        }
+        if (changed || mNeedSave) {
+            mNeedSave = !save();
+            if (V) Log.v(TAG, "phonebook changed, primary counter " + mPrimaryCounter
+                    + ", secondary counter " + mSecondaryCounter);
+        }
+    }
+
+    /**
+     * Digest of the fields covered by the secondary version counter for each
+     * of the given contacts, or null if the provider can not be queried. A
+     * contact without any of those fields gets the digest of no rows.
+     */
+    private static HashMap<Long, Long> querySecondaryDigests(final ContentResolver resolver,
+            final ArrayList<Long> contactIds) {
+        HashMap<Long, Long> digests = new HashMap<Long, Long>();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "no digest for the secondary counter " + e.toString());
+            return null;
+        }
+        long emptyDigest = toLong(md.digest());
+        for (Long contactId : contactIds) {
+            digests.put(contactId, emptyDigest);
+        }
+        StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < contactIds.size(); start += DIGEST_BATCH_SIZE) {
+            int end = Math.min(start + DIGEST_BATCH_SIZE, contactIds.size());
+            selection.setLength(0);
+            selection.append(Data.MIMETYPE).append(" IN (?,?,?) AND ")
+                    .append(Data.CONTACT_ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(contactIds.get(i));
+            }
+            selection.append(')');
+            Cursor cursor = null;
+            try {
+                // Ordered by value so the digest does not depend on row ids
+                cursor = resolver.query(Data.CONTENT_URI, SECONDARY_PROJECTION,
+                        selection.toString(), SECONDARY_MIMETYPES, Data.CONTACT_ID + ","
+                        + Data.MIMETYPE + "," + Data.DATA1 + "," + Data.DATA2 + ","
+                        + Data.DATA3);
+                if (cursor == null) {
+                    return null;
+                }
+                long current = -1;
+                while (cursor.moveToNext()) {
+                    long contactId = cursor.getLong(0);
+                    if (contactId != current) {
+                        if (current != -1) {
+                            digests.put(current, toLong(md.digest()));
+                        }
+                        current = contactId;
+                    }
+                    for (int i = SECONDARY_COLUMN_FIRST_FIELD; i < SECONDARY_PROJECTION.length;
+                            i++) {
+                        String value = cursor.getString(i);
+                        if (value != null) {
+                            md.update(value.getBytes());
+                        }
+                        md.update((byte)0);
+                    }
+                }
+                if (current != -1) {
+                    digests.put(current, toLong(md.digest()));
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "query secondary fields failed " + e.toString());
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return digests;
+    }
+
+    private static long toLong(final byte[] digest) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (digest[i] & 0xff);
+        }
+        return value;
+    }
+
+    public synchronized byte[] getDatabaseIdentifier() {
+        ensureLoaded();
+        return mDatabaseIdentifier.clone();
+    }
+
+    public synchronized byte[] getPrimaryVersionCounter() {
+        ensureLoaded();
+        return encodeVersionCounter(mPrimaryCounter);
+    }
+
+    public synchronized byte[] getSecondaryVersionCounter() {
+        ensureLoaded();
+        return encodeVersionCounter(mSecondaryCounter);
+    }
+
+    private static byte[] encodeVersionCounter(long counter) {
+        byte[] value = new byte[VERSION_COUNTER_LENGTH];
+        for (int i = VERSION_COUNTER_LENGTH - 1; i >= VERSION_COUNTER_LENGTH - 8; i--) {
+            value[i] = (byte)(counter & 0xff);
+            counter >>>= 8;
+        }
+        return value;
+    }
+
+    /**
+     * Contacts added or modified after the given token, or null if the token
+     * was not handed out by this database and a full synchronization is
+     * needed. Deleted contacts can not be reported.
+     */
+    public synchronized HashSet<Long> getChangedSince(final byte[] databaseIdentifier,
+            final byte[] primaryVersionCounter) {
+        ensureLoaded();
+        if (databaseIdentifier == null || primaryVersionCounter == null
+                || !Arrays.equals(databaseIdentifier, mDatabaseIdentifier)
+                || primaryVersionCounter.length != VERSION_COUNTER_LENGTH) {
+            return null;
+        }
+        long counter = 0;
+        for (int i = 0; i < VERSION_COUNTER_LENGTH; i++) {
+            if (i < VERSION_COUNTER_LENGTH - 8 && primaryVersionCounter[i] != 0) {
+                return null;
+            }
+            counter = (counter << 8) | (primaryVersionCounter[i] & 0xff);
+        }
+        if (counter < 0 || counter > mPrimaryCounter) {
+            return null;
+        }
+        HashSet<Long> changed = new HashSet<Long>();
+        for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().counter > counter) {
+                changed.add(entry.getKey());
+            }
+        }
+        if (V) Log.v(TAG, changed.size() + " contacts changed since " + counter);
+        return changed;
+    }
+
+    private void ensureLoaded() {
+        if (!mLoaded) {
+            load();
+            mLoaded = true;
+        }
+    }
+
+    private void load() {
+        File file = new File(mContext.getFilesDir(), LOG_FILE);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != LOG_FORMAT) {
+                throw new IOException("unknown change log format");
+            }
+            byte[] databaseIdentifier = new byte[DATABASE_IDENTIFIER_LENGTH];
+            in.readFully(databaseIdentifier);
+            long primaryCounter = in.readLong();
+            long secondaryCounter = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long contactId = in.readLong();
+                String version = in.readUTF();
+                long counter = in.readLong();
+                long digest = in.readLong();
+                mEntries.put(contactId, new Entry(version, counter, digest));
+            }
+            mDatabaseIdentifier = databaseIdentifier;
+            mPrimaryCounter = primaryCounter;
+            mSecondaryCounter = secondaryCounter;
+            if (V) Log.v(TAG, "loaded " + count + " entries, primary counter " + primaryCounter);
+        } catch (IOException e) {
+            if (file.exists()) {
+                Log.w(TAG, "change log unreadable, starting a new one: " + e.toString());
+            }
+            mEntries.clear();
+            mPrimaryCounter = 0;
+            mSecondaryCounter = 0;
+            mDatabaseIdentifier = new byte[DATABASE_IDENTIFIER_LENGTH];
+            new SecureRandom().nextBytes(mDatabaseIdentifier);
+            mNeedSave = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "close change log failed " + e.toString());
+                }
+            }
+        }
+    }
+
+    private boolean save() {
+        File file = new File(mContext.getFilesDir(), LOG_FILE);
+        File tmp = new File(mContext.getFilesDir(), LOG_FILE + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(LOG_FORMAT);
+            out.write(mDatabaseIdentifier);
+            out.writeLong(mPrimaryCounter);
+            out.writeLong(mSecondaryCounter);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeUTF(entry.getValue().version);
+                out.writeLong(entry.getValue().counter);
+                out.writeLong(entry.getValue().digest);
+            }
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "write change log failed " + e.toString());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = false;
+                    Log.e(TAG, "close change log failed " + e.toString());
+                }
+            }
+        }
+        if (!written || !tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private class RefreshHandler extends Handler {
+        RefreshHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REFRESH:
+                    refresh();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Composes vCard entries ahead of the OBEX sender on a shared worker pool.
+ *
+ * Entries are handed out by {@link #next()} strictly in index order, while at
+ * most a bounded number of following entries are being composed in the
+ * background. {@link #cancel()} drops everything that has not been sent yet,
+ * and the workers stop on their own once the abort signal is raised.
+ */
+public class BluetoothPbapComposePipeline {
+    private static final String TAG = "BluetoothPbapComposePipeline";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final int WORKER_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    // Max number of entries composed ahead of the sender
+    private static final int READ_AHEAD = WORKER_COUNT * 4;
+
+    private static final int WORKER_KEEP_ALIVE = 30; // seconds
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * Composes one entry. Called on a worker thread, so implementations must
+     * not share mutable state between entries.
+     */
+    public interface EntryComposer {
+        String compose(int index);
+    }
+
+    /** Tells whether the PCE aborted the request, polled by the workers */
+    public interface AbortSignal {
+        boolean isAborted();
+    }
+
+    private final EntryComposer mComposer;
+
+    private final AbortSignal mAbortSignal;
+
+    private final int mCount;
+
+    private final LinkedList<Future<String>> mPending = new LinkedList<Future<String>>();
+
+    private int mNextToSubmit = 0;
+
+    private volatile boolean mCancelled = false;
+
+    public BluetoothPbapComposePipeline(final int count, final EntryComposer composer,
+            final AbortSignal abortSignal) {
+        mCount = count;
+        mComposer = composer;
+        mAbortSignal = abortSignal;
+    }
+
+    private boolean isStopped() {
+        if (!mCancelled && mAbortSignal.isAborted()) {
+            // Nothing composed from now on will be sent
+            mCancelled = true;
+        }
+        return mCancelled;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, WORKER_KEEP_ALIVE,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mIndex = new AtomicInteger(1);
+
+                        public Thread newThread(final Runnable r) {
+                            Thread thread = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "BluetoothPbapCompose-" + mIndex.getAndIncrement());
+                            return thread;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private void fill() {
+        ThreadPoolExecutor executor = getExecutor();
+        while (!isStopped() && mNextToSubmit < mCount && mPending.size() < READ_AHEAD) {
+            final int index = mNextToSubmit++;
+            mPending.add(executor.submit(new Callable<String>() {
+                public String call() {
+                    if (isStopped()) {
+                        return null;
+                    }
+                    return mComposer.compose(index);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Wait for the next entry in index order. Returns null if the entry could
+     * not be composed or the pipeline has been cancelled.
+     */
+    public String next() {
+        fill();
+        Future<String> future = mPending.poll();
+        if (future == null) {
+            return null;
+        }
+        String entry = null;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted while waiting for composed entry");
+            cancel();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "compose entry failed " + e.getCause());
+        }
+        // keep the workers busy while the caller sends this entry
+        fill();
+        return entry;
+    }
+
+    /** Stop composing, entries which are not sent yet are dropped */
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        for (Future<String> future : mPending) {
+            future.cancel(false);
+        }
+        if (V) Log.v(TAG, "cancelled, dropped " + mPending.size() + " pending entries");
+        mPending.clear();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+/**
+ * Maps phonebook handles to contact ids.
+ *
+ * Handle n of the phonebook is the n-th visible contact, either in _ID order
+ * or in name order. Instead of positioning a cursor over all visible contacts
+ * for every request, the ids are read once per contacts generation, and a
+ * page of handles becomes an _ID range query.
+ */
+public class BluetoothPbapContactIndex {
+    private static final String TAG = "BluetoothPbapContactIndex";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final String CLAUSE_ONLY_VISIBLE = Contacts.IN_VISIBLE_GROUP + "=1";
+
+    private static BluetoothPbapContactIndex INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final Context mContext;
+
+    private final BluetoothPbapContentTracker mContentTracker;
+
+    private long[] mIndexedIds;
+
+    private long[] mAlphabeticalIds;
+
+    private long mGeneration = BluetoothPbapContentTracker.GENERATION_UNKNOWN;
+
+    public static BluetoothPbapContactIndex getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapContactIndex(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapContactIndex(Context context) {
+        mContext = context;
+        mContentTracker = BluetoothPbapContentTracker.getInstance(context);
+    }
+
+    /**
+     * Contact id of handle in the given order, handles of contacts start at
+     * 1 as 0 is the owner card. Returns -1 if there is no such handle.
+     */
+    public long getContactId(final int orderByWhat, final int handle) {
+        long[] ids = getIds(orderByWhat);
+        if (ids == null || handle < 1 || handle > ids.length) {
+            return -1;
+        }
+        return ids[handle - 1];
+    }
+
+    /** Visible contact ids in the given order, null on query failure */
+    public synchronized long[] getIds(final int orderByWhat) {
+        long generation = mContentTracker.getGeneration(
+                BluetoothPbapContentTracker.SOURCE_CONTACTS);
+        if (generation == BluetoothPbapContentTracker.GENERATION_UNKNOWN
+                || generation != mGeneration) {
+            mIndexedIds = null;
+            mAlphabeticalIds = null;
+            mGeneration = generation;
+        }
+        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+            if (mAlphabeticalIds == null) {
+                mAlphabeticalIds = queryIds(Contacts.DISPLAY_NAME + " COLLATE NOCASE");
+            }
+            return mAlphabeticalIds;
+        }
+        if (mIndexedIds == null) {
+            mIndexedIds = queryIds(Contacts._ID);
+        }
+        return mIndexedIds;
+    }
+
+    private long[] queryIds(final String sortOrder) {
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                    new String[] {Contacts._ID}, CLAUSE_ONLY_VISIBLE, null, sortOrder);
+            if (cursor == null) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext() && i < ids.length) {
+                ids[i++] = cursor.getLong(0);
+            }
+            if (V) Log.v(TAG, "indexed " + i + " contacts by " + sortOrder);
+            return ids;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.CallLog;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Profile;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.util.ArrayList;
+
+/**
+ * Tracks changes of the providers PBAP reads from. Each source has a
+ * generation number which is bumped on every change notification, so that
+ * caches can tell whether the data they hold is still current.
+ *
+ * Generations are only meaningful while the tracker is started; otherwise
+ * {@link #getGeneration(int)} returns {@link #GENERATION_UNKNOWN} and callers
+ * must not cache anything.
+ */
+public class BluetoothPbapContentTracker {
+    private static final String TAG = "BluetoothPbapContentTracker";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    public static final int SOURCE_CONTACTS = 0;
+
+    public static final int SOURCE_CALL_LOG = 1;
+
+    public static final int SOURCE_SIM = 2;
+
+    public static final int SOURCE_PROFILE = 3;
+
+    private static final int SOURCE_COUNT = 4;
+
+    public static final long GENERATION_UNKNOWN = -1;
+
+    /** Callback for caches which prefer to be told about changes */
+    public interface Listener {
+        void onContentChanged(int source);
+    }
+
+    private static BluetoothPbapContentTracker INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final Context mContext;
+
+    private final long[] mGenerations = new long[SOURCE_COUNT];
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private boolean mStarted = false;
+
+    private SourceObserver mContactsObserver;
+
+    private SourceObserver mProfileObserver;
+
+    private SourceObserver mCallLogObserver;
+
+    public static BluetoothPbapContentTracker getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapContentTracker(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapContentTracker(Context context) {
+        mContext = context;
+    }
+
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        Handler handler = new Handler();
+        mContactsObserver = new SourceObserver(handler, SOURCE_CONTACTS);
+        mProfileObserver = new SourceObserver(handler, SOURCE_PROFILE);
+        mCallLogObserver = new SourceObserver(handler, SOURCE_CALL_LOG);
+        mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                mContactsObserver);
+        mContext.getContentResolver().registerContentObserver(Profile.CONTENT_URI, true,
+                mProfileObserver);
+        mContext.getContentResolver().registerContentObserver(CallLog.Calls.CONTENT_URI, true,
+                mCallLogObserver);
+        mContext.registerReceiver(mSimStateReceiver,
+                new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+        // Anything cached before now may be stale
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mGenerations[i]++;
+        }
+        if (V) Log.v(TAG, "started");
+    }
+
+    public synchronized void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.getContentResolver().unregisterContentObserver(mContactsObserver);
+        mContext.getContentResolver().unregisterContentObserver(mProfileObserver);
+        mContext.getContentResolver().unregisterContentObserver(mCallLogObserver);
+        mContext.unregisterReceiver(mSimStateReceiver);
+        mContactsObserver = null;
+        mProfileObserver = null;
+        mCallLogObserver = null;
+        if (V) Log.v(TAG, "stopped");
+    }
+
+    public synchronized long getGeneration(int source) {
+        if (!mStarted) {
+            return GENERATION_UNKNOWN;
+        }
+        return mGenerations[source];
+    }
+
+    public void registerListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    public void unregisterListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /** Mark a source as changed, also used when a change is detected without notification */
+    public void notifyChanged(int source) {
+        synchronized (this) {
+            mGenerations[source]++;
+        }
+        if (V) Log.v(TAG, "source " + source + " changed");
+        Listener[] listeners;
+        synchronized (mListeners) {
+            listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        }
+        for (Listener listener : listeners) {
+            listener.onContentChanged(source);
+        }
+    }
+
+    private class SourceObserver extends ContentObserver {
+        private final int mSource;
+
+        SourceObserver(Handler handler, int source) {
+            super(handler);
+            mSource = source;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            notifyChanged(mSource);
+        }
+    }
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (TelephonyIntents.ACTION_SIM_STATE_CHANGED.equals(intent.getAction())) {
+                notifyChanged(SOURCE_SIM);
+            }
+        }
+    };
+}
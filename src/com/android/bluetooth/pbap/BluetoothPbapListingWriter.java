@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.btobex.Operation;
+
+/**
+ * Writes a x-bt/vcard-listing object straight to the OBEX output stream, one
+ * card at a time, so nothing but the current card is held in memory.
+ */
+public class BluetoothPbapListingWriter {
+    private static final String TAG = "BluetoothPbapListingWriter";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final String LISTING_HEADER = "<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">"
+            + "<vCard-listing version=\"1.0\">";
+
+    private static final String LISTING_FOOTER = "</vCard-listing>";
+
+    private final Operation mOperation;
+
+    private OutputStream mOutputStream;
+
+    private final StringBuilder mCard = new StringBuilder();
+
+    private int mCardCount = 0;
+
+    private final BluetoothPbapProfiler.Request mProfile;
+
+    public BluetoothPbapListingWriter(Operation op, BluetoothPbapProfiler.Request profile) {
+        mOperation = op;
+        mProfile = profile;
+    }
+
+    /** Open the OBEX output stream and write the listing header */
+    public boolean open() {
+        try {
+            mOutputStream = mOperation.openOutputStream();
+            mOutputStream.write(LISTING_HEADER.getBytes("UTF-8"));
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "open/write outputstream failed " + e.toString());
+        }
+        return false;
+    }
+
+    public void writeCard(final int handle, final String name) throws IOException {
+        long begin = mProfile.begin();
+        mCard.setLength(0);
+        mCard.append("<card handle=\"").append(handle).append(".vcf\" name=\"");
+        appendEscaped(mCard, name);
+        mCard.append("\"/>");
+        byte[] card = mCard.toString().getBytes("UTF-8");
+        mProfile.end(BluetoothPbapProfiler.PHASE_ENCODE, begin);
+        begin = mProfile.begin();
+        mOutputStream.write(card);
+        mProfile.end(BluetoothPbapProfiler.PHASE_SEND, begin);
+        mProfile.addEntries(1);
+        mProfile.addBytes(card.length);
+        mCardCount++;
+    }
+
+    public int getCardCount() {
+        return mCardCount;
+    }
+
+    /**
+     * Write the listing footer and close the stream and operation. Returns
+     * false if the listing could not be completed.
+     */
+    public boolean close(final boolean writeFooter) {
+        boolean result = true;
+        if (writeFooter && mOutputStream != null) {
+            try {
+                mOutputStream.write(LISTING_FOOTER.getBytes("UTF-8"));
+                if (V) Log.v(TAG, "Send listing complete, cards=" + mCardCount);
+            } catch (IOException e) {
+                Log.e(TAG, "write outputstream failed " + e.toString());
+                result = false;
+            }
+        }
+        if (!BluetoothPbapObexServer.closeStream(mOutputStream, mOperation)) {
+            result = false;
+        }
+        return result;
+    }
+
+    /** Append value escaped for use in a double quoted XML attribute */
+    static void appendEscaped(StringBuilder out, final String value) {
+        if (value == null) {
+            return;
+        }
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&apos;");
+                    break;
+                default:
+                    // Control chars other than tab and new lines are not allowed in XML 1.0
+                    if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+                        out.append(' ');
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@
 package com.android.bluetooth.pbap;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Message;
 import android.os.Handler;
@@ -48,6 +49,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 
 import javax.btobex.ServerRequestHandler;
 import javax.btobex.ResponseCodes;
@@ -148,6 +150,13 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     private Handler mCallback = null;
 
+    private BluetoothDevice mRemoteDevice;
+
+    private BluetoothPbapChangeLog mChangeLog;
+
+    // Counters of the GET being served
+    private BluetoothPbapProfiler.Request mProfile;
+
     private Context mContext;
 
     private BluetoothPbapVcardManager mVcardManager;
@@ -162,7 +171,24 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     public static int ORDER_BY_ALPHABETICAL = 1;
 
-    public static boolean sIsAborted = false;
+    // PBAP 1.2 application parameters used for incremental synchronization
+    private static final byte PRIMARY_VERSION_COUNTER_TAGID = 0x0A;
+
+    private static final byte SECONDARY_VERSION_COUNTER_TAGID = 0x0B;
+
+    private static final byte DATABASE_IDENTIFIER_TAGID = 0x0D;
+
+    // PBAP 1.2 PCE features, sent in the application parameters of CONNECT
+    private static final byte PBAP_SUPPORTED_FEATURES_TAGID = 0x10;
+
+    private static final int PBAP_SUPPORTED_FEATURES_LENGTH = 4;
+
+    private static final int FEATURE_DATABASE_IDENTIFIER = 1 << 2;
+
+    private static final int FEATURE_FOLDER_VERSION_COUNTERS = 1 << 3;
+
+    // Features of the PCE, none for PBAP 1.1 PCEs
+    private int mPceFeatures = 0;
 
     public static class ContentType {
         public static final int PHONEBOOK = 1;
@@ -178,11 +204,14 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         public static final int SIM_PHONEBOOK = 6;
     }
 
-    public BluetoothPbapObexServer(Handler callback, Context context) {
+    public BluetoothPbapObexServer(Handler callback, Context context,
+            BluetoothDevice remoteDevice) {
         super();
         mCallback = callback;
         mContext = context;
+        mRemoteDevice = remoteDevice;
         mVcardManager = new BluetoothPbapVcardManager(mContext);
+        mChangeLog = BluetoothPbapChangeLog.getInstance(mContext);
 
         // set initial value when ObexServer created
         mMissedCallSize = mVcardManager.getPhonebookSize(ContentType.MISSED_CALL_HISTORY);
@@ -215,6 +244,16 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
 
+        try {
+            mPceFeatures = parsePceFeatures(
+                    (byte[])request.getHeader(HeaderSet.APPLICATION_PARAMETER));
+            if (D) Log.d(TAG, "onConnect(): PCE features=0x"
+                    + Integer.toHexString(mPceFeatures));
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+
         try {
             byte[] remote = (byte[])request.getHeader(HeaderSet.WHO);
             if (remote != null) {
@@ -231,6 +270,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
         Message msg = Message.obtain(mCallback);
         msg.what = BluetoothPbapService.MSG_SESSION_ESTABLISHED;
+        msg.obj = this;
         msg.sendToTarget();
 
         return ResponseCodes.OBEX_HTTP_OK;
@@ -245,6 +285,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothPbapService.MSG_SESSION_DISCONNECTED;
+            msg.obj = this;
             msg.sendToTarget();
             if (V) Log.v(TAG, "onDisconnect(): msg MSG_SESSION_DISCONNECTED sent out.");
         }
@@ -253,7 +294,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     @Override
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
-        sIsAborted = true;
+        mVcardManager.setAborted(true);
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -312,6 +353,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothPbapService.MSG_SERVERSESSION_CLOSE;
+            msg.obj = this;
             msg.sendToTarget();
             if (D) Log.d(TAG, "onClose(): msg MSG_SERVERSESSION_CLOSE sent out.");
         }
@@ -319,7 +361,19 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     @Override
     public int onGet(Operation op) {
-        sIsAborted = false;
+        mProfile = new BluetoothPbapProfiler.Request(
+                mRemoteDevice != null ? mRemoteDevice.getAddress() : null);
+        mVcardManager.setProfile(mProfile);
+        try {
+            return handleGet(op);
+        } finally {
+            BluetoothPbapProfiler.getInstance().finish(mProfile);
+        }
+    }
+
+    private int handleGet(Operation op) {
+        final long parseBegin = mProfile.begin();
+        mVcardManager.setAborted(false);
         HeaderSet request = null;
         HeaderSet reply = new HeaderSet();
         String type = "";
@@ -411,9 +465,11 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             }
         }
 
+        mProfile.setFolder(getFolderName(appParamValue.needTag));
         if ((appParam != null) && !parseApplicationParameter(appParam, appParamValue)) {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
+        mProfile.end(BluetoothPbapProfiler.PHASE_PARSE, parseBegin);
 
         // listing request
         if (type.equals(TYPE_LISTING)) {
@@ -432,6 +488,26 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         }
     }
 
+    /** Folder name of a content type, as reported by the profiler */
+    private static String getFolderName(final int needTag) {
+        switch (needTag) {
+            case ContentType.PHONEBOOK:
+                return "pb";
+            case ContentType.INCOMING_CALL_HISTORY:
+                return "ich";
+            case ContentType.OUTGOING_CALL_HISTORY:
+                return "och";
+            case ContentType.MISSED_CALL_HISTORY:
+                return "mch";
+            case ContentType.COMBINED_CALL_HISTORY:
+                return "cch";
+            case ContentType.SIM_PHONEBOOK:
+                return "SIM1/pb";
+            default:
+                return null;
+        }
+    }
+
     /** check whether path is legal */
     private final boolean isLegalPath(final String str) {
         if (str.length() == 0) {
@@ -470,6 +546,11 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
         public boolean ignorefilter;
 
+        // Token of the last synchronization of the PCE, if it presented one
+        public byte[] databaseIdentifier;
+
+        public byte[] primaryVersionCounter;
+
         public AppParamValue() {
             maxListCount = 0xFFFF;
             listStartOffset = 0;
@@ -481,6 +562,8 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             //Filter is not set by default
             ignorefilter = true;
             filter = new byte[] {0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00} ;
+            databaseIdentifier = null;
+            primaryVersionCounter = null;
         }
 
         public void dump() {
@@ -505,7 +588,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                             appParamValue.ignorefilter = false;
                             appParamValue.filter[index] = appParam[i+index];
                             mAdapter = BluetoothAdapter.getDefaultAdapter();
-                            if(!(mAdapter.isHostPatchRequired(BluetoothPbapService.getRemoteDeviceAddress(),
+                            if(!(mAdapter.isHostPatchRequired(mRemoteDevice,
                                     BluetoothAdapter.HOST_PATCH_ENABLE_PHOTO_ON_PBAP))) {
                                appParamValue.filter[7] = (byte)(appParamValue.filter[7] & 0xF7); //Ignoring Photo filter value
                             }
@@ -565,6 +648,34 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                     }
                     i += ApplicationParameter.TRIPLET_LENGTH.FORMAT_LENGTH;
                     break;
+                case PRIMARY_VERSION_COUNTER_TAGID:
+                    appParamValue.primaryVersionCounter = parseTokenValue(appParam, i,
+                            BluetoothPbapChangeLog.VERSION_COUNTER_LENGTH);
+                    if (appParamValue.primaryVersionCounter == null) {
+                        parseOk = false;
+                        break;
+                    }
+                    i += 2 + BluetoothPbapChangeLog.VERSION_COUNTER_LENGTH;
+                    break;
+                case SECONDARY_VERSION_COUNTER_TAGID:
+                    // Echoed back by some PCEs, the primary counter is enough
+                    // to find what changed
+                    if (parseTokenValue(appParam, i,
+                            BluetoothPbapChangeLog.VERSION_COUNTER_LENGTH) == null) {
+                        parseOk = false;
+                        break;
+                    }
+                    i += 2 + BluetoothPbapChangeLog.VERSION_COUNTER_LENGTH;
+                    break;
+                case DATABASE_IDENTIFIER_TAGID:
+                    appParamValue.databaseIdentifier = parseTokenValue(appParam, i,
+                            BluetoothPbapChangeLog.DATABASE_IDENTIFIER_LENGTH);
+                    if (appParamValue.databaseIdentifier == null) {
+                        parseOk = false;
+                        break;
+                    }
+                    i += 2 + BluetoothPbapChangeLog.DATABASE_IDENTIFIER_LENGTH;
+                    break;
                 default:
                     parseOk = false;
                     Log.e(TAG, "Parse Application Parameter error");
@@ -577,78 +688,114 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         return parseOk;
     }
 
-    /** Form and Send an XML format String to client for Phone book listing */
+    /** PbapSupportedFeatures of the CONNECT application parameters, 0 if absent */
+    private static int parsePceFeatures(final byte[] appParam) {
+        if (appParam == null) {
+            return 0;
+        }
+        int i = 0;
+        while (i + 2 <= appParam.length) {
+            int length = appParam[i + 1] & 0xff;
+            if (appParam[i] == PBAP_SUPPORTED_FEATURES_TAGID
+                    && length == PBAP_SUPPORTED_FEATURES_LENGTH
+                    && i + 2 + length <= appParam.length) {
+                int features = 0;
+                for (int j = 0; j < length; j++) {
+                    features = (features << 8) | (appParam[i + 2 + j] & 0xff);
+                }
+                return features;
+            }
+            i += 2 + length;
+        }
+        return 0;
+    }
+
+    /** Value of a fixed length triplet starting at index, or null if malformed */
+    private static byte[] parseTokenValue(final byte[] appParam, final int index,
+            final int length) {
+        if (index + 2 + length > appParam.length || appParam[index + 1] != length) {
+            Log.e(TAG, "Wrong length of tag " + appParam[index]);
+            return null;
+        }
+        return Arrays.copyOfRange(appParam, index + 2, index + 2 + length);
+    }
+
+    /** Form and Send an XML format listing to client for Phone book listing */
     private final int sendVcardListingXml(final int type, Operation op,
             final int maxListCount, final int listStartOffset, final String searchValue,
             String searchAttr) {
-        StringBuilder result = new StringBuilder();
         int itemsFound = 0;
-        boolean SIM = false;
-        result.append("<?xml version=\"1.0\"?>");
-        result.append("<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">");
-        result.append("<vCard-listing version=\"1.0\">");
+        boolean SIM = (type == ContentType.SIM_PHONEBOOK);
+        String searchType = null;
 
-        // Phonebook listing request
-        if (type == ContentType.PHONEBOOK) {
+        // Phonebook and SIM Phonebook listing request
+        if (type == ContentType.PHONEBOOK || SIM) {
             if (searchAttr.equals("0")) { // search by name
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "name", SIM);
+                searchType = "name";
             } else if (searchAttr.equals("1")) { // search by number
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "number", SIM);
-            }// end of search by number
-            else {
-                return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
-            }
-        }// SIM Phonebook listing Request
-        else if (type == ContentType.SIM_PHONEBOOK) {
-            SIM = true;
-            if (searchAttr.equals("0")) { // search by name
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "name", SIM);
-            } else if (searchAttr.equals("1")) { // search by number
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "number", SIM);
-            }// end of search by number
-            else {
+                searchType = "number";
+            } else {
                 return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
             }
         }
-        // Call history listing request
-        else {
-            ArrayList<String> nameList = mVcardManager.loadCallHistoryList(type);
-            int requestSize = nameList.size() >= maxListCount ? maxListCount : nameList.size();
-            int startPoint = listStartOffset;
-            int endPoint = startPoint + requestSize;
-            if (endPoint > nameList.size()) {
-                endPoint = nameList.size();
+
+        // Cards are written to the PCE as soon as they are found
+        BluetoothPbapListingWriter writer = new BluetoothPbapListingWriter(op, mProfile);
+        if (!writer.open()) {
+            writer.close(false);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        try {
+            if (searchType != null) {
+                itemsFound = createList(maxListCount, listStartOffset, searchValue, writer,
+                        searchType, SIM);
             }
-            if (D) Log.d(TAG, "call log list, size=" + requestSize + " offset=" + listStartOffset);
+            // Call history listing request
+            else {
+                final long queryBegin = mProfile.begin();
+                ArrayList<String> nameList = mVcardManager.loadCallHistoryList(type,
+                        listStartOffset, maxListCount);
+                mProfile.end(BluetoothPbapProfiler.PHASE_QUERY, queryBegin);
+                int requestSize = nameList.size() >= maxListCount ? maxListCount : nameList.size();
+                int startPoint = listStartOffset;
+                int endPoint = startPoint + requestSize;
+                if (endPoint > nameList.size()) {
+                    endPoint = nameList.size();
+                }
+                if (D) Log.d(TAG, "call log list, size=" + requestSize + " offset="
+                        + listStartOffset);
 
-            for (int j = startPoint; j < endPoint; j++) {
-                // listing object begin with 1.vcf
-                result.append("<card handle=\"" + (j + 1) + ".vcf\" name=\"" + nameList.get(j)
-                        + "\"" + "/>");
-                itemsFound++;
+                for (int j = startPoint; j < endPoint; j++) {
+                    // listing object begin with 1.vcf
+                    writer.writeCard(j + 1, nameList.get(j));
+                    itemsFound++;
+                }
             }
+        } catch (IOException e) {
+            Log.e(TAG, "write listing failed " + e.toString());
+            writer.close(false);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        result.append("</vCard-listing>");
 
         if (V) Log.v(TAG, "itemsFound =" + itemsFound);
 
-        return pushBytes(op, result.toString());
+        return writer.close(true) ? ResponseCodes.OBEX_HTTP_OK
+                : ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
     }
 
     private int createList(final int maxListCount, final int listStartOffset,
-        final String searchValue, StringBuilder result, String type, boolean SIM) {
+        final String searchValue, BluetoothPbapListingWriter writer, String type, boolean SIM)
+            throws IOException {
         int itemsFound = 0;
         ArrayList<String> nameList = null;
+        final long queryBegin = mProfile.begin();
         //check if current request is for SIM
         if(SIM) {
              nameList = mVcardManager.getSIMPhonebookNameList(mOrderBy);
         }else{
              nameList = mVcardManager.getPhonebookNameList(mOrderBy);
         }
+        mProfile.end(BluetoothPbapProfiler.PHASE_QUERY, queryBegin);
         final int requestSize = nameList.size() >= maxListCount ? maxListCount : nameList.size();
         final int listSize = nameList.size();
         String compareValue = "", currentValue, tmpCurrentValue;
@@ -659,12 +806,14 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
         if (type.equals("number")) {
             ArrayList<String> names = null;
+            final long searchBegin = mProfile.begin();
             // query the number, to get the names
             if(SIM) {
                 names = mVcardManager.getSIMContactNamesByNumber(searchValue);
             } else{
                   names = mVcardManager.getContactNamesByNumber(searchValue);
             }
+            mProfile.end(BluetoothPbapProfiler.PHASE_QUERY, searchBegin);
             for (int i = 0; i < names.size(); i++) {
                 compareValue = names.get(i).trim();
                 if (D) Log.d(TAG, "compareValue=" + compareValue);
@@ -674,8 +823,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                     if (D) Log.d(TAG, "currentValue=" + currentValue);
                     if (currentValue.startsWith(compareValue)) {
                         itemsFound++;
-                        result.append("<card handle=\"" + pos + ".vcf\" name=\""
-                                + currentValue + "\"" + "/>");
+                        writer.writeCard(pos, currentValue);
                     }
                 }
                 if (itemsFound >= requestSize) {
@@ -694,16 +842,14 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                 if (D) Log.d(TAG, "currentValue=" + currentValue);
                 if (searchValue == null) {
                     itemsFound++;
-                    result.append("<card handle=\"" + pos + ".vcf\" name=\""
-                            + currentValue + "\"" + "/>");
+                    writer.writeCard(pos, currentValue);
                 } else {
                     int sIndex = -1;
                     do {
                         tmpCurrentValue = tmpCurrentValue.substring(sIndex+1);
                         if (tmpCurrentValue.startsWith(compareValue)) {
                             itemsFound++;
-                            result.append("<card handle=\"" + pos + ".vcf\" name=\""
-                                + currentValue + "\"" + "/>");
+                            writer.writeCard(pos, currentValue);
                             break;
                         }
                         sIndex = tmpCurrentValue.indexOf(' ');
@@ -766,7 +912,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     }
 
     private final int handleAppParaForResponse(AppParamValue appParamValue, int size,
-            HeaderSet reply, Operation op) {
+            HeaderSet reply, Operation op, boolean pull) {
         byte[] misnum = new byte[1];
         ApplicationParameter ap = new ApplicationParameter();
 
@@ -802,6 +948,8 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             return pushHeader(op, reply);
         }
 
+        boolean sendHeaders = pull && addVersionHeaders(appParamValue, ap);
+
         // Only apply to "mch" download/listing.
         // NewMissedCalls is used only in the response, together with Body
         // header.
@@ -816,10 +964,13 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             misnum[0] = (byte)nmnum;
             ap.addAPPHeader(ApplicationParameter.TRIPLET_TAGID.NEWMISSEDCALLS_TAGID,
                     ApplicationParameter.TRIPLET_LENGTH.NEWMISSEDCALLS_LENGTH, misnum);
-            reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap.getAPPparam());
             if (D) Log.d(TAG, "handleAppParaForResponse(): mNeedNewMissedCallsNum=true,  num= "
                         + nmnum);
+            sendHeaders = true;
+        }
 
+        if (sendHeaders) {
+            reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap.getAPPparam());
             // Only Specifies the headers, not write for now, will write to PCE
             // together with Body
             try {
@@ -832,6 +983,40 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         return NEED_SEND_BODY;
     }
 
+    /**
+     * Add the current phonebook token to a phonebook pull response, so the PCE
+     * can ask for the changes since this request on its next synchronization.
+     * Only the parts of the token the PCE announced support for are sent.
+     */
+    private boolean addVersionHeaders(AppParamValue appParamValue, ApplicationParameter ap) {
+        if (appParamValue.needTag != ContentType.PHONEBOOK) {
+            return false;
+        }
+        boolean added = false;
+        if ((mPceFeatures & FEATURE_FOLDER_VERSION_COUNTERS) != 0) {
+            ap.addAPPHeader(PRIMARY_VERSION_COUNTER_TAGID,
+                    (byte)BluetoothPbapChangeLog.VERSION_COUNTER_LENGTH,
+                    mChangeLog.getPrimaryVersionCounter());
+            ap.addAPPHeader(SECONDARY_VERSION_COUNTER_TAGID,
+                    (byte)BluetoothPbapChangeLog.VERSION_COUNTER_LENGTH,
+                    mChangeLog.getSecondaryVersionCounter());
+            added = true;
+        }
+        if ((mPceFeatures & FEATURE_DATABASE_IDENTIFIER) != 0) {
+            ap.addAPPHeader(DATABASE_IDENTIFIER_TAGID,
+                    (byte)BluetoothPbapChangeLog.DATABASE_IDENTIFIER_LENGTH,
+                    mChangeLog.getDatabaseIdentifier());
+            added = true;
+        }
+        return added;
+    }
+
+    /** Whether the PCE can hold a token for incremental synchronization */
+    private boolean supportsIncrementalSync() {
+        int features = FEATURE_DATABASE_IDENTIFIER | FEATURE_FOLDER_VERSION_COUNTERS;
+        return (mPceFeatures & features) == features;
+    }
+
     private final int pullVcardListing(byte[] appParam, AppParamValue appParamValue,
             HeaderSet reply, Operation op) {
         String searchAttr = appParamValue.searchAttr.trim();
@@ -853,7 +1038,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         }
 
         int size = mVcardManager.getPhonebookSize(appParamValue.needTag);
-        int needSendBody = handleAppParaForResponse(appParamValue, size, reply, op);
+        int needSendBody = handleAppParaForResponse(appParamValue, size, reply, op, false);
         if (needSendBody != NEED_SEND_BODY) {
             op.noEndofBody();
             return needSendBody;
@@ -975,7 +1160,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         } // code end for passing PTS3.2 TC_PSE_PBD_BI_01_C
 
         int pbSize = mVcardManager.getPhonebookSize(appParamValue.needTag);
-        int needSendBody = handleAppParaForResponse(appParamValue, pbSize, reply, op);
+        int needSendBody = handleAppParaForResponse(appParamValue, pbSize, reply, op, true);
         if (needSendBody != NEED_SEND_BODY) {
             op.noEndofBody();
             return needSendBody;
@@ -1011,6 +1196,21 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
         boolean vcard21 = appParamValue.vcard21;
         if (appParamValue.needTag == BluetoothPbapObexServer.ContentType.PHONEBOOK) {
+            // Only send what changed since the token presented by the PCE, if any
+            HashSet<Long> changedIds = !supportsIncrementalSync() ? null
+                    : mChangeLog.getChangedSince(appParamValue.databaseIdentifier,
+                            appParamValue.primaryVersionCounter);
+            if (changedIds != null) {
+                if (D) Log.d(TAG, "pullPhonebook(): incremental, " + changedIds.size()
+                        + " contacts changed");
+                String ownerVcard = null;
+                if (startPoint == 0) {
+                    ownerVcard = mVcardManager.getOwnerPhoneNumberVcard(vcard21);
+                }
+                return mVcardManager.composeAndSendChangedPhonebookVcards(op,
+                        Math.max(startPoint, 1), endPoint, vcard21, ownerVcard, changedIds,
+                        appParamValue.ignorefilter, appParamValue.filter);
+            }
             if (startPoint == 0) {
                 String ownerVcard = mVcardManager.getOwnerPhoneNumberVcard(vcard21);
                 if (endPoint == 0) {
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemProperties;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shrinks the contact thumbnails embedded in vCards. Only the thumbnail the
+ * contacts provider stores with the photo row is used, never the display
+ * photo, so a transcoded photo is never larger than the one the composer
+ * would embed by itself, neither in dimensions nor in bytes.
+ *
+ * Thumbnails are already small (96 pixels by default), so the transcoder is
+ * only enabled when the maximum dimension is lowered below that size, e.g.
+ * for head units with tiny screens; otherwise photos are embedded as stored
+ * without even decoding their bounds. The maximum dimension and JPEG quality
+ * come from the persist.bt.pbap.photo.maxdim and persist.bt.pbap.photo.quality
+ * properties.
+ *
+ * Transcoded photos are not cached on disk by photo file id, nor transcoded
+ * on an executor of their own. Working from the thumbnail keeps each
+ * transcode cheap, it already runs on the compose workers ahead of the
+ * sender, and the vCards embedding the result are kept by
+ * {@link BluetoothPbapVcardCache} under a key including {@link #getConfigTag},
+ * so a contact's photo is only transcoded again when the contact changes.
+ */
+public class BluetoothPbapPhotoTranscoder {
+    private static final String TAG = "BluetoothPbapPhotoTranscoder";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final String PROP_MAX_DIMENSION = "persist.bt.pbap.photo.maxdim";
+
+    private static final String PROP_QUALITY = "persist.bt.pbap.photo.quality";
+
+    // Default thumbnail size of the contacts provider
+    private static final int THUMBNAIL_DIMENSION = 96;
+
+    private static final int DEFAULT_MAX_DIMENSION = THUMBNAIL_DIMENSION;
+
+    private static final int DEFAULT_QUALITY = 75;
+
+    private static BluetoothPbapPhotoTranscoder INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final int mMaxDimension;
+
+    private final int mQuality;
+
+    public static BluetoothPbapPhotoTranscoder getInstance() {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapPhotoTranscoder();
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapPhotoTranscoder() {
+        mMaxDimension = Math.max(16, SystemProperties.getInt(PROP_MAX_DIMENSION,
+                DEFAULT_MAX_DIMENSION));
+        mQuality = Math.min(100, Math.max(10, SystemProperties.getInt(PROP_QUALITY,
+                DEFAULT_QUALITY)));
+    }
+
+    /** Whether photos are shrunk at all, only below the thumbnail size */
+    public boolean isEnabled() {
+        return mMaxDimension < THUMBNAIL_DIMENSION;
+    }
+
+    /**
+     * Tag of the current settings, part of the cache key of any vCard which
+     * embeds a photo from this transcoder.
+     */
+    public String getConfigTag() {
+        return mMaxDimension + "q" + mQuality;
+    }
+
+    /**
+     * Replace the thumbnails of a loaded contact entity which are larger than
+     * the max dimension with a smaller version. Thumbnails which are small
+     * enough, can not be decoded or would not get smaller are left as they are.
+     */
+    public void transcode(Map<String, List<ContentValues>> entity) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<ContentValues> photos = entity.get(Photo.CONTENT_ITEM_TYPE);
+        if (photos == null) {
+            return;
+        }
+        for (ContentValues values : photos) {
+            byte[] thumbnail = values.getAsByteArray(Photo.PHOTO);
+            if (thumbnail == null) {
+                continue;
+            }
+            byte[] photo = scale(thumbnail);
+            if (photo != null && photo.length < thumbnail.length) {
+                if (V) Log.v(TAG, "thumbnail " + thumbnail.length + " -> " + photo.length
+                        + " bytes");
+                values.put(Photo.PHOTO, photo);
+            }
+        }
+    }
+
+    /** Scale an encoded picture down to the max dimension, null if already small */
+    private byte[] scale(byte[] encoded) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int largest = Math.max(options.outWidth, options.outHeight);
+        if (largest <= mMaxDimension) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (largest / (sampleSize * 2) >= mMaxDimension) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = fit(BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options));
+        if (bitmap == null) {
+            return null;
+        }
+        byte[] photo = compress(bitmap);
+        bitmap.recycle();
+        return photo;
+    }
+
+    /** Scale bitmap so that its largest side is at most the max dimension */
+    private Bitmap fit(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int largest = Math.max(width, height);
+        if (largest <= mMaxDimension) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, width * mMaxDimension / largest),
+                Math.max(1, height * mMaxDimension / largest), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private byte[] compress(Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, out)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per phase timing of PBAP GET requests, aggregated per folder and per
+ * client and printed by the service dump.
+ *
+ * A {@link Request} is created for every GET and passed down to the code
+ * doing the work. Phases may be timed from several threads at once, the
+ * compose workers for instance, so a phase total can be larger than the wall
+ * time of the request.
+ */
+public class BluetoothPbapProfiler {
+    public static final int PHASE_PARSE = 0;
+
+    public static final int PHASE_QUERY = 1;
+
+    public static final int PHASE_COMPOSE = 2;
+
+    public static final int PHASE_FILTER = 3;
+
+    public static final int PHASE_ENCODE = 4;
+
+    public static final int PHASE_SEND = 5;
+
+    private static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_NAMES = new String[] {
+            "parse", "query", "compose", "filter", "encode", "send"
+    };
+
+    // Oldest clients are forgotten beyond this
+    private static final int MAX_CLIENTS = 16;
+
+    private static final String UNKNOWN = "unknown";
+
+    private static BluetoothPbapProfiler INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private final LinkedHashMap<String, Stats> mFolders = new LinkedHashMap<String, Stats>();
+
+    private final LinkedHashMap<String, Stats> mClients =
+            new LinkedHashMap<String, Stats>(MAX_CLIENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Stats> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            };
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    public static BluetoothPbapProfiler getInstance() {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapProfiler();
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapProfiler() {
+    }
+
+    /** Counters of one GET request */
+    public static class Request {
+        private final String mClient;
+
+        private String mFolder = UNKNOWN;
+
+        private final long mStart = System.nanoTime();
+
+        private final AtomicLongArray mPhases = new AtomicLongArray(PHASE_COUNT);
+
+        private final AtomicInteger mEntries = new AtomicInteger();
+
+        private final AtomicLong mBytes = new AtomicLong();
+
+        private volatile boolean mAborted = false;
+
+        public Request(String client) {
+            mClient = (client == null) ? UNKNOWN : client;
+        }
+
+        public void setFolder(String folder) {
+            mFolder = (folder == null) ? UNKNOWN : folder;
+        }
+
+        /** Start time of a phase, to be given back to {@link #end} */
+        public long begin() {
+            return System.nanoTime();
+        }
+
+        public void end(int phase, long begin) {
+            mPhases.addAndGet(phase, System.nanoTime() - begin);
+        }
+
+        public void addEntries(int entries) {
+            mEntries.addAndGet(entries);
+        }
+
+        public void addBytes(long bytes) {
+            mBytes.addAndGet(bytes);
+        }
+
+        public void setAborted() {
+            mAborted = true;
+        }
+    }
+
+    /** Aggregated counters of a folder or a client */
+    private static class Stats {
+        int requests;
+
+        int aborts;
+
+        long entries;
+
+        long bytes;
+
+        long totalNanos;
+
+        long maxNanos;
+
+        final long[] phaseNanos = new long[PHASE_COUNT];
+
+        void add(Request request, long nanos) {
+            requests++;
+            if (request.mAborted) {
+                aborts++;
+            }
+            entries += request.mEntries.get();
+            bytes += request.mBytes.get();
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                phaseNanos[i] += request.mPhases.get(i);
+            }
+        }
+
+        void dump(PrintWriter pw, String name) {
+            pw.print("    " + name + ": requests=" + requests + " aborts=" + aborts
+                    + " entries=" + entries + " bytes=" + bytes
+                    + " total=" + toMs(totalNanos) + "ms max=" + toMs(maxNanos) + "ms");
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                pw.print(" " + PHASE_NAMES[i] + "=" + toMs(phaseNanos[i]) + "ms");
+            }
+            pw.println();
+        }
+    }
+
+    /** Account a finished request */
+    public synchronized void finish(Request request) {
+        long nanos = System.nanoTime() - request.mStart;
+        getStats(mFolders, request.mFolder).add(request, nanos);
+        getStats(mClients, request.mClient).add(request, nanos);
+    }
+
+    public synchronized void reset() {
+        mFolders.clear();
+        mClients.clear();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  PBAP requests since "
+                + (SystemClock.elapsedRealtime() - mStartTime) / 1000 + "s ago");
+        pw.println("  Per folder:");
+        for (Map.Entry<String, Stats> entry : mFolders.entrySet()) {
+            entry.getValue().dump(pw, entry.getKey());
+        }
+        pw.println("  Per client:");
+        for (Map.Entry<String, Stats> entry : mClients.entrySet()) {
+            entry.getValue().dump(pw, entry.getKey());
+        }
+    }
+
+    private static Stats getStats(LinkedHashMap<String, Stats> map, String key) {
+        Stats stats = map.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            map.put(key, stats);
+        }
+        return stats;
+    }
+
+    private static long toMs(long nanos) {
+        return nanos / 1000000;
+    }
+}
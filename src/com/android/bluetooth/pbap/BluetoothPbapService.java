@@ -53,13 +53,17 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemProperties;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.bluetooth.R;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 
 import javax.btobex.ServerSession;
 
@@ -108,6 +112,13 @@ public class BluetoothPbapService extends Service {
      */
     public static final String EXTRA_SESSION_KEY = "com.android.bluetooth.pbap.sessionkey";
 
+    /**
+     * Intent Extra name indicating the name of the remote device whose
+     * authentication challenge is shown by BluetoothPbapActivity
+     */
+    public static final String EXTRA_REMOTE_DEVICE_NAME =
+            "com.android.bluetooth.pbap.remotedevicename";
+
     public static final String THIS_PACKAGE_NAME = "com.android.bluetooth";
 
     public static final int MSG_SERVERSESSION_CLOSE = 5000;
@@ -130,6 +141,20 @@ public class BluetoothPbapService extends Service {
 
     private static final int PORT_NUM = 19;
 
+    // Max number of PCEs served at the same time. Two lets a second PCE, e.g.
+    // a car kit connecting while a watch or headset is still attached, be
+    // served instead of refused. Each session owns its own OBEX server and
+    // vCard manager, while the compose workers are one pool shared by all
+    // sessions, so concurrent pulls take turns on it. More sessions mostly
+    // add memory and contention on the contacts provider during pulls.
+    // Devices can raise it via property.
+    private static final String PROP_MAX_SESSIONS = "ro.qualcomm.bluetooth.pbap.sessions";
+
+    private static final int DEFAULT_MAX_SESSIONS = 2;
+
+    private static final int MAX_SESSIONS =
+            Math.max(1, SystemProperties.getInt(PROP_MAX_SESSIONS, DEFAULT_MAX_SESSIONS));
+
     private static final int USER_CONFIRM_TIMEOUT_VALUE = 30000;
 
 
@@ -144,24 +169,21 @@ public class BluetoothPbapService extends Service {
 
     private SocketAcceptThread mAcceptThread = null;
 
-    private BluetoothPbapAuthenticator mAuth = null;
-
-    private BluetoothPbapObexServer mPbapServer;
-
-    private ServerSession mServerSession = null;
-
     private BluetoothServerSocket mServerSocket = null;
 
-    private BluetoothSocket mConnSocket = null;
+    // Accepted connections, whether authorized yet or not. Sessions are
+    // opened on the accept thread, driven on the main thread and may be
+    // closed from a binder thread, so mSessions also guards mAuthSession and
+    // the wake lock.
+    private final ArrayList<PbapSession> mSessions = new ArrayList<PbapSession>();
 
-    private static BluetoothDevice mRemoteDevice = null;
+    // Session whose OBEX authentication challenge is shown to the user
+    private PbapSession mAuthSession = null;
 
     private static String sLocalPhoneNum = null;
 
     private static String sLocalPhoneName = null;
 
-    private static String sRemoteDeviceName = null;
-
     private boolean mHasStarted = false;
 
     private volatile boolean mInterrupted;
@@ -172,8 +194,6 @@ public class BluetoothPbapService extends Service {
 
     private IBluetooth mBluetoothService;
 
-    private boolean isWaitingAuthorization = false;
-
     // package and class name to which we send intent to check phone book access permission
     private static final String ACCESS_AUTHORITY_PACKAGE = "com.android.settings";
     private static final String ACCESS_AUTHORITY_CLASS =
@@ -195,6 +215,9 @@ public class BluetoothPbapService extends Service {
 
         mInterrupted = false;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
+        BluetoothPbapContentTracker.getInstance(this).start();
+        BluetoothPbapVcardCache.getInstance(this).start();
+        BluetoothPbapChangeLog.getInstance(this).start();
 
         if (!mHasStarted) {
             mHasStarted = true;
@@ -236,7 +259,6 @@ public class BluetoothPbapService extends Service {
         if (VERBOSE) Log.v(TAG, "action: " + action);
 
         int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
-        boolean removeTimeoutMsg = true;
         if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
             if (state == BluetoothAdapter.STATE_OFF) {
                 // Send any pending timeout now, as this service will be destroyed.
@@ -246,52 +268,46 @@ public class BluetoothPbapService extends Service {
                     timeoutIntent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
                     sendBroadcast(timeoutIntent, BLUETOOTH_ADMIN_PERM);
                 }
+                mSessionStatusHandler.removeMessages(USER_TIMEOUT);
                 // Release all resources
                 closeService();
-            } else {
-                removeTimeoutMsg = false;
             }
-        } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED) &&
-                                 isWaitingAuthorization) {
+        } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            if (mRemoteDevice == null || device == null) {
-               Log.e(TAG, "Unexpected error!");
-               return;
-            }
-
-            if (mRemoteDevice.equals(device) && (mSessionStatusHandler != null)) {
-               /* Let the user timeout handle this case as well */
-               mSessionStatusHandler.sendMessage(mSessionStatusHandler
-                   .obtainMessage(USER_TIMEOUT));
-               removeTimeoutMsg = false;
+            PbapSession session = findWaitingSession(device);
+            if (session == null) {
+                return;
             }
+            /* Let the user timeout handle this case as well */
+            mSessionStatusHandler.removeMessages(USER_TIMEOUT, session);
+            mSessionStatusHandler.sendMessage(mSessionStatusHandler
+                    .obtainMessage(USER_TIMEOUT, session));
         } else if (action.equals(BluetoothDevice.ACTION_CONNECTION_ACCESS_REPLY)) {
-            if (!isWaitingAuthorization) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            PbapSession session = findWaitingSession(device);
+            if (session == null) {
                 // this reply is not for us
                 return;
             }
-
-            isWaitingAuthorization = false;
+            mSessionStatusHandler.removeMessages(USER_TIMEOUT, session);
+            session.mWaitingAuthorization = false;
 
             if (intent.getIntExtra(BluetoothDevice.EXTRA_CONNECTION_ACCESS_RESULT,
                                    BluetoothDevice.CONNECTION_ACCESS_NO) ==
                 BluetoothDevice.CONNECTION_ACCESS_YES) {
 
                 if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                    boolean result = mRemoteDevice.setTrust(true);
+                    boolean result = session.mDevice.setTrust(true);
                     if (VERBOSE) Log.v(TAG, "setTrust() result=" + result);
                 }
                 try {
-                    if (mConnSocket != null) {
-                        startObexServerSession();
-                    } else {
-                        stopObexServerSession();
-                    }
+                    startObexServerSession(session);
                 } catch (IOException ex) {
                     Log.e(TAG, "Caught the error: " + ex.toString());
+                    stopObexServerSession(session);
                 }
             } else {
-                stopObexServerSession();
+                stopObexServerSession(session);
             }
             removePbapNotification(NOTIFICATION_ID_ACCESS);
         } else if (action.equals(AUTH_RESPONSE_ACTION)) {
@@ -301,12 +317,6 @@ public class BluetoothPbapService extends Service {
         } else if (action.equals(AUTH_CANCELLED_ACTION)) {
             notifyAuthCancelled();
             removePbapNotification(NOTIFICATION_ID_AUTH);
-        } else {
-            removeTimeoutMsg = false;
-        }
-
-        if (removeTimeoutMsg) {
-            mSessionStatusHandler.removeMessages(USER_TIMEOUT);
         }
     }
 
@@ -315,12 +325,24 @@ public class BluetoothPbapService extends Service {
         if (VERBOSE) Log.v(TAG, "Pbap Service onDestroy");
 
         super.onDestroy();
-        setState(BluetoothPbap.STATE_DISCONNECTED, BluetoothPbap.RESULT_CANCELED);
         if (mWakeLock != null) {
             mWakeLock.release();
             mWakeLock = null;
         }
         closeService();
+        BluetoothPbapChangeLog.getInstance(this).stop();
+        BluetoothPbapVcardCache.getInstance(this).stop();
+        BluetoothPbapContentTracker.getInstance(this).stop();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("BluetoothPbapService: state=" + mState);
+        for (PbapSession session : getSessions()) {
+            writer.println("  " + session + " connected=" + session.mConnected
+                    + " waitingAuthorization=" + session.mWaitingAuthorization);
+        }
+        BluetoothPbapProfiler.getInstance().dump(writer);
     }
 
     @Override
@@ -338,7 +360,7 @@ public class BluetoothPbapService extends Service {
                 return;
             }
         }
-        if (mAcceptThread == null) {
+        if (mAcceptThread == null || !mAcceptThread.isAlive()) {
             mAcceptThread = new SocketAcceptThread();
             mAcceptThread.setName("BluetoothPbapAcceptThread");
             mAcceptThread.start();
@@ -387,22 +409,14 @@ public class BluetoothPbapService extends Service {
         return initSocketOK;
     }
 
-    private final void closeSocket(boolean server, boolean accept) throws IOException {
-        if (server == true) {
-            // Stop the possible trying to init serverSocket
-            mInterrupted = true;
+    private final void closeServerSocket() throws IOException {
+        // Stop the possible trying to init serverSocket
+        mInterrupted = true;
 
-            if (VERBOSE) Log.v(TAG, "closeSocket : set mInterrupted");
-            if (mServerSocket != null) {
-                mServerSocket.close();
-                mServerSocket = null;
-            }
-        }
-
-        if (accept == true) {
-            if (mConnSocket != null) {
-                mConnSocket.close();
-            }
+        if (VERBOSE) Log.v(TAG, "closeServerSocket : set mInterrupted");
+        if (mServerSocket != null) {
+            mServerSocket.close();
+            mServerSocket = null;
         }
     }
 
@@ -410,7 +424,7 @@ public class BluetoothPbapService extends Service {
         if (VERBOSE) Log.v(TAG, "Pbap Service closeService");
 
         try {
-            closeSocket(true, true);
+            closeServerSocket();
         } catch (IOException ex) {
             Log.e(TAG, "CloseSocket error: " + ex);
         }
@@ -425,11 +439,9 @@ public class BluetoothPbapService extends Service {
             }
         }
         mServerSocket = null;
-        mConnSocket = null;
 
-        if (mServerSession != null) {
-            mServerSession.close();
-            mServerSession = null;
+        for (PbapSession session : getSessions()) {
+            closeSession(session, BluetoothPbap.RESULT_CANCELED);
         }
 
         mHasStarted = false;
@@ -438,16 +450,18 @@ public class BluetoothPbapService extends Service {
         }
     }
 
-    private final void startObexServerSession() throws IOException {
-        if (VERBOSE) Log.v(TAG, "Pbap Service startObexServerSession");
+    private final void startObexServerSession(PbapSession session) throws IOException {
+        if (VERBOSE) Log.v(TAG, "Pbap Service startObexServerSession " + session);
 
         // acquire the wakeLock before start Obex transaction thread
-        if (mWakeLock == null) {
-            PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
-            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                    "StartingObexPbapTransaction");
-            mWakeLock.setReferenceCounted(false);
-            mWakeLock.acquire();
+        synchronized (mSessions) {
+            if (mWakeLock == null) {
+                PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
+                mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                        "StartingObexPbapTransaction");
+                mWakeLock.setReferenceCounted(false);
+                mWakeLock.acquire();
+            }
         }
         TelephonyManager tm = (TelephonyManager)getSystemService(Context.TELEPHONY_SERVICE);
         if (tm != null) {
@@ -458,72 +472,207 @@ public class BluetoothPbapService extends Service {
             }
         }
 
-        mPbapServer = new BluetoothPbapObexServer(mSessionStatusHandler, this);
-        synchronized (this) {
-            mAuth = new BluetoothPbapAuthenticator(mSessionStatusHandler);
-            mAuth.setChallenged(false);
-            mAuth.setCancelled(false);
+        // Every session has its own server, and so its own vCard manager and
+        // abort state; caches and indexes are shared between sessions.
+        session.mPbapServer = new BluetoothPbapObexServer(mSessionStatusHandler, this,
+                session.mDevice);
+        synchronized (session) {
+            session.mAuth = new BluetoothPbapAuthenticator(mSessionStatusHandler);
+            session.mAuth.setChallenged(false);
+            session.mAuth.setCancelled(false);
+        }
+        BluetoothPbapRfcommTransport transport =
+                new BluetoothPbapRfcommTransport(session.mSocket);
+        ServerSession serverSession = new ServerSession(transport, session.mPbapServer,
+                session.mAuth);
+        synchronized (session) {
+            if (session.mClosed) {
+                // Disconnected while the server was being set up
+                serverSession.close();
+                releaseWakeLockIfIdle();
+                return;
+            }
+            session.mServerSession = serverSession;
+            session.mConnected = true;
         }
-        BluetoothPbapRfcommTransport transport = new BluetoothPbapRfcommTransport(mConnSocket);
-        mServerSession = new ServerSession(transport, mPbapServer, mAuth);
-        setState(BluetoothPbap.STATE_CONNECTED);
+        setState(session.mDevice, BluetoothPbap.STATE_CONNECTED, BluetoothPbap.RESULT_SUCCESS);
         if (VERBOSE) {
             Log.v(TAG, "startObexServerSession() success!");
         }
     }
 
-    private void stopObexServerSession() {
-        if (VERBOSE) Log.v(TAG, "Pbap Service stopObexServerSession");
+    private void stopObexServerSession(PbapSession session) {
+        if (VERBOSE) Log.v(TAG, "Pbap Service stopObexServerSession " + session);
 
-        // Release the wake lock if obex transaction is over
-        if (mWakeLock != null) {
-            mWakeLock.release();
-            mWakeLock = null;
-        }
+        closeSession(session, BluetoothPbap.RESULT_SUCCESS);
 
-        if (mServerSession != null) {
-            mServerSession.close();
-            mServerSession = null;
+        releaseWakeLockIfIdle();
+
+        // Make sure we keep listening for incoming connections
+        if (mAdapter.isEnabled()) {
+            startRfcommSocketListener();
         }
+    }
 
-        mAcceptThread = null;
+    // Release the wake lock if the last obex transaction is over
+    private void releaseWakeLockIfIdle() {
+        synchronized (mSessions) {
+            if (mSessions.isEmpty() && mWakeLock != null) {
+                mWakeLock.release();
+                mWakeLock = null;
+            }
+        }
+    }
 
+    /**
+     * Close session and report it disconnected. Safe to call from any
+     * thread; only the first call for a session has an effect.
+     */
+    private void closeSession(PbapSession session, int result) {
+        PbapSession authSession;
+        synchronized (mSessions) {
+            if (!mSessions.remove(session)) {
+                return;
+            }
+            authSession = takeAuthSession(session);
+        }
+        if (authSession != null) {
+            cancelAuth(authSession);
+        }
+        mSessionStatusHandler.removeMessages(USER_TIMEOUT, session);
+        ServerSession serverSession;
+        boolean connected;
+        synchronized (session) {
+            session.mClosed = true;
+            serverSession = session.mServerSession;
+            session.mServerSession = null;
+            connected = session.mConnected;
+            session.mConnected = false;
+        }
+        if (serverSession != null) {
+            serverSession.close();
+        }
         try {
-            closeSocket(false, true);
-            mConnSocket = null;
+            session.mSocket.close();
         } catch (IOException e) {
             Log.e(TAG, "closeSocket error: " + e.toString());
         }
-        // Last obex transaction is finished, we start to listen for incoming
-        // connection again
-        if (mAdapter.isEnabled()) {
-            startRfcommSocketListener();
+        if (connected) {
+            setState(session.mDevice, BluetoothPbap.STATE_DISCONNECTED, result);
+        }
+    }
+
+    /**
+     * Clear the session waiting for OBEX authentication and return it, or
+     * null if there is none or, when session is not null, it is another one.
+     */
+    private PbapSession takeAuthSession(PbapSession session) {
+        synchronized (mSessions) {
+            PbapSession authSession = mAuthSession;
+            if (authSession == null || (session != null && session != authSession)) {
+                return null;
+            }
+            mAuthSession = null;
+            return authSession;
         }
-        setState(BluetoothPbap.STATE_DISCONNECTED);
     }
 
     private void notifyAuthKeyInput(final String key) {
-        synchronized (mAuth) {
+        PbapSession session = takeAuthSession(null);
+        if (session == null || session.mAuth == null) {
+            return;
+        }
+        synchronized (session.mAuth) {
             if (key != null) {
-                mAuth.setSessionKey(key);
+                session.mAuth.setSessionKey(key);
             }
-            mAuth.setChallenged(true);
-            mAuth.notify();
+            session.mAuth.setChallenged(true);
+            session.mAuth.notify();
         }
     }
 
     private void notifyAuthCancelled() {
-        synchronized (mAuth) {
-            mAuth.setCancelled(true);
-            mAuth.notify();
+        PbapSession session = takeAuthSession(null);
+        if (session != null) {
+            cancelAuth(session);
+        }
+    }
+
+    private void cancelAuth(PbapSession session) {
+        if (session.mAuth == null) {
+            return;
+        }
+        synchronized (session.mAuth) {
+            session.mAuth.setCancelled(true);
+            session.mAuth.notify();
+        }
+    }
+
+    private PbapSession[] getSessions() {
+        synchronized (mSessions) {
+            return mSessions.toArray(new PbapSession[mSessions.size()]);
+        }
+    }
+
+    /** Session of device which is waiting for user authorization */
+    private PbapSession findWaitingSession(BluetoothDevice device) {
+        for (PbapSession session : getSessions()) {
+            if (session.mWaitingAuthorization
+                    && (device == null || device.equals(session.mDevice))) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private PbapSession findSession(Object what) {
+        for (PbapSession session : getSessions()) {
+            if (what == session || what == session.mPbapServer || what == session.mAuth) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A PCE connection, from the time it is accepted until it is closed.
+     */
+    private static class PbapSession {
+        final BluetoothSocket mSocket;
+
+        final BluetoothDevice mDevice;
+
+        final String mDeviceName;
+
+        BluetoothPbapObexServer mPbapServer;
+
+        // mServerSession, mConnected and mClosed are guarded by the session
+        ServerSession mServerSession;
+
+        BluetoothPbapAuthenticator mAuth;
+
+        volatile boolean mWaitingAuthorization = false;
+
+        volatile boolean mConnected = false;
+
+        boolean mClosed = false;
+
+        PbapSession(BluetoothSocket socket, BluetoothDevice device, String deviceName) {
+            mSocket = socket;
+            mDevice = device;
+            mDeviceName = deviceName;
+        }
+
+        @Override
+        public String toString() {
+            return "PbapSession[" + mDeviceName + "]";
         }
     }
 
     /**
      * A thread that runs in the background waiting for remote rfcomm
-     * connect.Once a remote socket connected, this thread shall be
-     * shutdown.When the remote disconnect,this thread shall run again waiting
-     * for next request.
+     * connect. Every accepted connection becomes a session of its own, up to
+     * MAX_SESSIONS sessions; connections beyond that are refused.
      */
     private class SocketAcceptThread extends Thread {
 
@@ -537,54 +686,63 @@ public class BluetoothPbapService extends Service {
                         Log.e(TAG, "mServerSocket has been closed already");
                         break;
                     }
-                    mConnSocket = mServerSocket.accept();
+                    BluetoothSocket connSocket = mServerSocket.accept();
 
-                    mRemoteDevice = mConnSocket.getRemoteDevice();
-                    if (mRemoteDevice == null) {
+                    BluetoothDevice device = connSocket.getRemoteDevice();
+                    if (device == null) {
                         Log.i(TAG, "getRemoteDevice() = null");
-                        break;
+                        connSocket.close();
+                        continue;
                     }
-                    sRemoteDeviceName = mRemoteDevice.getName();
+                    if (!acceptSession(device)) {
+                        connSocket.close();
+                        continue;
+                    }
+                    String deviceName = device.getName();
                     // In case getRemoteName failed and return null
-                    if (TextUtils.isEmpty(sRemoteDeviceName)) {
-                        sRemoteDeviceName = getString(R.string.defaultname);
+                    if (TextUtils.isEmpty(deviceName)) {
+                        deviceName = getString(R.string.defaultname);
+                    }
+                    PbapSession session = new PbapSession(connSocket, device, deviceName);
+                    synchronized (mSessions) {
+                        mSessions.add(session);
                     }
-                    boolean trust = mRemoteDevice.getTrustState();
+                    boolean trust = device.getTrustState();
                     if (VERBOSE) Log.v(TAG, "GetTrustState() = " + trust);
 
                     if (trust) {
                         try {
                             if (VERBOSE) Log.v(TAG, "incomming connection accepted from: "
-                                + sRemoteDeviceName + " automatically as trusted device");
-                            startObexServerSession();
+                                + deviceName + " automatically as trusted device");
+                            startObexServerSession(session);
                         } catch (IOException ex) {
                             Log.e(TAG, "catch exception starting obex server session"
                                     + ex.toString());
+                            stopObexServerSession(session);
                         }
                     } else {
+                        session.mWaitingAuthorization = true;
                         Intent intent = new
                             Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_REQUEST);
                         intent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
                         intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
                                         BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
-                        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
+                        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
                         intent.putExtra(BluetoothDevice.EXTRA_PACKAGE_NAME, getPackageName());
                         intent.putExtra(BluetoothDevice.EXTRA_CLASS_NAME,
                                         BluetoothPbapReceiver.class.getName());
                         sendBroadcast(intent, BLUETOOTH_ADMIN_PERM);
-                        isWaitingAuthorization = true;
 
                         if (VERBOSE) Log.v(TAG, "waiting for authorization for connection from: "
-                                + sRemoteDeviceName);
+                                + deviceName);
 
                         // In case car kit time out and try to use HFP for
                         // phonebook
                         // access, while UI still there waiting for user to
                         // confirm
                         mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
-                                .obtainMessage(USER_TIMEOUT), USER_CONFIRM_TIMEOUT_VALUE);
+                                .obtainMessage(USER_TIMEOUT, session), USER_CONFIRM_TIMEOUT_VALUE);
                     }
-                    stopped = true; // job done ,close this thread;
                 } catch (IOException ex) {
                     if (stopped) {
                         break;
@@ -594,6 +752,23 @@ public class BluetoothPbapService extends Service {
             }
         }
 
+        /** Check whether a new session may be opened for device */
+        private boolean acceptSession(BluetoothDevice device) {
+            synchronized (mSessions) {
+                if (mSessions.size() >= MAX_SESSIONS) {
+                    Log.w(TAG, "Too many PBAP sessions, refusing " + device);
+                    return false;
+                }
+                for (PbapSession session : mSessions) {
+                    if (device.equals(session.mDevice)) {
+                        Log.w(TAG, "PBAP session already open for " + device);
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
         void shutdown() {
             stopped = true;
             interrupt();
@@ -605,6 +780,7 @@ public class BluetoothPbapService extends Service {
         public void handleMessage(Message msg) {
             if (VERBOSE) Log.v(TAG, "Handler(): got msg=" + msg.what);
 
+            PbapSession session = null;
             switch (msg.what) {
                 case START_LISTENER:
                     if (mAdapter.isEnabled()) {
@@ -614,13 +790,18 @@ public class BluetoothPbapService extends Service {
                     }
                     break;
                 case USER_TIMEOUT:
+                    session = findSession(msg.obj);
+                    if (session == null) {
+                        break;
+                    }
                     Intent intent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
                     intent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
                     intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
                        BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
+                    intent.putExtra(BluetoothDevice.EXTRA_DEVICE, session.mDevice);
                     sendBroadcast(intent);
-                    isWaitingAuthorization = false;
-                    stopObexServerSession();
+                    session.mWaitingAuthorization = false;
+                    stopObexServerSession(session);
                     break;
                 case AUTH_TIMEOUT:
                     Intent i = new Intent(USER_CONFIRM_TIMEOUT_ACTION);
@@ -629,7 +810,10 @@ public class BluetoothPbapService extends Service {
                     notifyAuthCancelled();
                     break;
                 case MSG_SERVERSESSION_CLOSE:
-                    stopObexServerSession();
+                    session = findSession(msg.obj);
+                    if (session != null) {
+                        stopObexServerSession(session);
+                    }
                     break;
                 case MSG_SESSION_ESTABLISHED:
                     break;
@@ -637,7 +821,24 @@ public class BluetoothPbapService extends Service {
                     // case MSG_SERVERSESSION_CLOSE will handle ,so just skip
                     break;
                 case MSG_OBEX_AUTH_CHALL:
-                    createPbapNotification(AUTH_CHALL_ACTION);
+                    session = findSession(msg.obj);
+                    if (session == null) {
+                        break;
+                    }
+                    boolean pending;
+                    synchronized (mSessions) {
+                        pending = mAuthSession != null && mAuthSession != session;
+                        if (!pending) {
+                            mAuthSession = session;
+                        }
+                    }
+                    if (pending) {
+                        // Only one challenge can be shown at a time
+                        Log.w(TAG, "Authentication already pending, cancel " + session);
+                        cancelAuth(session);
+                        break;
+                    }
+                    createPbapNotification(AUTH_CHALL_ACTION, session.mDeviceName);
                     mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
                             .obtainMessage(AUTH_TIMEOUT), USER_CONFIRM_TIMEOUT_VALUE);
                     break;
@@ -647,31 +848,41 @@ public class BluetoothPbapService extends Service {
         }
     };
 
-    private void setState(int state) {
-        setState(state, BluetoothPbap.RESULT_SUCCESS);
+    /**
+     * Report a connection state change of one PCE. The service state is
+     * connected as long as at least one PCE is connected.
+     */
+    private synchronized void setState(BluetoothDevice device, int state, int result) {
+        int prevState = (state == BluetoothPbap.STATE_CONNECTED) ?
+                BluetoothPbap.STATE_DISCONNECTED : BluetoothPbap.STATE_CONNECTED;
+        if (DEBUG) Log.d(TAG, "Pbap state of " + device + " " + prevState + " -> " + state
+                + ", result = " + result);
+        Intent intent = new Intent(BluetoothPbap.PBAP_STATE_CHANGED_ACTION);
+        intent.putExtra(BluetoothPbap.PBAP_PREVIOUS_STATE, prevState);
+        intent.putExtra(BluetoothPbap.PBAP_STATE, state);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        sendBroadcast(intent, BLUETOOTH_PERM);
+        try {
+            mBluetoothService.sendConnectionStateChange(device, BluetoothProfile.PBAP,
+                                                        state, prevState);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendConnectionStateChange");
+        }
+        mState = (getConnectedDevice() != null) ? BluetoothPbap.STATE_CONNECTED
+                : BluetoothPbap.STATE_DISCONNECTED;
     }
 
-    private synchronized void setState(int state, int result) {
-        if (state != mState) {
-            if (DEBUG) Log.d(TAG, "Pbap state " + mState + " -> " + state + ", result = "
-                    + result);
-            int prevState = mState;
-            mState = state;
-            Intent intent = new Intent(BluetoothPbap.PBAP_STATE_CHANGED_ACTION);
-            intent.putExtra(BluetoothPbap.PBAP_PREVIOUS_STATE, prevState);
-            intent.putExtra(BluetoothPbap.PBAP_STATE, mState);
-            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
-            sendBroadcast(intent, BLUETOOTH_PERM);
-            try {
-                mBluetoothService.sendConnectionStateChange(mRemoteDevice, BluetoothProfile.PBAP,
-                                                            mState, prevState);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RemoteException in sendConnectionStateChange");
+    /** First connected PCE, or null if none */
+    private BluetoothDevice getConnectedDevice() {
+        for (PbapSession session : getSessions()) {
+            if (session.mConnected) {
+                return session.mDevice;
             }
         }
+        return null;
     }
 
-    private void createPbapNotification(String action) {
+    private void createPbapNotification(String action, String name) {
 
         NotificationManager nm = (NotificationManager)
             getSystemService(Context.NOTIFICATION_SERVICE);
@@ -681,6 +892,7 @@ public class BluetoothPbapService extends Service {
         clickIntent.setClass(this, BluetoothPbapActivity.class);
         clickIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         clickIntent.setAction(action);
+        clickIntent.putExtra(EXTRA_REMOTE_DEVICE_NAME, name);
 
         // Create an intent triggered by clicking on the
         // "Clear All Notifications" button
@@ -688,7 +900,6 @@ public class BluetoothPbapService extends Service {
         deleteIntent.setClass(this, BluetoothPbapReceiver.class);
 
         Notification notification = null;
-        String name = getRemoteDeviceName();
 
         if (action.equals(AUTH_CHALL_ACTION)) {
             deleteIntent.setAction(AUTH_CANCELLED_ACTION);
@@ -696,7 +907,8 @@ public class BluetoothPbapService extends Service {
                 getString(R.string.auth_notif_ticker), System.currentTimeMillis());
             notification.setLatestEventInfo(this, getString(R.string.auth_notif_title),
                     getString(R.string.auth_notif_message, name), PendingIntent
-                            .getActivity(this, 0, clickIntent, 0));
+                            .getActivity(this, 0, clickIntent,
+                                    PendingIntent.FLAG_UPDATE_CURRENT));
 
             notification.flags |= Notification.FLAG_ONLY_ALERT_ONCE;
             notification.defaults = Notification.DEFAULT_SOUND;
@@ -719,14 +931,6 @@ public class BluetoothPbapService extends Service {
         return sLocalPhoneName;
     }
 
-    public static String getRemoteDeviceName() {
-        return sRemoteDeviceName;
-    }
-
-    public static BluetoothDevice getRemoteDeviceAddress() {
-        return mRemoteDevice;
-    }
-
     /**
      * Handlers for incoming service calls
      */
@@ -739,18 +943,20 @@ public class BluetoothPbapService extends Service {
         }
 
         public BluetoothDevice getClient() {
-            if (DEBUG) Log.d(TAG, "getClient" + mRemoteDevice);
-
             enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-            if (mState == BluetoothPbap.STATE_DISCONNECTED) {
-                return null;
-            }
-            return mRemoteDevice;
+            BluetoothDevice device = getConnectedDevice();
+            if (DEBUG) Log.d(TAG, "getClient" + device);
+            return device;
         }
 
         public boolean isConnected(BluetoothDevice device) {
             enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-            return mState == BluetoothPbap.STATE_CONNECTED && mRemoteDevice.equals(device);
+            for (PbapSession session : getSessions()) {
+                if (session.mConnected && session.mDevice.equals(device)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         public boolean connect(BluetoothDevice device) {
@@ -765,22 +971,10 @@ public class BluetoothPbapService extends Service {
             enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                     "Need BLUETOOTH_ADMIN permission");
             synchronized (BluetoothPbapService.this) {
-                switch (mState) {
-                    case BluetoothPbap.STATE_CONNECTED:
-                        if (mServerSession != null) {
-                            mServerSession.close();
-                            mServerSession = null;
-                        }
-                        try {
-                            closeSocket(false, true);
-                            mConnSocket = null;
-                        } catch (IOException ex) {
-                            Log.e(TAG, "Caught the error: " + ex);
-                        }
-                        setState(BluetoothPbap.STATE_DISCONNECTED, BluetoothPbap.RESULT_CANCELED);
-                        break;
-                    default:
-                        break;
+                for (PbapSession session : getSessions()) {
+                    if (session.mConnected) {
+                        closeSession(session, BluetoothPbap.RESULT_CANCELED);
+                    }
                 }
             }
         }
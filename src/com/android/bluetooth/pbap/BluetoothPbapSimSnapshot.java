@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds;
+import android.provider.ContactsContract.Contacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parsed copy of the SIM (ICC ADN) phonebook.
+ *
+ * Reading the ICC provider goes to the modem and is slow, so the SIM
+ * phonebook is read once per SIM state change and every SIM1 folder request,
+ * size, listing, search and vCard pull alike, is served from this copy.
+ */
+public class BluetoothPbapSimSnapshot {
+    private static final String TAG = "BluetoothPbapSimSnapshot";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final Uri SIM_URI = Uri.parse("content://icc/adn");
+
+    private static final String[] SIM_PROJECTION = new String[] {
+            Contacts.DISPLAY_NAME,
+            CommonDataKinds.Phone.NUMBER,
+            CommonDataKinds.Phone.TYPE,
+            CommonDataKinds.Phone.LABEL
+    };
+
+    private static final int NAME_COLUMN_INDEX = 0;
+    private static final int NUMBER_COLUMN_INDEX = 1;
+    private static final int NUMBERTYPE_COLUMN_INDEX = 2;
+    private static final int NUMBERLABEL_COLUMN_INDEX = 3;
+
+    private static BluetoothPbapSimSnapshot INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    /** One ADN record */
+    public static class Entry {
+        /** Name as stored on the SIM, may be empty */
+        public final String name;
+
+        /** Name to list, never empty */
+        public final String displayName;
+
+        public final String number;
+
+        /** Digits of number, used by number searches */
+        public final String digits;
+
+        public final int type;
+
+        public final String label;
+
+        Entry(String name, String displayName, String number, int type, String label) {
+            this.name = name;
+            this.displayName = displayName;
+            this.number = number;
+            this.digits = onlyDigits(number);
+            this.type = type;
+            this.label = label;
+        }
+    }
+
+    private final Context mContext;
+
+    private final BluetoothPbapContentTracker mContentTracker;
+
+    private long mGeneration = BluetoothPbapContentTracker.GENERATION_UNKNOWN;
+
+    // Immutable once published, so they can be handed out without copying
+    private List<Entry> mIndexed;
+
+    private List<Entry> mAlphabetical;
+
+    public static BluetoothPbapSimSnapshot getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapSimSnapshot(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapSimSnapshot(Context context) {
+        mContext = context;
+        mContentTracker = BluetoothPbapContentTracker.getInstance(context);
+    }
+
+    /**
+     * SIM entries in the given order, ADN record order or case insensitive
+     * name order. Returns null if the SIM phonebook can not be read.
+     */
+    public List<Entry> getEntries(final int orderByWhat) {
+        synchronized (this) {
+            long generation = mContentTracker.getGeneration(
+                    BluetoothPbapContentTracker.SOURCE_SIM);
+            if (mIndexed == null || generation == BluetoothPbapContentTracker.GENERATION_UNKNOWN
+                    || generation != mGeneration) {
+                load();
+                mGeneration = generation;
+            }
+            if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+                return mAlphabetical;
+            }
+            return mIndexed;
+        }
+    }
+
+    /** Number of SIM entries, 0 if the SIM phonebook can not be read */
+    public int getCount() {
+        List<Entry> entries = getEntries(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * Names of the entries whose number ends with the digits of phoneNumber,
+     * followed by the names of those whose number starts with them.
+     */
+    public ArrayList<String> getNamesByNumber(final String phoneNumber) {
+        ArrayList<String> nameList = new ArrayList<String>();
+        ArrayList<String> startNameList = new ArrayList<String>();
+        List<Entry> entries = getEntries(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+        if (entries == null) {
+            return nameList;
+        }
+        final String searchDigits = onlyDigits(phoneNumber);
+        for (Entry entry : entries) {
+            if (entry.number == null) {
+                continue;
+            }
+            if (entry.digits.endsWith(searchDigits)) {
+                if (V) Log.v(TAG, "got name " + entry.displayName + " by number " + phoneNumber);
+                nameList.add(entry.displayName);
+            }
+            if (entry.digits.startsWith(searchDigits)) {
+                startNameList.add(entry.displayName);
+            }
+        }
+        for (String name : startNameList) {
+            if (!nameList.contains(name)) {
+                nameList.add(name);
+            }
+        }
+        return nameList;
+    }
+
+    private void load() {
+        mIndexed = null;
+        mAlphabetical = null;
+        Cursor cursor = null;
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        try {
+            cursor = mContext.getContentResolver().query(SIM_URI, SIM_PROJECTION, null, null,
+                    null);
+            if (cursor == null) {
+                Log.e(TAG, "SIM phonebook query failed");
+                return;
+            }
+            final String unknownName = mContext.getString(android.R.string.unknownName);
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(NAME_COLUMN_INDEX);
+                String displayName = TextUtils.isEmpty(name) ? unknownName : name;
+                entries.add(new Entry(name, displayName, cursor.getString(NUMBER_COLUMN_INDEX),
+                        cursor.getInt(NUMBERTYPE_COLUMN_INDEX),
+                        cursor.getString(NUMBERLABEL_COLUMN_INDEX)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        ArrayList<Entry> alphabetical = new ArrayList<Entry>(entries);
+        Collections.sort(alphabetical, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.displayName.compareToIgnoreCase(e2.displayName);
+            }
+        });
+        mIndexed = Collections.unmodifiableList(entries);
+        mAlphabetical = Collections.unmodifiableList(alphabetical);
+        if (V) Log.v(TAG, "loaded " + entries.size() + " SIM entries");
+    }
+
+    private static String onlyDigits(final String number) {
+        if (number == null) {
+            return "";
+        }
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+}
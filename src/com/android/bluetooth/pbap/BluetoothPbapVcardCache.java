@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2012, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two level (memory + disk) LRU cache of composed contact vCards.
+ *
+ * Entries are keyed by contact id, raw contact versions, vCard type and
+ * filter mask, so an edit of a contact always produces a new key and a stale
+ * entry can never be served. Older versions of a contact are dropped when the
+ * new one is stored, and deleted contacts are dropped when the content
+ * tracker reports a contacts change. Files are written in batches on the
+ * cache thread, never on the thread composing the vCards.
+ */
+public class BluetoothPbapVcardCache implements BluetoothPbapContentTracker.Listener {
+    private static final String TAG = "BluetoothPbapVcardCache";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final String CACHE_DIR_NAME = "pbap_vcard";
+
+    // Max number of chars kept in memory
+    private static final int MAX_MEMORY_CHARS = 512 * 1024;
+
+    // Max number of bytes kept on disk
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+
+    // Delay to coalesce bursts of contacts provider notifications
+    private static final int PRUNE_DELAY = 2000;
+
+    // Delay to gather the vCards of a pull into one batch of file writes
+    private static final int WRITE_DELAY = 1000;
+
+    // Longer versions (contacts joined from many raw contacts) are not cached,
+    // the key is used as a file name
+    private static final int MAX_VERSION_LENGTH = 128;
+
+    private static final int MSG_PRUNE = 1;
+
+    private static final int MSG_WRITE = 2;
+
+    private static final String KEY_SEPARATOR = "_";
+
+    private static BluetoothPbapVcardCache INSTANCE;
+
+    /* Used when obtaining a reference to the singleton instance. */
+    private static Object INSTANCE_LOCK = new Object();
+
+    private Context mContext;
+
+    private File mCacheDir;
+
+    private long mDiskBytes = -1;
+
+    // contact id -> keys stored for this contact, in memory or on disk
+    private HashMap<Long, ArrayList<String>> mKeys = new HashMap<Long, ArrayList<String>>();
+
+    private LruCache<String, String> mMemoryCache;
+
+    // key -> vCard waiting to be written to disk, in insertion order
+    private LinkedHashMap<String, String> mPendingWrites = new LinkedHashMap<String, String>();
+
+    private HandlerThread mHandlerThread;
+
+    private Handler mHandler;
+
+    public static BluetoothPbapVcardCache getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothPbapVcardCache(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothPbapVcardCache(Context context) {
+        mContext = context;
+        mCacheDir = new File(mContext.getCacheDir(), CACHE_DIR_NAME);
+        mMemoryCache = new LruCache<String, String>(MAX_MEMORY_CHARS) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+    }
+
+    /** Start listening for contacts changes, called when PBAP service starts */
+    public synchronized void start() {
+        if (mHandlerThread != null) {
+            return;
+        }
+        mHandlerThread = new HandlerThread("BluetoothPbapVcardCache");
+        mHandlerThread.start();
+        mHandler = new CacheHandler(mHandlerThread.getLooper());
+        BluetoothPbapContentTracker.getInstance(mContext).registerListener(this);
+        if (V) Log.v(TAG, "started");
+    }
+
+    /** Stop listening for contacts changes, called when PBAP service is destroyed */
+    public synchronized void stop() {
+        if (mHandlerThread == null) {
+            return;
+        }
+        BluetoothPbapContentTracker.getInstance(mContext).unregisterListener(this);
+        mHandler.removeMessages(MSG_PRUNE);
+        mHandler.removeMessages(MSG_WRITE);
+        mHandlerThread.getLooper().quit();
+        mHandlerThread = null;
+        mHandler = null;
+        // Memory copy is only worth keeping while the service is alive, and
+        // unwritten vCards are simply composed again next time
+        mMemoryCache.evictAll();
+        mPendingWrites.clear();
+        if (V) Log.v(TAG, "stopped");
+    }
+
+    /**
+     * Build the cache key of a composed vCard. The version is an opaque string
+     * that changes whenever any raw contact of the aggregate is edited.
+     *
+     * @return the key, or null if the vCard can not be cached
+     */
+    public static String buildKey(long contactId, String version, boolean vcardType21,
+            boolean ignorefilter, byte[] filter) {
+        if (version.length() > MAX_VERSION_LENGTH) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(contactId).append(KEY_SEPARATOR).append(version).append(KEY_SEPARATOR);
+        key.append(vcardType21 ? "21" : "30").append(KEY_SEPARATOR);
+        if (ignorefilter || filter == null) {
+            key.append("all");
+        } else {
+            for (int i = 0; i < filter.length; i++) {
+                key.append(Character.forDigit((filter[i] >> 4) & 0x0f, 16));
+                key.append(Character.forDigit(filter[i] & 0x0f, 16));
+            }
+        }
+        return key.toString();
+    }
+
+    public synchronized String get(long contactId, String key) {
+        String vcard = mMemoryCache.get(key);
+        if (vcard == null) {
+            vcard = mPendingWrites.get(key);
+        }
+        if (vcard != null) {
+            return vcard;
+        }
+        ArrayList<String> keys = getKeys(contactId, false);
+        if (keys == null || !keys.contains(key)) {
+            return null;
+        }
+        File file = new File(mCacheDir, key);
+        vcard = readFile(file);
+        if (vcard == null) {
+            keys.remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        mMemoryCache.put(key, vcard);
+        return vcard;
+    }
+
+    public synchronized void put(long contactId, String key, String vcard) {
+        if (vcard == null) {
+            return;
+        }
+        ArrayList<String> keys = getKeys(contactId, true);
+        String version = versionOf(key);
+        // Drop entries composed from older versions of this contact
+        for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+            String oldKey = it.next();
+            if (!version.equals(versionOf(oldKey))) {
+                removeEntry(oldKey);
+                it.remove();
+            }
+        }
+        mMemoryCache.put(key, vcard);
+        if (!keys.contains(key)) {
+            keys.add(key);
+        }
+        if (mHandler != null) {
+            mPendingWrites.put(key, vcard);
+            if (!mHandler.hasMessages(MSG_WRITE)) {
+                mHandler.sendEmptyMessageDelayed(MSG_WRITE, WRITE_DELAY);
+            }
+        }
+    }
+
+    /** Write the pending vCards, on the cache thread */
+    private void writePending() {
+        LinkedHashMap<String, String> pending;
+        synchronized (this) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            pending = mPendingWrites;
+            mPendingWrites = new LinkedHashMap<String, String>();
+            if (mDiskBytes < 0) {
+                loadDiskIndex();
+            }
+        }
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            bytes += writeFile(new File(mCacheDir, entry.getKey()), entry.getValue());
+        }
+        synchronized (this) {
+            mDiskBytes += bytes;
+            // Entries dropped while their file was being written
+            for (String key : pending.keySet()) {
+                ArrayList<String> keys = mKeys.get(contactIdOf(key));
+                if (keys == null || !keys.contains(key)) {
+                    removeEntry(key);
+                }
+            }
+            if (mDiskBytes > MAX_DISK_BYTES) {
+                trimDisk();
+            }
+        }
+        if (V) Log.v(TAG, "wrote " + pending.size() + " vCards, disk bytes=" + mDiskBytes);
+    }
+
+    /** Drop every cached entry, in memory and on disk */
+    public synchronized void clear() {
+        mMemoryCache.evictAll();
+        mPendingWrites.clear();
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mKeys.clear();
+        mDiskBytes = 0;
+    }
+
+    private ArrayList<String> getKeys(long contactId, boolean create) {
+        if (mDiskBytes < 0) {
+            loadDiskIndex();
+        }
+        ArrayList<String> keys = mKeys.get(contactId);
+        if (keys == null && create) {
+            keys = new ArrayList<String>();
+            mKeys.put(contactId, keys);
+        }
+        return keys;
+    }
+
+    private void loadDiskIndex() {
+        mDiskBytes = 0;
+        if (!mCacheDir.exists() && !mCacheDir.mkdirs()) {
+            Log.e(TAG, "Can not create cache dir " + mCacheDir);
+            return;
+        }
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            long contactId = contactIdOf(file.getName());
+            if (contactId < 0) {
+                file.delete();
+                continue;
+            }
+            ArrayList<String> keys = mKeys.get(contactId);
+            if (keys == null) {
+                keys = new ArrayList<String>();
+                mKeys.put(contactId, keys);
+            }
+            keys.add(file.getName());
+            mDiskBytes += file.length();
+        }
+        if (V) Log.v(TAG, "disk index loaded, contacts=" + mKeys.size() + " bytes=" + mDiskBytes);
+    }
+
+    private void removeEntry(String key) {
+        mMemoryCache.remove(key);
+        mPendingWrites.remove(key);
+        File file = new File(mCacheDir, key);
+        long length = file.length();
+        if (file.delete()) {
+            mDiskBytes -= length;
+        }
+    }
+
+    private void removeContact(long contactId) {
+        ArrayList<String> keys = mKeys.remove(contactId);
+        if (keys != null) {
+            for (String key : keys) {
+                removeEntry(key);
+            }
+        }
+    }
+
+    /** Delete least recently used files until disk usage is back to 3/4 of the limit */
+    private void trimDisk() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && mDiskBytes > MAX_DISK_BYTES * 3 / 4; i++) {
+            String key = files[i].getName();
+            ArrayList<String> keys = mKeys.get(contactIdOf(key));
+            if (keys != null) {
+                keys.remove(key);
+            }
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskBytes -= length;
+            }
+        }
+        if (V) Log.v(TAG, "disk trimmed to " + mDiskBytes + " bytes");
+    }
+
+    /** @return the change of disk usage */
+    private long writeFile(File file, String vcard) {
+        File tmp = new File(mCacheDir, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        long delta = 0;
+        try {
+            byte[] bytes = vcard.getBytes("UTF-8");
+            out = new FileOutputStream(tmp);
+            out.write(bytes);
+            out.close();
+            out = null;
+            long oldLength = file.length();
+            if (tmp.renameTo(file)) {
+                delta = bytes.length - oldLength;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write cache file failed " + e.toString());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (V) Log.v(TAG, "close cache file failed " + e.toString());
+                }
+            }
+            tmp.delete();
+        }
+        return delta;
+    }
+
+    private String readFile(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buf = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buf.length) {
+                int read = in.read(buf, offset, buf.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(buf, 0, offset, "UTF-8");
+        } catch (IOException e) {
+            if (V) Log.v(TAG, "read cache file failed " + e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    if (V) Log.v(TAG, "close cache file failed " + e.toString());
+                }
+            }
+        }
+    }
+
+    private static long contactIdOf(String key) {
+        int index = key.indexOf(KEY_SEPARATOR);
+        if (index <= 0 || key.endsWith(".tmp")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(key.substring(0, index));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String versionOf(String key) {
+        int start = key.indexOf(KEY_SEPARATOR) + 1;
+        int end = key.indexOf(KEY_SEPARATOR, start);
+        return end > start ? key.substring(start, end) : "";
+    }
+
+    /** Remove entries of contacts which are not in the contacts provider anymore */
+    private void pruneDeletedContacts() {
+        HashSet<Long> existing = new HashSet<Long>();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                    new String[] {Contacts._ID}, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getLong(0));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        synchronized (this) {
+            if (mDiskBytes < 0) {
+                loadDiskIndex();
+            }
+            ArrayList<Long> deleted = new ArrayList<Long>();
+            for (Map.Entry<Long, ArrayList<String>> entry : mKeys.entrySet()) {
+                if (!existing.contains(entry.getKey())) {
+                    deleted.add(entry.getKey());
+                }
+            }
+            for (Long contactId : deleted) {
+                removeContact(contactId);
+            }
+            if (V) Log.v(TAG, "pruned " + deleted.size() + " deleted contacts");
+        }
+    }
+
+    public void onContentChanged(int source) {
+        if (source != BluetoothPbapContentTracker.SOURCE_CONTACTS) {
+            return;
+        }
+        if (V) Log.v(TAG, "contacts changed");
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeMessages(MSG_PRUNE);
+            handler.sendEmptyMessageDelayed(MSG_PRUNE, PRUNE_DELAY);
+        }
+    }
+
+    private class CacheHandler extends Handler {
+        CacheHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PRUNE:
+                    pruneDeletedContacts();
+                    break;
+                case MSG_WRITE:
+                    writePending();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
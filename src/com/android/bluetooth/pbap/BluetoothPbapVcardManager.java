@@ -34,7 +34,10 @@
 package com.android.bluetooth.pbap;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.Entity;
+import android.content.EntityIterator;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.CallLog;
@@ -45,12 +48,12 @@ import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.Profile;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
 
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
-import java.util.Collections;
-import java.util.Comparator;
 import com.android.bluetooth.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
@@ -61,6 +64,11 @@ import android.content.res.AssetFileDescriptor;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.io.FileInputStream;
 
 import javax.btobex.ServerOperation;
@@ -76,6 +84,37 @@ public class BluetoothPbapVcardManager {
 
     private Context mContext;
 
+    private BluetoothPbapVcardCache mVcardCache;
+
+    private BluetoothPbapContentTracker mContentTracker;
+
+    private BluetoothPbapCallerNameResolver mCallerNameResolver;
+
+    private BluetoothPbapPhotoTranscoder mPhotoTranscoder;
+
+    private BluetoothPbapContactIndex mContactIndex;
+
+    private BluetoothPbapSimSnapshot mSimSnapshot;
+
+    // set from the OBEX thread when the PCE aborts, polled by the sender
+    private volatile boolean mAborted = false;
+
+    // Counters of the request being served, replaced for every GET
+    private volatile BluetoothPbapProfiler.Request mProfile =
+            new BluetoothPbapProfiler.Request(null);
+
+    // Owner vCards in 2.1 and 3.0, valid for the profile generation and
+    // local line name and number they were composed with
+    private static final String[] sOwnerVcards = new String[2];
+
+    private static long sOwnerVcardGeneration = BluetoothPbapContentTracker.GENERATION_UNKNOWN;
+
+    private static String sOwnerVcardLine;
+
+    // Phonebook size per content type, as {source generation, size}
+    private static final HashMap<Integer, long[]> sPhonebookSizes =
+            new HashMap<Integer, long[]>();
+
     static final String[] PHONES_PROJECTION = new String[] {
             Data._ID, // 0
             CommonDataKinds.Phone.TYPE, // 1
@@ -84,16 +123,8 @@ public class BluetoothPbapVcardManager {
             Contacts.DISPLAY_NAME, // 4
     };
 
-    private final String SIM_URI = "content://icc/adn";
-
-    static final String[] SIM_PROJECTION = new String[] {
-            Contacts.DISPLAY_NAME,
-            CommonDataKinds.Phone.NUMBER,
-    };
     private static final int PHONE_NUMBER_COLUMN_INDEX = 3;
 
-    private static final int SIM_NAME_COLUMN_INDEX = 0;
-    private static final int SIM_NUMBER_COLUMN_INDEX = 1;
     static final String SORT_ORDER_PHONE_NUMBER = CommonDataKinds.Phone.NUMBER + " ASC";
 
     static final String[] CONTACTS_PROJECTION = new String[] {
@@ -101,6 +132,11 @@ public class BluetoothPbapVcardManager {
             Contacts.DISPLAY_NAME, // 1
     };
 
+    // Contacts._ID and Calls._ID are both BaseColumns._ID
+    static final String[] ID_PROJECTION = new String[] {
+            Contacts._ID, // 0
+    };
+
     static final String[] PROFILE_PROJECTION = new String[] {
             Contacts._ID, // 0
             Contacts.LOOKUP_KEY, // 1
@@ -127,9 +163,71 @@ public class BluetoothPbapVcardManager {
     public BluetoothPbapVcardManager(final Context context) {
         mContext = context;
         mResolver = mContext.getContentResolver();
+        mVcardCache = BluetoothPbapVcardCache.getInstance(mContext);
+        mContentTracker = BluetoothPbapContentTracker.getInstance(mContext);
+        mCallerNameResolver = BluetoothPbapCallerNameResolver.getInstance(mContext);
+        mPhotoTranscoder = BluetoothPbapPhotoTranscoder.getInstance();
+        mContactIndex = BluetoothPbapContactIndex.getInstance(mContext);
+        mSimSnapshot = BluetoothPbapSimSnapshot.getInstance(mContext);
+    }
+
+    /**
+     * Mark the transfer of this session as aborted by the PCE. The flag is
+     * per manager, so an abort of one session does not affect the others.
+     */
+    void setAborted(boolean aborted) {
+        mAborted = aborted;
+    }
+
+    private boolean checkAborted(Operation op) {
+        if (!mAborted) {
+            return false;
+        }
+        ((ServerOperation)op).isAborted = true;
+        mAborted = false;
+        mProfile.setAborted();
+        return true;
     }
 
+    /** Set the profiler counters of the request about to be served */
+    void setProfile(BluetoothPbapProfiler.Request profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * The owner vCard (0.vcf). It is composed once per profile generation and
+     * line number, for each vCard version, and shared by all sessions.
+     */
     public final String getOwnerPhoneNumberVcard(final boolean vcardType21) {
+        final long generation = mContentTracker.getGeneration(
+                BluetoothPbapContentTracker.SOURCE_PROFILE);
+        final String line = BluetoothPbapService.getLocalPhoneName() + "\n"
+                + BluetoothPbapService.getLocalPhoneNum();
+        final int version = vcardType21 ? 0 : 1;
+        if (generation != BluetoothPbapContentTracker.GENERATION_UNKNOWN) {
+            synchronized (sOwnerVcards) {
+                if (generation == sOwnerVcardGeneration && line.equals(sOwnerVcardLine)
+                        && sOwnerVcards[version] != null) {
+                    return sOwnerVcards[version];
+                }
+            }
+        }
+        String vCard = composeOwnerPhoneNumberVcard(vcardType21);
+        if (vCard != null && generation != BluetoothPbapContentTracker.GENERATION_UNKNOWN) {
+            synchronized (sOwnerVcards) {
+                if (generation != sOwnerVcardGeneration || !line.equals(sOwnerVcardLine)) {
+                    sOwnerVcards[0] = null;
+                    sOwnerVcards[1] = null;
+                    sOwnerVcardGeneration = generation;
+                    sOwnerVcardLine = line;
+                }
+                sOwnerVcards[version] = vCard;
+            }
+        }
+        return vCard;
+    }
+
+    private String composeOwnerPhoneNumberVcard(final boolean vcardType21) {
         final Uri myProfileUri = Profile.CONTENT_URI;
         Cursor profileContactCursor = null;
         String vCard = null;
@@ -186,6 +284,17 @@ public class BluetoothPbapVcardManager {
     }
 
     public final int getPhonebookSize(final int type) {
+        final long generation = mContentTracker.getGeneration(getContentSource(type));
+        if (generation != BluetoothPbapContentTracker.GENERATION_UNKNOWN) {
+            synchronized (sPhonebookSizes) {
+                long[] cached = sPhonebookSizes.get(type);
+                if (cached != null && cached[0] == generation) {
+                    if (V) Log.v(TAG, "getPhonebookSize cached size = " + cached[1]
+                            + " type = " + type);
+                    return (int) cached[1];
+                }
+            }
+        }
         int size;
         switch (type) {
             case BluetoothPbapObexServer.ContentType.PHONEBOOK:
@@ -198,42 +307,40 @@ public class BluetoothPbapVcardManager {
                 size = getCallHistorySize(type);
                 break;
         }
+        if (generation != BluetoothPbapContentTracker.GENERATION_UNKNOWN) {
+            synchronized (sPhonebookSizes) {
+                sPhonebookSizes.put(type, new long[] {generation, size});
+            }
+        }
         if (V) Log.v(TAG, "getPhonebookSzie size = " + size + " type = " + type);
         return size;
     }
 
+    /** The provider whose changes affect the given phonebook folder */
+    static int getContentSource(final int type) {
+        switch (type) {
+            case BluetoothPbapObexServer.ContentType.PHONEBOOK:
+                return BluetoothPbapContentTracker.SOURCE_CONTACTS;
+            case BluetoothPbapObexServer.ContentType.SIM_PHONEBOOK:
+                return BluetoothPbapContentTracker.SOURCE_SIM;
+            default:
+                return BluetoothPbapContentTracker.SOURCE_CALL_LOG;
+        }
+    }
+
+    // Size queries only fetch _ID, to keep the cursor window as small as
+    // possible; providers reject aggregate projections such as count(*).
     public final int getContactsSize() {
-        final Uri myUri = Contacts.CONTENT_URI;
-        int size = 0;
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, null, CLAUSE_ONLY_VISIBLE, null, null);
-            if (contactCursor != null) {
-                size = contactCursor.getCount() + 1; // always has the 0.vcf
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
+        // Same ids the handles map to, so size and handles always agree
+        long[] ids = mContactIndex.getIds(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+        if (ids == null) {
+            return 0;
         }
-        return size;
+        return ids.length + 1; // always has the 0.vcf
     }
 
     public final int getSIMContactsSize() {
-        final Uri myUri = Uri.parse(SIM_URI);
-        int size = 0;
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, SIM_PROJECTION, null,null, null);
-            if (contactCursor != null) {
-                size = contactCursor.getCount() +1;  //always has the 0.vcf
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
-        }
-        return size;
+        return mSimSnapshot.getCount() + 1;  //always has the 0.vcf
     }
 
     public final int getCallHistorySize(final int type) {
@@ -242,8 +349,7 @@ public class BluetoothPbapVcardManager {
         int size = 0;
         Cursor callCursor = null;
         try {
-            callCursor = mResolver.query(myUri, null, selection, null,
-                    CallLog.Calls.DEFAULT_SORT_ORDER);
+            callCursor = mResolver.query(myUri, ID_PROJECTION, selection, null, null);
             if (callCursor != null) {
                 size = callCursor.getCount();
             }
@@ -256,6 +362,16 @@ public class BluetoothPbapVcardManager {
     }
 
     public final ArrayList<String> loadCallHistoryList(final int type) {
+        return loadCallHistoryList(type, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Names of the call history entries, in handle order. Numbers without a
+     * cached name are resolved against contacts for entries in the window
+     * [start, start + count) only, others are listed by number.
+     */
+    public final ArrayList<String> loadCallHistoryList(final int type, final int start,
+            final int count) {
         final Uri myUri = CallLog.Calls.CONTENT_URI;
         String selection = BluetoothPbapObexServer.createSelectionPara(type);
         String[] projection = new String[] {
@@ -266,6 +382,8 @@ public class BluetoothPbapVcardManager {
 
         Cursor callCursor = null;
         ArrayList<String> list = new ArrayList<String>();
+        ArrayList<Integer> unnamed = new ArrayList<Integer>();
+        ArrayList<String> unnamedNumbers = new ArrayList<String>();
         try {
             callCursor = mResolver.query(myUri, projection, selection, null,
                     CALLLOG_SORT_ORDER);
@@ -276,10 +394,11 @@ public class BluetoothPbapVcardManager {
                     if (TextUtils.isEmpty(name)) {
                         // name not found, use number instead
                         name = callCursor.getString(CALLS_NUMBER_COLUMN_INDEX);
-                        if (CallerInfo.UNKNOWN_NUMBER.equals(name) ||
-                                CallerInfo.PRIVATE_NUMBER.equals(name) ||
-                                CallerInfo.PAYPHONE_NUMBER.equals(name)) {
+                        if (BluetoothPbapCallerNameResolver.isSpecialNumber(name)) {
                             name = mContext.getString(R.string.unknownNumber);
+                        } else if (list.size() >= start && list.size() - start < count) {
+                            unnamed.add(list.size());
+                            unnamedNumbers.add(name);
                         }
                     }
                     list.add(name);
@@ -290,13 +409,20 @@ public class BluetoothPbapVcardManager {
                 callCursor.close();
             }
         }
+        if (!unnamedNumbers.isEmpty()) {
+            HashMap<String, String> names = mCallerNameResolver.resolve(unnamedNumbers);
+            for (int i = 0; i < unnamed.size(); i++) {
+                String name = names.get(unnamedNumbers.get(i));
+                if (name != null) {
+                    list.set(unnamed.get(i), name);
+                }
+            }
+        }
         return list;
     }
+
     public final ArrayList<String> getSIMPhonebookNameList(final int orderByWhat) {
         ArrayList<String> nameList = new ArrayList<String>();
-        ArrayList<String> allnames = new ArrayList<String>();
-        final Uri myUri = Uri.parse(SIM_URI);
-        Cursor contactCursor = null;
         final Uri myProfileUri = Profile.CONTENT_URI;
         Cursor profileContactCursor = null;
         try {
@@ -315,40 +441,19 @@ public class BluetoothPbapVcardManager {
             else{
                 nameList.add(BluetoothPbapService.getLocalPhoneName());
             }
-            contactCursor = mResolver.query(myUri, SIM_PROJECTION, null,null,null);
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        name = mContext.getString(android.R.string.unknownName);
-                    }
-                    allnames.add(name);
-                }
-            }
         } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
             if (profileContactCursor != null) {
                 profileContactCursor.close();
             }
         }
-        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by index");
-        } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by alpha");
-                Collections.sort(allnames, new Comparator <String> ()
-                                 {@Override
-                                  public int compare(String str1, String str2){
-                                      return str1.compareToIgnoreCase(str2);
-                                  }
-                 });
+        if (V) Log.v(TAG, "getSIMPhonebookNameList, order " + orderByWhat);
+        List<BluetoothPbapSimSnapshot.Entry> entries = mSimSnapshot.getEntries(orderByWhat);
+        if (entries != null) {
+            for (BluetoothPbapSimSnapshot.Entry entry : entries) {
+                nameList.add(entry.displayName);
+            }
         }
-
-        nameList.addAll(allnames);
         return nameList;
-
     }
 
 
@@ -405,73 +510,7 @@ public class BluetoothPbapVcardManager {
     }
 
     public final ArrayList<String> getSIMContactNamesByNumber(final String phoneNumber) {
-        ArrayList<String> nameList = new ArrayList<String>();
-        ArrayList<String> startNameList = new ArrayList<String>();
-        StringBuilder onlyphoneNumber = new StringBuilder();
-        for (int j=0; j<phoneNumber.length(); j++) {
-            char c = phoneNumber.charAt(j);
-                if (c >= '0' && c <= '9') {
-                    onlyphoneNumber = onlyphoneNumber.append(c);
-                }
-        }
-        String SearchOnlyNumber = onlyphoneNumber.toString();
-
-        Cursor contactCursor = null;
-        final Uri uri = Uri.parse(SIM_URI);
-
-        try {
-            contactCursor = mResolver.query(uri, SIM_PROJECTION, null, null, null);
-
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String number = contactCursor.getString(SIM_NUMBER_COLUMN_INDEX);
-                    if (number == null) {
-                        if (V) Log.v(TAG, "number is null");
-                        continue;
-                    }
-                    StringBuilder onlyNumber = new StringBuilder();
-                    for (int j=0; j<number.length(); j++) {
-                        char c = number.charAt(j);
-                        if (c >= '0' && c <= '9') {
-                            onlyNumber = onlyNumber.append(c);
-                        }
-                    }
-                    String tmpNumber = onlyNumber.toString();
-                    if (V) Log.v(TAG, "number: "+number+" onlyNumber:"+onlyNumber+" tmpNumber:"+tmpNumber);
-                    if (tmpNumber.endsWith(SearchOnlyNumber)) {
-                        String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                        if (TextUtils.isEmpty(name)) {
-                            name = mContext.getString(android.R.string.unknownName);
-                        }
-                        if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber);
-                        if (V) Log.v(TAG, "Adding to end name list");
-                        nameList.add(name);
-                    }
-                    if (tmpNumber.startsWith(SearchOnlyNumber)) {
-                        String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                        if (TextUtils.isEmpty(name)) {
-                            name = mContext.getString(android.R.string.unknownName);
-                        }
-                        if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber);
-                        if (V) Log.v(TAG, "Adding to start name list");
-                        startNameList.add(name);
-                    }
-                }
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
-        }
-        int startListSize = startNameList.size();
-        for (int index = 0; index < startListSize; index++) {
-            String object = startNameList.get(index);
-            if (!nameList.contains(object))
-                nameList.add(object);
-        }
-
-        return nameList;
+        return mSimSnapshot.getNamesByNumber(phoneNumber);
     }
     public final ArrayList<String> getContactNamesByNumber(final String phoneNumber) {
         ArrayList<String> nameList = new ArrayList<String>();
@@ -610,34 +649,53 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Contacts.CONTENT_URI;
+        final String selection = getPhonebookRangeSelection(startPoint, endPoint);
+        if (selection == null) {
+            Log.e(TAG, "No contact at startPoint " + startPoint);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
 
-        Cursor contactCursor = null;
-        long startPointId = 0;
-        long endPointId = 0;
-        try {
-            contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE, null,
-                    Contacts._ID);
-            if (contactCursor != null) {
-                contactCursor.moveToPosition(startPoint - 1);
-                startPointId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                if (V) Log.v(TAG, "Query startPointId = " + startPointId);
-                if (startPoint == endPoint) {
-                    endPointId = startPointId;
-                } else {
-                    contactCursor.moveToPosition(endPoint - 1);
-                    endPointId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                }
-                if (V) Log.v(TAG, "Query endPointId = " + endPointId);
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
+        return composeAndSendVCards(op, selection, vcardType21, ownerVCard, true, ignorefilter, filter);
+    }
+
+    /**
+     * Like composeAndSendPhonebookVcards(), but only the contacts in changedIds
+     * are sent. An empty result is a valid answer, the body then only holds
+     * the owner vCard, if any.
+     */
+    public final int composeAndSendChangedPhonebookVcards(Operation op, final int startPoint,
+            final int endPoint, final boolean vcardType21, String ownerVCard,
+            final Set<Long> changedIds, boolean ignorefilter, byte[] filter) {
+        if (startPoint < 1) {
+            Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        String selection = null;
+        if (startPoint <= endPoint) {
+            selection = getPhonebookRangeSelection(startPoint, endPoint);
+        }
+        return composeAndSendContactVCards(op, selection, changedIds, vcardType21, ownerVCard,
+                ignorefilter, filter);
+    }
+
+    /** Selection of the visible contacts with handles startPoint to endPoint */
+    private String getPhonebookRangeSelection(final int startPoint, final int endPoint) {
+        final long startPointId = mContactIndex.getContactId(
+                BluetoothPbapObexServer.ORDER_BY_INDEXED, startPoint);
+        long endPointId = mContactIndex.getContactId(BluetoothPbapObexServer.ORDER_BY_INDEXED,
+                endPoint);
+        if (V) Log.v(TAG, "Query startPointId = " + startPointId + " endPointId = "
+                + endPointId);
+        if (startPointId < 0) {
+            return null;
+        }
+        if (endPointId < 0) {
+            // Past the last contact, send up to the end of the phonebook
+            endPointId = Long.MAX_VALUE;
         }
 
         final String selection;
-        if (startPoint == endPoint) {
+        if (startPointId == endPointId) {
             selection = Contacts._ID + "=" + startPointId + " AND " + CLAUSE_ONLY_VISIBLE;
         } else {
             selection = Contacts._ID + ">=" + startPointId + " AND " + Contacts._ID + "<="
@@ -645,34 +703,34 @@ public class BluetoothPbapVcardManager {
         }
 
         if (V) Log.v(TAG, "Query selection is: " + selection);
-
-        return composeAndSendVCards(op, selection, vcardType21, ownerVCard, true, ignorefilter, filter);
+        return selection;
     }
+
     public final int composeAndSendSIMPhonebookVcards(Operation op, final int startPoint,
             final int endPoint, final boolean vcardType21, String ownerVCard) {
         if (startPoint < 1 || startPoint > endPoint) {
             Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Uri.parse(SIM_URI);
         BluetoothPbapSIMvCardComposer composer = null;
         HandlerForStringBuffer buffer = null;
             try {
                 composer = new BluetoothPbapSIMvCardComposer(mContext);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
 
-                if (!composer.init(myUri, null, null, null)||
+                if (!composer.init(mSimSnapshot.getEntries(
+                                   BluetoothPbapObexServer.ORDER_BY_INDEXED)) ||
                                    !buffer.onInit(mContext)) {
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
-               composer.moveToPosition(startPoint -1, false);
+               composer.moveToPosition(startPoint -1);
                for (int count =startPoint -1; count < endPoint; count++) {
-                   if (BluetoothPbapObexServer.sIsAborted) {
-                       ((ServerOperation)op).isAborted = true;
-                       BluetoothPbapObexServer.sIsAborted = false;
+                   if (checkAborted(op)) {
                        break;
                    }
+                   final long composeBegin = mProfile.begin();
                    String vcard = composer.createOneEntry(vcardType21);
+                   mProfile.end(BluetoothPbapProfiler.PHASE_COMPOSE, composeBegin);
                    if (vcard == null) {
                        Log.e(TAG, "Failed to read a contact. Error reason: "
                                + composer.getErrorReason());
@@ -698,42 +756,18 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "Internal error: offset is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Contacts.CONTENT_URI;
-        Cursor contactCursor = null;
         String selection = null;
-        long contactId = 0;
-        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-            try {
-                contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts._ID);
-                if (contactCursor != null) {
-                    contactCursor.moveToPosition(offset - 1);
-                    contactId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (V) Log.v(TAG, "Query startPointId = " + contactId);
-                }
-            } finally {
-                if (contactCursor != null) {
-                    contactCursor.close();
-                }
-            }
-        } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-            try {
-                contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts.DISPLAY_NAME+ " COLLATE NOCASE");
-                if (contactCursor != null) {
-                    contactCursor.moveToPosition(offset - 1);
-                    contactId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (V) Log.v(TAG, "Query startPointId = " + contactId);
-                }
-            } finally {
-                if (contactCursor != null) {
-                    contactCursor.close();
-                }
-            }
-        } else {
+        if (orderByWhat != BluetoothPbapObexServer.ORDER_BY_INDEXED
+                && orderByWhat != BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
             Log.e(TAG, "Parameter orderByWhat is not supported!");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
+        final long contactId = mContactIndex.getContactId(orderByWhat, offset);
+        if (V) Log.v(TAG, "Query startPointId = " + contactId);
+        if (contactId < 0) {
+            Log.e(TAG, "No contact at offset " + offset);
+            return ResponseCodes.OBEX_HTTP_NOT_FOUND;
+        }
         selection = Contacts._ID + "=" + contactId;
 
         if (V) Log.v(TAG, "Query selection is: " + selection);
@@ -747,28 +781,18 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "Internal error: offset is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Uri.parse(SIM_URI);
-
         BluetoothPbapSIMvCardComposer composer = null;
         HandlerForStringBuffer buffer = null;
             try {
                 composer = new BluetoothPbapSIMvCardComposer(mContext);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
-                if (!composer.init(myUri, null, null,null)||
+                // The snapshot list of that order holds the entries at their handle
+                if (!composer.init(mSimSnapshot.getEntries(orderByWhat)) ||
                                    !buffer.onInit(mContext)) {
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
-                if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                    if (V) Log.v(TAG, "getPhonebookNameList, order by index");
-                    composer.moveToPosition(offset -1, false);
-                } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                    if (V) Log.v(TAG, "getPhonebookNameList, order by alpha");
-                    composer.moveToPosition(offset -1, true);
-                }
-                if (BluetoothPbapObexServer.sIsAborted) {
-                    ((ServerOperation)op).isAborted = true;
-                     BluetoothPbapObexServer.sIsAborted = false;
-                }
+                composer.moveToPosition(offset -1);
+                checkAborted(op);
                 String vcard = composer.createOneEntry(vcardType21);
                 if (vcard == null) {
                     Log.e(TAG, "Failed to read a contact. Error reason: "
@@ -789,100 +813,37 @@ public class BluetoothPbapVcardManager {
     }
 
     public final int composeAndSendVCards(Operation op, final String selection,
-            final boolean vcardType21, String ownerVCard, boolean isContacts, boolean ignorefilter, byte[] filter) {
+            final boolean vcardType21, String ownerVCard, boolean isContacts,
+            final boolean ignorefilter, final byte[] filter) {
         long timestamp = 0;
         if (V) timestamp = System.currentTimeMillis();
 
         if (isContacts) {
-            VCardComposer composer = null;
-            FilterVcard vcardfilter= new FilterVcard();
-            if (!ignorefilter) {
-                vcardfilter.setFilter(filter);
-            }
-            HandlerForStringBuffer buffer = null;
-            try {
-                // Currently only support Generic Vcard 2.1 and 3.0
-                int vcardType;
-                if (vcardType21) {
-                    vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
-                } else {
-                    vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
-                }
-                if (!vcardfilter.isPhotoEnabled()) {
-                    vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
-                }
-                composer = new VCardComposer(mContext, vcardType, true);
-                // BT does want PAUSE/WAIT conversion while it doesn't want the other formatting
-                // done by vCard library by default.
-                composer.setPhoneNumberTranslationCallback(
-                        new VCardPhoneNumberTranslationCallback() {
-                            public String onValueReceived(
-                                    String rawValue, int type, String label, boolean isPrimary) {
-                                // 'p' and 'w' are the standard characters for pause and wait
-                                // (see RFC 3601)
-                                // so use those when exporting phone numbers via vCard.
-                                String numberWithControlSequence = rawValue
-                                        .replace(PhoneNumberUtils.PAUSE, 'p')
-                                        .replace(PhoneNumberUtils.WAIT, 'w');
-                                return numberWithControlSequence;
-                            }
-                        });
-                buffer = new HandlerForStringBuffer(op, ownerVCard);
-                if (!composer.init(Contacts.CONTENT_URI, selection, null, Contacts._ID) ||
-                        !buffer.onInit(mContext)) {
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                }
-
-                while (!composer.isAfterLast()) {
-                    if (BluetoothPbapObexServer.sIsAborted) {
-                        ((ServerOperation)op).isAborted = true;
-                        BluetoothPbapObexServer.sIsAborted = false;
-                        break;
-                    }
-                    String vcard = composer.createOneEntry();
-                    Log.v (TAG , "vCard from composer: " + vcard);
-                    if (!ignorefilter) {
-                        vcard = vcardfilter.applyFilter(vcard, vcardType21);
-                        Log.v (TAG , "vCard on applying filter: " + vcard);
-                    }
-                    if (vcard == null) {
-                        Log.e(TAG, "Failed to read a contact. Error reason: "
-                                + composer.getErrorReason());
-                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                    }
-                    if (!buffer.onEntryCreated(vcard)) {
-                        // onEntryCreate() already emits error.
-                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                    }
-                }
-            } finally {
-                if (composer != null) {
-                    composer.terminate();
-                }
-                if (buffer != null) {
-                    buffer.onTerminate();
-                }
-            }
+            return composeAndSendContactVCards(op, selection, null, vcardType21, ownerVCard,
+                    ignorefilter, filter);
         } else { // CallLog
             BluetoothPbapCallLogComposer composer = null;
             HandlerForStringBuffer buffer = null;
             try {
 
                 composer = new BluetoothPbapCallLogComposer(mContext);
+                composer.setCallerNameResolver(mCallerNameResolver);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
+                final long queryBegin = mProfile.begin();
                 if (!composer.init(CallLog.Calls.CONTENT_URI, selection, null,
                                    CALLLOG_SORT_ORDER) ||
                                    !buffer.onInit(mContext)) {
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
+                mProfile.end(BluetoothPbapProfiler.PHASE_QUERY, queryBegin);
 
                 while (!composer.isAfterLast()) {
-                    if (BluetoothPbapObexServer.sIsAborted) {
-                        ((ServerOperation)op).isAborted = true;
-                        BluetoothPbapObexServer.sIsAborted = false;
+                    if (checkAborted(op)) {
                         break;
                     }
+                    final long composeBegin = mProfile.begin();
                     String vcard = composer.createOneEntry(vcardType21);
+                    mProfile.end(BluetoothPbapProfiler.PHASE_COMPOSE, composeBegin);
                     if (vcard == null) {
                         Log.e(TAG, "Failed to read a contact. Error reason: "
                                 + composer.getErrorReason());
@@ -906,6 +867,318 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Compose and send the vCards of the contacts matching selection, or only
+     * those of them in onlyIds if it is not null.
+     */
+    private int composeAndSendContactVCards(Operation op, final String selection,
+            final Set<Long> onlyIds, final boolean vcardType21, String ownerVCard,
+            final boolean ignorefilter, final byte[] filter) {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+
+        final FilterVcard vcardfilter= new FilterVcard();
+        if (!ignorefilter) {
+            vcardfilter.setFilter(filter);
+        }
+        final boolean photoEnabled = vcardfilter.isPhotoEnabled();
+        // Composer and filter keep state while building an entry, so each
+        // compose worker gets its own for this request
+        final ThreadLocal<VCardComposer> composers = new ThreadLocal<VCardComposer>() {
+            @Override
+            protected VCardComposer initialValue() {
+                return createContactsComposer(vcardType21, photoEnabled);
+            }
+        };
+        final ThreadLocal<FilterVcard> filters = new ThreadLocal<FilterVcard>() {
+            @Override
+            protected FilterVcard initialValue() {
+                FilterVcard workerFilter = new FilterVcard();
+                if (!ignorefilter) {
+                    workerFilter.setFilter(filter);
+                }
+                return workerFilter;
+            }
+        };
+        HandlerForStringBuffer buffer = null;
+        BluetoothPbapComposePipeline pipeline = null;
+        try {
+            final BluetoothPbapProfiler.Request profile = mProfile;
+            final long queryBegin = profile.begin();
+            final long[] contactIds;
+            if (onlyIds == null) {
+                contactIds = queryContactIds(selection);
+                if (contactIds == null || contactIds.length == 0) {
+                    Log.e(TAG, "No contact matches selection: " + selection);
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            } else {
+                contactIds = filterContactIds(selection == null ? new long[0]
+                        : queryContactIds(selection), onlyIds);
+                if (contactIds == null) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+            final HashMap<Long, String> versions = queryContactVersions(contactIds);
+            profile.end(BluetoothPbapProfiler.PHASE_QUERY, queryBegin);
+            buffer = new HandlerForStringBuffer(op, ownerVCard);
+            if (!buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+
+            // Compose upcoming contacts on worker threads while this thread
+            // sends the previous ones, entries are still sent in handle order.
+            pipeline = new BluetoothPbapComposePipeline(contactIds.length,
+                    new BluetoothPbapComposePipeline.EntryComposer() {
+                        public String compose(int index) {
+                            return getContactVcard(composers.get(), filters.get(),
+                                    contactIds[index], versions.get(contactIds[index]),
+                                    vcardType21, photoEnabled, ignorefilter, filter, profile);
+                        }
+                    },
+                    new BluetoothPbapComposePipeline.AbortSignal() {
+                        public boolean isAborted() {
+                            return mAborted;
+                        }
+                    });
+            for (int i = 0; i < contactIds.length; i++) {
+                if (checkAborted(op)) {
+                    break;
+                }
+                String vcard = pipeline.next();
+                if (vcard == null && checkAborted(op)) {
+                    break;
+                }
+                if (vcard == null) {
+                    Log.e(TAG, "Failed to read contact " + contactIds[i]);
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+                if (!buffer.onEntryCreated(vcard)) {
+                    // onEntryCreate() already emits error.
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
+            if (buffer != null) {
+                buffer.onTerminate();
+            }
+        }
+
+        if (V) Log.v(TAG, "Total vcard composing and sending out takes "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
+
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /** The ids in contactIds which are also in onlyIds, order kept */
+    private static long[] filterContactIds(final long[] contactIds, final Set<Long> onlyIds) {
+        if (contactIds == null) {
+            return null;
+        }
+        long[] filtered = new long[contactIds.length];
+        int count = 0;
+        for (long contactId : contactIds) {
+            if (onlyIds.contains(contactId)) {
+                filtered[count++] = contactId;
+            }
+        }
+        return Arrays.copyOf(filtered, count);
+    }
+
+    private VCardComposer createContactsComposer(final boolean vcardType21,
+            final boolean photoEnabled) {
+        // Currently only support Generic Vcard 2.1 and 3.0
+        int vcardType;
+        if (vcardType21) {
+            vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
+        } else {
+            vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
+        }
+        if (!photoEnabled) {
+            vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+        }
+        VCardComposer composer = new VCardComposer(mContext, vcardType, true);
+        // BT does want PAUSE/WAIT conversion while it doesn't want the other formatting
+        // done by vCard library by default.
+        composer.setPhoneNumberTranslationCallback(
+                new VCardPhoneNumberTranslationCallback() {
+                    public String onValueReceived(
+                            String rawValue, int type, String label, boolean isPrimary) {
+                        // 'p' and 'w' are the standard characters for pause and wait
+                        // (see RFC 3601)
+                        // so use those when exporting phone numbers via vCard.
+                        String numberWithControlSequence = rawValue
+                                .replace(PhoneNumberUtils.PAUSE, 'p')
+                                .replace(PhoneNumberUtils.WAIT, 'w');
+                        return numberWithControlSequence;
+                    }
+                });
+        return composer;
+    }
+
+    /** Ids of the contacts matching selection, in handle (_ID) order */
+    private long[] queryContactIds(final String selection) {
+        Cursor contactCursor = null;
+        try {
+            contactCursor = mResolver.query(Contacts.CONTENT_URI, new String[] {Contacts._ID},
+                    selection, null, Contacts._ID);
+            if (contactCursor == null) {
+                return null;
+            }
+            long[] contactIds = new long[contactCursor.getCount()];
+            int i = 0;
+            while (contactCursor.moveToNext() && i < contactIds.length) {
+                contactIds[i++] = contactCursor.getLong(0);
+            }
+            return contactIds;
+        } finally {
+            if (contactCursor != null) {
+                contactCursor.close();
+            }
+        }
+    }
+
+    /** Versions of the given contacts, see the static queryContactVersions */
+    private HashMap<Long, String> queryContactVersions(final long[] contactIds) {
+        if (contactIds.length == 0) {
+            return new HashMap<Long, String>();
+        }
+        HashMap<Long, String> versions = queryContactVersions(mResolver,
+                RawContacts.CONTACT_ID + ">=" + contactIds[0] + " AND "
+                + RawContacts.CONTACT_ID + "<=" + contactIds[contactIds.length - 1]);
+        return versions != null ? versions : new HashMap<Long, String>();
+    }
+
+    /**
+     * Versions of the contacts whose raw contacts match selection, all
+     * contacts if selection is null, or null if the provider can not be
+     * queried. The version of an aggregate contact
+     * lists the id and version of each of its raw contacts, so it changes
+     * whenever one of them is edited, joined or split.
+     */
+    static HashMap<Long, String> queryContactVersions(final ContentResolver resolver,
+            final String selection) {
+        HashMap<Long, StringBuilder> builders = new HashMap<Long, StringBuilder>();
+        Cursor rawCursor = null;
+        try {
+            rawCursor = resolver.query(RawContacts.CONTENT_URI, new String[] {
+                    RawContacts.CONTACT_ID, RawContacts._ID, RawContacts.VERSION
+            }, (selection != null ? "(" + selection + ") AND " : "") + RawContacts.DELETED
+                    + "=0", null, RawContacts._ID);
+            if (rawCursor == null) {
+                return null;
+            }
+            while (rawCursor.moveToNext()) {
+                long contactId = rawCursor.getLong(0);
+                StringBuilder version = builders.get(contactId);
+                if (version == null) {
+                    version = new StringBuilder();
+                    builders.put(contactId, version);
+                } else {
+                    version.append('.');
+                }
+                version.append(rawCursor.getLong(1)).append('-').append(rawCursor.getLong(2));
+            }
+        } finally {
+            if (rawCursor != null) {
+                rawCursor.close();
+            }
+        }
+        HashMap<Long, String> versions = new HashMap<Long, String>();
+        for (Map.Entry<Long, StringBuilder> entry : builders.entrySet()) {
+            versions.put(entry.getKey(), entry.getValue().toString());
+        }
+        return versions;
+    }
+
+    /**
+     * Get the vCard of one contact, from the vCard cache if it has already been
+     * composed for the same version, vCard type and filter. photoEnabled must
+     * be the setting composer was created with.
+     */
+    private String getContactVcard(VCardComposer composer, FilterVcard vcardfilter,
+            final long contactId, final String version, final boolean vcardType21,
+            final boolean photoEnabled, final boolean ignorefilter, final byte[] filter,
+            final BluetoothPbapProfiler.Request profile) {
+        String key = null;
+        if (version != null) {
+            key = BluetoothPbapVcardCache.buildKey(contactId, version, vcardType21,
+                    ignorefilter, filter);
+        }
+        if (key != null) {
+            if (photoEnabled && mPhotoTranscoder.isEnabled()) {
+                // the embedded photo depends on the transcoder settings too
+                key += "_" + mPhotoTranscoder.getConfigTag();
+            }
+            String vcard = mVcardCache.get(contactId, key);
+            if (vcard != null) {
+                if (V) Log.v(TAG, "vCard cache hit for contact " + contactId);
+                return vcard;
+            }
+        }
+        long begin = profile.begin();
+        Map<String, List<ContentValues>> entity = loadContactEntity(contactId);
+        profile.end(BluetoothPbapProfiler.PHASE_QUERY, begin);
+        begin = profile.begin();
+        if (photoEnabled && mPhotoTranscoder.isEnabled()) {
+            // This runs on the compose workers, ahead of the sender. Without
+            // images the composer drops the photo anyway.
+            mPhotoTranscoder.transcode(entity);
+        }
+        String vcard = composer.buildVCard(entity);
+        profile.end(BluetoothPbapProfiler.PHASE_COMPOSE, begin);
+        if (V) Log.v(TAG, "vCard from composer: " + vcard);
+        if (vcard != null && !ignorefilter) {
+            begin = profile.begin();
+            vcard = vcardfilter.applyFilter(vcard, vcardType21);
+            profile.end(BluetoothPbapProfiler.PHASE_FILTER, begin);
+            if (V) Log.v(TAG, "vCard on applying filter: " + vcard);
+        }
+        if (vcard != null && key != null) {
+            mVcardCache.put(contactId, key, vcard);
+        }
+        return vcard;
+    }
+
+    /** Load the data rows of one contact, grouped by mime type, as VCardComposer does */
+    private Map<String, List<ContentValues>> loadContactEntity(final long contactId) {
+        Map<String, List<ContentValues>> contentValuesListMap =
+                new HashMap<String, List<ContentValues>>();
+        EntityIterator entityIterator = null;
+        try {
+            Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, null,
+                    Data.CONTACT_ID + "=?", new String[] {String.valueOf(contactId)}, null);
+            if (cursor == null) {
+                Log.e(TAG, "Failed to query data of contact " + contactId);
+                return contentValuesListMap;
+            }
+            entityIterator = RawContacts.newEntityIterator(cursor);
+            while (entityIterator.hasNext()) {
+                Entity entity = entityIterator.next();
+                for (Entity.NamedContentValues namedContentValues : entity.getSubValues()) {
+                    ContentValues contentValues = namedContentValues.values;
+                    String key = contentValues.getAsString(Data.MIMETYPE);
+                    if (key != null) {
+                        List<ContentValues> contentValuesList = contentValuesListMap.get(key);
+                        if (contentValuesList == null) {
+                            contentValuesList = new ArrayList<ContentValues>();
+                            contentValuesListMap.put(key, contentValuesList);
+                        }
+                        contentValuesList.add(contentValues);
+                    }
+                }
+            }
+        } finally {
+            if (entityIterator != null) {
+                entityIterator.close();
+            }
+        }
+        return contentValuesListMap;
+    }
+
     /**
      * Handler to emit vCards to PCE.
      */
@@ -928,7 +1201,15 @@ public class BluetoothPbapVcardManager {
         private boolean write(String vCard) {
             try {
                 if (vCard != null) {
-                    outputStream.write(vCard.getBytes());
+                    final BluetoothPbapProfiler.Request profile = mProfile;
+                    long begin = profile.begin();
+                    byte[] bytes = vCard.getBytes();
+                    profile.end(BluetoothPbapProfiler.PHASE_ENCODE, begin);
+                    begin = profile.begin();
+                    outputStream.write(bytes);
+                    profile.end(BluetoothPbapProfiler.PHASE_SEND, begin);
+                    profile.addEntries(1);
+                    profile.addBytes(bytes.length);
                     return true;
                 }
             } catch (IOException e) {